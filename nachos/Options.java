@@ -45,6 +45,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Iterator;
 
+import nachos.kernel.userprog.ConsoleBuffer;
 import nachos.machine.Disk;
 import nachos.machine.RK05Disk;
 
@@ -168,6 +169,15 @@ public class Options {
     
     /** Should we validate filesystem upon exit? */
     public boolean CHECK_FS = false;
+
+    /** Should we record page faults per executable and prefetch them on later runs? */
+    public boolean PREFETCH_PAGES = false;
+
+    /** How user programs' console output is buffered (see ConsoleBuffer). */
+    public int CONSOLE_BUFFERING = ConsoleBuffer.LINE_BUFFERED;
+
+    /** How many exited user threads to keep parked for reuse by Exec and Fork. */
+    public int THREAD_POOL_SIZE = 0;
     
     // Test/demo configuration options.
 
@@ -187,6 +197,21 @@ public class Options {
     
     public boolean MULTI_LEV_SCHEDULER = false;
 
+    /** Should we use per-CPU run queues with work stealing? */
+    public boolean PER_CPU_SCHEDULER = false;
+
+    /** Should we use the completely fair (virtual runtime) scheduler? */
+    public boolean FAIR_SCHEDULER = false;
+
+    /** Should we use the stride (proportional-share) scheduler? */
+    public boolean STRIDE_SCHEDULER = false;
+
+    /** Should the stride scheduler choose threads by lottery instead? */
+    public boolean LOTTERY = false;
+
+    /** Should we use the gang scheduler? */
+    public boolean GANG_SCHEDULER = false;
+
     /** Should we run the filesystem test? */
     public boolean FILESYS_TEST = false;
     
@@ -356,6 +381,42 @@ public class Options {
 				MULTI_LEV_SCHEDULER = true;
 			    }
 			}),
+		new Spec("-PCQ", // use per-CPU run queues with work stealing
+			new Class[] {}, null, new Options.Action() {
+			    public void processOption(String flag,
+				    Object[] params) {
+				PER_CPU_SCHEDULER = true;
+			    }
+			}),
+		new Spec("-CFS", // use completely fair (virtual runtime) scheduler
+			new Class[] {}, null, new Options.Action() {
+			    public void processOption(String flag,
+				    Object[] params) {
+				FAIR_SCHEDULER = true;
+			    }
+			}),
+		new Spec("-STRIDE", // use stride (proportional-share) scheduler
+			new Class[] {}, null, new Options.Action() {
+			    public void processOption(String flag,
+				    Object[] params) {
+				STRIDE_SCHEDULER = true;
+			    }
+			}),
+		new Spec("-LOTTERY", // use proportional-share scheduler, by lottery
+			new Class[] {}, null, new Options.Action() {
+			    public void processOption(String flag,
+				    Object[] params) {
+				STRIDE_SCHEDULER = true;
+				LOTTERY = true;
+			    }
+			}),
+		new Spec("-GANG", // co-schedule the threads of each address space
+			new Class[] {}, null, new Options.Action() {
+			    public void processOption(String flag,
+				    Object[] params) {
+				GANG_SCHEDULER = true;
+			    }
+			}),
 			
 		new Spec(
 			"-numPL", // set the number of priority level to use for multilevel feedback scheduling
@@ -444,6 +505,41 @@ public class Options {
 				CHECK_FS = true;
 			    }
 			}),
+		new Spec("-pf", // record page faults and prefetch them on later runs
+			new Class[] {}, null, new Options.Action() {
+			    public void processOption(String flag,
+				    Object[] params) {
+				PREFETCH_PAGES = true;
+			    }
+			}),
+		new Spec("-cb", // console output buffering: none, line or block
+			new Class[] { String.class }, "Usage: -cb none|line|block",
+			new Options.Action() {
+			    public void processOption(String flag,
+				    Object[] params) {
+				String mode = (String) params[0];
+				if (mode.equals("none"))
+				    CONSOLE_BUFFERING = ConsoleBuffer.UNBUFFERED;
+				else if (mode.equals("line"))
+				    CONSOLE_BUFFERING = ConsoleBuffer.LINE_BUFFERED;
+				else if (mode.equals("block"))
+				    CONSOLE_BUFFERING = ConsoleBuffer.BLOCK_BUFFERED;
+				else {
+				    System.out.println("Usage: -cb none|line|block\n"
+					    + "Parameter " + mode + " to option " + flag
+					    + " is not none, line or block");
+				    Debug.ASSERT(false);
+				}
+			    }
+			}),
+		new Spec("-tp", // keep exited user threads for reuse by Exec and Fork
+			new Class[] { Integer.class }, "Usage: -tp <threads>",
+			new Options.Action() {
+			    public void processOption(String flag,
+				    Object[] params) {
+				THREAD_POOL_SIZE = (Integer) params[0];
+			    }
+			}),
 	});
     }
 
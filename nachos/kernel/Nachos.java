@@ -33,13 +33,18 @@ import nachos.kernel.devices.test.ConsoleTest;
 import nachos.kernel.devices.test.NetworkTest;
 import nachos.kernel.devices.test.SerialTest;
 import nachos.kernel.threads.CyclicBarrier;
+import nachos.kernel.threads.FairScheduler;
+import nachos.kernel.threads.GangScheduler;
 import nachos.kernel.threads.GenScheduler;
 import nachos.kernel.threads.MultiLevelFeedback;
+import nachos.kernel.threads.PerCPUScheduler;
 import nachos.kernel.threads.RoundRobinScheduler;
 import nachos.kernel.threads.Scheduler;
+import nachos.kernel.threads.StrideScheduler;
 import nachos.kernel.threads.TaskManager;
 import nachos.kernel.userprog.ExceptionHandler;
 import nachos.kernel.userprog.MemoryManager;
+import nachos.kernel.userprog.Poll;
 import nachos.kernel.filesys.FileSystem;
 import nachos.kernel.threads.test.SMPTest;
 import nachos.kernel.threads.test.ThreadTest;
@@ -87,8 +92,10 @@ public class Nachos implements Runnable {
     public void run() {
 	// Initialize device drivers.
 
-	if(Machine.NUM_CONSOLES > 0)
+	if(Machine.NUM_CONSOLES > 0) {
 	    consoleDriver = new ConsoleDriver(Machine.getConsole(0));
+	    consoleDriver.setInputListener(Poll.consoleListener);
+	}
 
 	if(Machine.NUM_DISKS > 0)
 	    diskDriver = new DiskDriver(0);
@@ -189,6 +196,14 @@ public class Nachos implements Runnable {
 	  scheduler = new Scheduler(firstThread);
       else if(options.MULTI_LEV_SCHEDULER)
 	  scheduler = new MultiLevelFeedback(firstThread);
+      else if(options.PER_CPU_SCHEDULER)
+	  scheduler = new PerCPUScheduler(firstThread);
+      else if(options.FAIR_SCHEDULER)
+	  scheduler = new FairScheduler(firstThread);
+      else if(options.STRIDE_SCHEDULER)
+	  scheduler = new StrideScheduler(firstThread, options.LOTTERY);
+      else if(options.GANG_SCHEDULER)
+	  scheduler = new GangScheduler(firstThread);
       else
 	  scheduler = new RoundRobinScheduler(firstThread);
 
@@ -9,12 +9,14 @@ package nachos.kernel.devices;
 import java.io.UnsupportedEncodingException;
 
 import nachos.Debug;
+import nachos.machine.CPU;
 import nachos.machine.Console;
 import nachos.machine.InterruptHandler;
 import nachos.machine.NachosThread;
 import nachos.kernel.Nachos;
 import nachos.kernel.threads.Lock;
 import nachos.kernel.threads.Semaphore;
+import nachos.kernel.threads.SpinLock;
 import nachos.kernel.userprog.UserThread;
 
 /**
@@ -60,6 +62,18 @@ public class ConsoleDriver {
     /** Semaphore used to indicate that an input character is available. */
     private Semaphore charAvail = new Semaphore("Console char avail", 0);
 
+    /** Number of characters typed and not yet taken by getChar(). */
+    private volatile int charsPending;
+
+    /**
+     * Spin lock for charsPending, which the keyboard interrupt handler and
+     * getChar() both update.
+     */
+    private final SpinLock pendingLock = new SpinLock("console pending lock");
+
+    /** Run from the keyboard interrupt handler when a character arrives. */
+    private volatile Runnable inputListener;
+
     /**
      * Semaphore used to indicate that output is ready to accept a new
      * character.
@@ -109,6 +123,17 @@ public class ConsoleDriver {
 	}
     }
 
+    /**
+     * Arrange for something to be told when a character is typed, such as
+     * threads waiting in Poll().  The listener is run from the keyboard
+     * interrupt handler, so it must not block.
+     *
+     * @param listener The listener, or null for none.
+     */
+    public void setInputListener(Runnable listener) {
+	inputListener = listener;
+    }
+
     /**
      * Wait for a character to be available from the console and then return the
      * character.
@@ -116,6 +141,11 @@ public class ConsoleDriver {
     public char getChar() {
 	ensureInputHandler();
 	charAvail.P();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	pendingLock.acquire();
+	charsPending--;
+	pendingLock.release();
+	CPU.setLevel(oldLevel);
 	Debug.ASSERT(console.isInputAvail());
 	// Get the character
 	char ch = console.getChar();
@@ -153,6 +183,16 @@ public class ConsoleDriver {
 	return ch;
     }
 
+    /**
+     * Determine whether getChar() would return without waiting.
+     * 
+     * @return true if a character has been typed and not yet read.
+     */
+    public boolean isInputAvailable() {
+	ensureInputHandler();
+	return charsPending > 0;
+    }
+
     /**
      * Print a single character on the console. If the console is already busy
      * outputting a character, then wait for it to finish before attempting to
@@ -249,7 +289,13 @@ public class ConsoleDriver {
 	@Override
 	public void handleInterrupt() {
 	    Debug.println('S', "Input handler called");
+	    pendingLock.acquire();
+	    charsPending++;
+	    pendingLock.release();
 	    charAvail.V();
+	    Runnable listener = inputListener;
+	    if (listener != null)
+		listener.run();
 	    echoBufferSem.V();
 	}
 
@@ -64,6 +64,9 @@ class FileHeader {
     /** Disk sector size for the underlying filesystem. */
     private final int diskSectorSize;
 
+    /** Number of OpenFiles sharing this header, if it was opened by open(). */
+    int openCount;
+
     /**
      * Allocate a new "in-core" file header.
      * 
@@ -489,11 +492,13 @@ class FileHeader {
     }
     
     /**
-     * Update the number of bytes, but don't write back yet. bytes passed in are added to the total numBytes
-     * @param bytes
+     * Update the number of bytes after a write, but don't write back yet.
+     * The file grows only if the write went past its end; bytes overwritten
+     * inside the file do not count again.
+     * @param end the offset just past the last byte written
      */
-    public void updateNumBytes(int bytes){
-	numBytes += bytes;
+    public void updateNumBytes(int end){
+	numBytes = Math.max(numBytes, end);
     }
     
     /**
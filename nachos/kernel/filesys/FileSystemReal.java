@@ -13,10 +13,13 @@ package nachos.kernel.filesys;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import nachos.Debug;
 import nachos.kernel.Nachos;
 import nachos.kernel.devices.DiskDriver;
+import nachos.kernel.threads.Lock;
 
 /**
  * This class manages the overall operation of the file system.
@@ -106,6 +109,22 @@ class FileSystemReal extends FileSystem {
   
   /** Sector size of the disk. */
   public final int diskSectorSize;
+
+  /**
+   * Lock serializing changes to the free map and to directories, so that
+   * two threads creating, removing or extending files cannot hand out the
+   * same sector.  Reading and writing file data does not take it.
+   */
+  private final Lock metadataLock = new Lock("filesystem metadata lock");
+
+  /**
+   * In-core headers of the files opened with open(), by header sector.
+   * Every OpenFile on a file shares its one header, so that all of them
+   * see the same length and sectors and none overwrites another's changes
+   * when writing it back; each keeps only its own seek position.  Guarded
+   * by the metadata lock.
+   */
+  private final Map<Integer, FileHeader> openHeaders = new HashMap<Integer, FileHeader>();
   
   // Initial file sizes for the bitmap and directory; until the file system
   // supports extensible files, the directory size sets the maximum number 
@@ -243,8 +262,8 @@ class FileSystemReal extends FileSystem {
    *	no free entry for file in directory;
    *	no free space for data blocks for the file.
    *
-   * Note that this implementation assumes there is no concurrent access
-   *	to the file system!
+   * Concurrent creates, removes and file extensions are serialized by
+   *	the metadata lock.
    *
    * @param name  The path of file to be created.
    * @param initialSize  The size of file to be created.
@@ -260,6 +279,8 @@ class FileSystemReal extends FileSystem {
     Debug.printf('f', "Creating file %s, size %d\n", path, 
 		 new Long(initialSize));
     
+    boolean locked = lockMetadata();
+
     //Get parent directory of the file
     int directorySector = getDirectory(path);
     Directory directory = new Directory(NumDirEntries, this);
@@ -290,6 +311,7 @@ class FileSystemReal extends FileSystem {
 	}
       }
     }
+    unlockMetadata(locked);
     return success;
   }
   
@@ -343,10 +365,44 @@ class FileSystemReal extends FileSystem {
     Debug.printf('f', "Opening file %s\n", path);
     sector = directory.find(getFileName(path)); 
     if (sector >= 0) 		
-      openFile = new OpenFileReal(sector, this);// name was found in directory 
+      openFile = new OpenFileReal(sector, openHeader(sector), this);// name was found in directory 
     return openFile;			        // return null if not found
   }
 
+  /**
+   * Find the shared header of an open file, reading it in if the file is
+   * not open already, and count one more OpenFile using it.
+   *
+   * @param sector The location on disk of the file header.
+   * @return the header.
+   */
+  FileHeader openHeader(int sector) {
+      boolean locked = lockMetadata();
+      FileHeader hdr = openHeaders.get(sector);
+      if (hdr == null) {
+	  hdr = new FileHeader(this);
+	  hdr.fetchFrom(sector);
+	  openHeaders.put(sector, hdr);
+      }
+      hdr.openCount++;
+      unlockMetadata(locked);
+      return hdr;
+  }
+
+  /**
+   * Count one less OpenFile using a shared header, and forget the header
+   * when the last one closes.
+   *
+   * @param sector The location on disk of the file header.
+   */
+  void closeHeader(int sector) {
+      boolean locked = lockMetadata();
+      FileHeader hdr = openHeaders.get(sector);
+      if (hdr != null && --hdr.openCount == 0)
+	  openHeaders.remove(sector);
+      unlockMetadata(locked);
+  }
+
   /**
    * Delete a file from the file system.  This requires:
    *    Remove it from the directory;
@@ -365,12 +421,14 @@ class FileSystemReal extends FileSystem {
     FileHeader fileHdr;
     int sector;
     
+    boolean locked = lockMetadata();
     int directorySector = getDirectory(path);
     OpenFile dirFile = new OpenFileReal(directorySector, this);
     directory.fetchFrom(dirFile);
 
     sector = directory.find(getFileName(path));
     if (sector == -1) {
+       unlockMetadata(locked);
        return false;			 // file not found 
     }
     fileHdr = new FileHeader(this);
@@ -386,6 +444,7 @@ class FileSystemReal extends FileSystem {
     freeMap.writeBack(freeMapFile);		// flush to disk
     OpenFileReal parentFile = new OpenFileReal(directorySector, this);
     directory.writeBack(parentFile);
+    unlockMetadata(locked);
     return true;
   } 
 
@@ -473,6 +532,7 @@ class FileSystemReal extends FileSystem {
       Debug.printf('f', "Creating Diretory %s, size %d\n", path, 
   		 new Long(initialSize));
 
+      boolean locked = lockMetadata();
       int directorySector = getDirectory(path);
       OpenFile dirFile = new OpenFileReal(directorySector, this);
       directory.fetchFrom(dirFile);
@@ -507,6 +567,7 @@ class FileSystemReal extends FileSystem {
         }
       }
       
+      unlockMetadata(locked);
       return success;
   }
   
@@ -520,6 +581,7 @@ class FileSystemReal extends FileSystem {
       int sector;
       
       //Load up root directory
+      boolean locked = lockMetadata();
       Directory directory = new Directory(NumDirEntries, this);
       int directorySector = getDirectory(path);
       OpenFile dirFile = new OpenFileReal(directorySector, this);
@@ -527,6 +589,7 @@ class FileSystemReal extends FileSystem {
 
       sector = directory.find(getFileName(path));
       if (sector == -1) {
+         unlockMetadata(locked);
          return false;			 // directory not found 
       }
       
@@ -553,8 +616,34 @@ class FileSystemReal extends FileSystem {
       OpenFileReal parentFile = new OpenFileReal(directorySector, this);
       directory.writeBack(parentFile);
       
+      unlockMetadata(locked);
+      return true;
+  }
+  
+  /**
+   * Acquire the metadata lock, unless the current thread already holds it
+   * (creating or removing a file writes the free map and directory
+   * through OpenFileReal, which locks again).
+   *
+   * @return true if the lock was acquired here, and so must be released
+   * by unlockMetadata().
+   */
+  boolean lockMetadata() {
+      if (metadataLock.isHeldByCurrentThread())
+	  return false;
+      metadataLock.acquire();
       return true;
   }
+
+  /**
+   * Release the metadata lock, if lockMetadata() acquired it.
+   *
+   * @param acquired The value returned by lockMetadata().
+   */
+  void unlockMetadata(boolean acquired) {
+      if (acquired)
+	  metadataLock.release();
+  }
   
   /**
    * 
@@ -1,5 +1,7 @@
 package nachos.kernel.filesys;
 
+import nachos.kernel.threads.Lock;
+
 /**
  * Class to keep track of open files and their unique ids
  *
@@ -10,6 +12,16 @@ public class OpenFileEntry {
     public String name;
     public OpenFile file;
     
+    /** Number of file descriptors referring to this entry */
+    public int refCount = 1;
+    
+    /**
+     * Serializes reads and writes that share this entry's seek position.
+     * User buffers are faulted in before it is taken, as a fault that ends
+     * the program would leave it held.
+     */
+    public final Lock lock = new Lock("open file lock");
+    
     /**
      * Create a new entry. Id is set in the syscall
      * @param file
@@ -10,6 +10,8 @@
 
 package nachos.kernel.filesys;
 
+import java.util.Arrays;
+
 import nachos.Debug;
 
 /**
@@ -40,9 +42,15 @@ class OpenFileReal implements OpenFile {
     /** Size of a disk sector in the underlying filesystem. */
     private final int diskSectorSize;
 
-    /** Cached copy of the header for this file. */
+    /**
+     * Cached copy of the header for this file, shared with every other
+     * OpenFile on the file if it was opened by FileSystemReal.open().
+     */
     private FileHeader hdr;
 
+    /** Is hdr shared, to be given back to the filesystem on close? */
+    private final boolean shared;
+
     /** Current position within the file. */
     private int seekPosition;
 
@@ -67,6 +75,27 @@ class OpenFileReal implements OpenFile {
 	seekPosition = 0;
 	this.filesystem = filesystem;
 	diskSectorSize = filesystem.diskSectorSize;
+	shared = false;
+    }
+
+    /**
+     * Open a Nachos file whose header is shared with other OpenFiles on the
+     * same file.  Only the seek position belongs to this OpenFile.
+     * 
+     * @param sector
+     *            The location on disk of the file header for this file.
+     * @param hdr
+     *            The shared header, from FileSystemReal.openHeader().
+     * @param filesystem
+     *            The underlying filesystem in which this file exists.
+     */
+    OpenFileReal(int sector, FileHeader hdr, FileSystemReal filesystem) {
+	this.hdr = hdr;
+	this.headerSector = sector;
+	seekPosition = 0;
+	this.filesystem = filesystem;
+	diskSectorSize = filesystem.diskSectorSize;
+	shared = true;
     }
 
     /**
@@ -146,8 +175,8 @@ class OpenFileReal implements OpenFile {
      */
     public int readAt(byte[] into, int index, int numBytes, long position) {
 	int fileLength = hdr.fileLength();
-	int i, firstSector, lastSector, numSectors;
-	byte buf[];
+	int i, firstSector, lastSector;
+	byte buf[] = null;
 
 	// numBytes must be positive
 	if ((numBytes <= 0))
@@ -160,22 +189,30 @@ class OpenFileReal implements OpenFile {
 
 	firstSector = (int) position / diskSectorSize;
 	lastSector = ((int) position + numBytes - 1) / diskSectorSize;
-	numSectors = 1 + lastSector - firstSector;
-
-	// Read in all the full and partial sectors that we need
-	buf = new byte[numSectors * diskSectorSize];
 
 	Debug.printf('f', "Reading %d bytes at %d, from file of length %d.\n",
 		new Integer(numBytes), new Long(position), new Integer(
 			fileLength));
 
-	for (i = firstSector; i <= lastSector; i++)
-	    filesystem.readSector(hdr.byteToSector(i * diskSectorSize), buf,
-		    (i - firstSector) * diskSectorSize);
-
-	// copy the part we want
-	System.arraycopy(buf, (int) position - (firstSector * diskSectorSize),
-		into, index, numBytes);
+	for (i = firstSector; i <= lastSector; i++) {
+	    int start = Math.max((int) position, i * diskSectorSize);
+	    int end = Math.min((int) position + numBytes, (i + 1) * diskSectorSize);
+	    int sectorNum = hdr.byteToSector(i * diskSectorSize);
+	    int dest = index + (start - (int) position);
+
+	    if (end - start == diskSectorSize) {
+		// Whole sector: read it straight into the caller's buffer
+		filesystem.readSector(sectorNum, into, dest);
+	    } else {
+		// Partial sector at the start or end: stage it, and copy
+		// the part we want
+		if (buf == null)
+		    buf = new byte[diskSectorSize];
+		filesystem.readSector(sectorNum, buf, 0);
+		System.arraycopy(buf, start - i * diskSectorSize, into, dest,
+			end - start);
+	    }
+	}
 	
 	return numBytes;
 
@@ -193,7 +230,9 @@ class OpenFileReal implements OpenFile {
      * We must first read in any sectors that will be partially written, so that
      * we don't overwrite the unmodified portion. We then copy in the data that
      * will be modified, and write back all the full or partial sectors that are
-     * part of the request.
+     * part of the request.  Sectors that are wholly overwritten are written
+     * straight from the caller's buffer; only the partial sectors at either
+     * end are staged.
      * 
      * @param from
      *            The buffer containing the data to be written to disk.
@@ -208,12 +247,8 @@ class OpenFileReal implements OpenFile {
     public int writeAt(byte from[], int index, int numBytes, long position) {
 
 	int fileLength = hdr.fileLength();
-	int i, firstSector, lastSector, numSectors;
-	boolean firstAligned, lastAligned;
-	byte buf[];
-	BitMap freeMap = new BitMap(filesystem.numDiskSectors);
-	OpenFileReal freeMapFile = new OpenFileReal(filesystem.FreeMapSector, filesystem);
-	freeMap.fetchFrom(freeMapFile);
+	int i, firstSector, lastSector;
+	byte buf[] = null;
 	
 	// numBytes must be positive
 	if (numBytes <= 0)
@@ -225,41 +260,51 @@ class OpenFileReal implements OpenFile {
 
 	firstSector = (int) position / diskSectorSize;
 	lastSector = ((int) position + numBytes - 1) / diskSectorSize;
-	numSectors = 1 + lastSector - firstSector;
 
-	buf = new byte[numSectors * diskSectorSize];
-
-	// Only read in sectors if they have already been allocated
-//	if (fileLength != 0) {
-//	    
-//	    firstAligned = (position == (firstSector * diskSectorSize));
-//	    lastAligned = ((position + numBytes) == ((lastSector + 1) * diskSectorSize));
-//
-//	    // read in first and last sector, if they are to be partially
-//	    // modified
-//	    if (!firstAligned)
-//		readAt(buf, 0, diskSectorSize, firstSector * diskSectorSize);
-//	    if (!lastAligned && ((firstSector != lastSector) || firstAligned))
-//		readAt(buf, (lastSector - firstSector) * diskSectorSize,
-//			diskSectorSize, lastSector * diskSectorSize);
-//	}
-	// copy in the bytes we want to change
-	System.arraycopy(from, index, buf, (int) position
-		- (firstSector * diskSectorSize), numBytes);
-
-	// write modified sectors back
+	// Allocate any new sectors first, holding the metadata lock only
+	// while the free map is being changed
+	int sectors[] = new int[1 + lastSector - firstSector];
+	boolean locked = filesystem.lockMetadata();
+	BitMap freeMap = new BitMap(filesystem.numDiskSectors);
+	OpenFileReal freeMapFile = new OpenFileReal(filesystem.FreeMapSector, filesystem);
+	freeMap.fetchFrom(freeMapFile);
 	for (i = firstSector; i <= lastSector; i++) {
-
 	    // extend will check if file needs to be extended or not
 	    hdr.extend(freeMap, i * diskSectorSize);
-	    int sectorNum = hdr.byteToSector(i * diskSectorSize);
-	    int offset = (i - firstSector) * diskSectorSize;
-	    filesystem.writeSector(sectorNum, buf, offset);
+	    sectors[i - firstSector] = hdr.byteToSector(i * diskSectorSize);
+	}
+	filesystem.unlockMetadata(locked);
+
+	for (i = firstSector; i <= lastSector; i++) {
+	    int start = Math.max((int) position, i * diskSectorSize);
+	    int end = Math.min((int) position + numBytes, (i + 1) * diskSectorSize);
+	    int src = index + (start - (int) position);
+	    int sectorNum = sectors[i - firstSector];
+
+	    if (end - start == diskSectorSize) {
+		// Whole sector: write it straight from the caller's buffer
+		filesystem.writeSector(sectorNum, from, src);
+	    } else {
+		// Partial sector: read in what is already there, if the
+		// sector held part of the file, and merge in the new bytes
+		if (buf == null)
+		    buf = new byte[diskSectorSize];
+		if (i * diskSectorSize < fileLength)
+		    filesystem.readSector(sectorNum, buf, 0);
+		else
+		    Arrays.fill(buf, (byte) 0);
+		System.arraycopy(from, src, buf, start - i * diskSectorSize,
+			end - start);
+		filesystem.writeSector(sectorNum, buf, 0);
+	    }
 	}
 
-	// Update total number of bytes in file and write back the changes
-	hdr.updateNumBytes(numBytes);
+	// Update total number of bytes in file and write back the changes,
+	// under the metadata lock as the header may be shared
+	locked = filesystem.lockMetadata();
+	hdr.updateNumBytes((int) position + numBytes);
 	hdr.writeBack(headerSector);
+	filesystem.unlockMetadata(locked);
 
 	return numBytes;
     }
@@ -282,6 +327,8 @@ class OpenFileReal implements OpenFile {
     public int close() {
 	// If it is possible that we made changes to the FileHeader,
 	// it must be written back to the disk at this point.
+	if (shared && hdr != null)
+	    filesystem.closeHeader(headerSector);
 	hdr = null; // Ensure further access fails.
 	return (1);
     }
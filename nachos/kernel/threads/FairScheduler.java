@@ -0,0 +1,541 @@
+// FairScheduler.java
+//
+// Copyright (c) 1992-1993 The Regents of the University of California.
+// Copyright (c) 1998 Rice University.
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.threads;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.machine.CPU;
+import nachos.machine.InterruptHandler;
+import nachos.machine.Machine;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+import nachos.machine.Timer;
+import nachos.util.FIFOQueue;
+import nachos.util.Queue;
+
+/**
+ * A "completely fair" scheduler.  Each thread accumulates virtual runtime
+ * as it uses the CPU: the ticks it has run, scaled down by its weight
+ * relative to NiceZeroWeight, so that a thread of twice the weight is
+ * charged half as much for the same time.  Ready threads are kept in a
+ * balanced tree ordered by virtual runtime, and the thread chosen to run
+ * is always the one that has had least, so that over time each thread
+ * gets a share of the CPU in proportion to its weight.
+ *
+ * The time slice is not fixed: SchedLatency ticks are divided among the
+ * runnable threads in proportion to their weights, so that each of them
+ * runs once in about that time, but a slice is never less than
+ * MinGranularity.  When its slice is used up a thread is put back in the
+ * tree, and keeps the CPU if it still has the least virtual runtime.
+ *
+ * A thread that wakes up after blocking is given at least the smallest
+ * virtual runtime in the tree, less SleeperCredit, so that a thread that
+ * sleeps a lot gets to run soon after it wakes up, but cannot bank a long
+ * sleep and then hold the CPU to catch up.  A new thread starts with the
+ * weight of the thread that made it ready.
+ *
+ * Selected with the -CFS option.
+ */
+public class FairScheduler extends GenScheduler {
+
+    /** Weight of a thread of ordinary priority. */
+    public static final int NiceZeroWeight = 1024;
+
+    /** Period, in ticks, in which every runnable thread should get to run. */
+    private static final int SchedLatency = 20 * Timer.DefaultInterval;
+
+    /** The shortest time slice, in ticks. */
+    private static final int MinGranularity = 2 * Timer.DefaultInterval;
+
+    /** Virtual runtime a waking thread may be ahead of the others by. */
+    private static final int SleeperCredit = SchedLatency / 2;
+
+    /** Threads that are ready to run, in order of virtual runtime. */
+    private final TreeSet<Entity> readyTree;
+
+    /** Scheduling state of each thread that has not yet finished. */
+    private final Map<NachosThread, Entity> entities;
+
+    /** The entity running on each CPU, or null if the CPU is idle. */
+    private final Entity[] running;
+
+    /** Sum of the weights of the threads that are running or ready. */
+    private volatile int totalWeight;
+
+    /** Lower bound on the virtual runtime of every runnable thread. */
+    private long minVruntime;
+
+    /** Sequence number of the next entity, to order equal runtimes. */
+    private long nextSeq;
+
+    /** Queue of CPUs that are idle. */
+    private final Queue<CPU> cpuList;
+
+    /** Terminated thread awaiting reclamation of its stack. */
+    private volatile NachosThread threadToBeDestroyed;
+
+    /** Spin lock for mutually exclusive access to scheduler state. */
+    private final SpinLock mutex = new SpinLock("scheduler mutex");
+
+    /**
+     * Scheduling state of one thread.
+     */
+    private static class Entity {
+	final NachosThread thread;
+
+	/** Order of creation, to break ties in the tree. */
+	final long seq;
+
+	/** Weighted ticks of CPU time used. */
+	long vruntime;
+
+	/** The thread's weight. */
+	int weight = NiceZeroWeight;
+
+	/** Is the thread running or ready, and counted in totalWeight? */
+	boolean runnable;
+
+	/** Time up to which the thread has been charged. */
+	int lastCharged;
+
+	/** Time at which the current slice began. */
+	int sliceStart;
+
+	Entity(NachosThread thread, long seq) {
+	    this.thread = thread;
+	    this.seq = seq;
+	}
+    }
+
+    /**
+     * Initialize the scheduler.
+     * Set the tree of ready threads to empty.
+     * Initialize the list of CPUs to contain all the available CPUs.
+     *
+     * @param firstThread  The first NachosThread to run.
+     */
+    public FairScheduler(NachosThread firstThread) {
+	super(firstThread);
+	readyTree = new TreeSet<Entity>(new Comparator<Entity>() {
+	    public int compare(Entity a, Entity b) {
+		if(a.vruntime != b.vruntime)
+		    return a.vruntime < b.vruntime ? -1 : 1;
+		return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+	    }
+	});
+	entities = new HashMap<NachosThread, Entity>();
+	running = new Entity[Machine.NUM_CPUS];
+	cpuList = new FIFOQueue<CPU>();
+
+	Debug.println('+', "Initializing completely fair scheduler");
+
+	// Add all the CPUs to the idle CPU list, and set up their time-slice timers.
+	// A timer is only started when its CPU is given a thread to run.
+	for(int i = 0; i < Machine.NUM_CPUS; i++) {
+	    CPU cpu = Machine.getCPU(i);
+	    cpuList.offer(cpu);
+
+	    Timer timer = cpu.timer;
+	    timer.setHandler(new TimerInterruptHandler(timer, i));
+	}
+
+	Entity first = new Entity(firstThread, nextSeq++);
+	entities.put(firstThread, first);
+	first.runnable = true;
+	totalWeight = first.weight;
+
+	// Dispatch firstThread on the first CPU.
+	CPU firstCPU = cpuList.poll();
+	TickControl.enable(firstCPU);
+	startRunning(first, firstCPU);
+	firstCPU.dispatch(firstThread);
+    }
+
+    /**
+     * Stop the timers on all CPUs, in preparation for shutdown.
+     */
+    public void stop() {
+	for(int i = 0; i < Machine.NUM_CPUS; i++) {
+	    CPU cpu = Machine.getCPU(i);
+	    cpu.timer.stop();
+	}
+    }
+
+    /**
+     * Print the number of timer interrupts each CPU took.
+     */
+    public void printStats() {
+	TickControl.printStats();
+    }
+
+    /**
+     * Set the weight of a thread.  The thread's share of the CPU, while
+     * it competes with others, is in proportion to its weight.
+     *
+     * @param thread The thread.
+     * @param weight The new weight, at least 1.
+     */
+    public void setWeight(NachosThread thread, int weight) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	Entity e = entityOf(thread);
+	boolean queued = readyTree.remove(e);
+	weight = Math.max(1, weight);
+	if(e.runnable)
+	    totalWeight += weight - e.weight;
+	e.weight = weight;
+	if(queued)
+	    readyTree.add(e);
+	mutex.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Set the weight of a thread from its tickets, DefaultTickets being
+     * worth NiceZeroWeight.
+     */
+    public void setShare(NachosThread thread, int tickets) {
+	setWeight(thread, tickets * NiceZeroWeight / StrideScheduler.DefaultTickets);
+    }
+
+    /**
+     * Find the scheduling state of a thread, making it if the thread has
+     * not been seen before.  A new thread takes the weight of the current
+     * thread, which is the one that created it.
+     * Assumes that the scheduler mutex is held.
+     */
+    private Entity entityOf(NachosThread thread) {
+	Entity e = entities.get(thread);
+	if(e == null) {
+	    e = new Entity(thread, nextSeq++);
+	    e.vruntime = minVruntime;
+	    Entity parent = entities.get(NachosThread.currentThread());
+	    if(parent != null)
+		e.weight = parent.weight;
+	    entities.put(thread, e);
+	}
+	return e;
+    }
+
+    /**
+     * Mark a thread as ready, but not running, and put it in the tree for
+     * later scheduling onto a CPU.  If there are idle CPUs then threads are
+     * dispatched onto CPUs until either all CPUs are in use or there are no
+     * more threads ready to run.
+     *
+     * @param thread The thread to be put on the ready list.
+     */
+    public void readyToRun(NachosThread thread) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	makeReady(thread);
+	dispatchIdleCPUs();
+	mutex.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Mark a thread as ready and put it in the tree, counting its weight
+     * if it was not already runnable.  A thread waking up is brought
+     * forward to no more than SleeperCredit behind the others.
+     * Assumes that interrupts are disabled and that the scheduler mutex is held.
+     *
+     * @param thread The thread to be put on the ready list.
+     */
+    private void makeReady(NachosThread thread) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
+	SchedStats.ready(thread);
+	Entity e = entityOf(thread);
+	if(!e.runnable) {
+	    e.runnable = true;
+	    totalWeight += e.weight;
+	    e.vruntime = Math.max(e.vruntime, minVruntime - SleeperCredit);
+	}
+	Debug.println('r', "Putting thread on ready tree: " + thread.name
+		+ ", vruntime " + e.vruntime);
+	thread.setStatus(NachosThread.READY);
+	readyTree.add(e);
+    }
+
+    /**
+     * If there are idle CPUs and threads ready to run, dispatch threads on CPUs
+     * until either all CPUs are in use or no more threads are ready to run.
+     * Assumes that interrupts have been disabled and that the scheduler mutex
+     * is held.
+     */
+    private void dispatchIdleCPUs() {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
+	while(!readyTree.isEmpty() && !cpuList.isEmpty()) {
+	    Entity e = readyTree.pollFirst();
+	    CPU cpu = cpuList.poll();
+	    startRunning(e, cpu);
+	    Debug.println('r', "Dispatching " + e.thread.name + " on " + cpu.name);
+	    TickControl.busy(cpu);
+	    SchedStats.dispatched(e.thread);
+	    cpu.dispatch(e.thread);
+	}
+    }
+
+    /**
+     * Record that a thread is about to run on a CPU, and start its slice.
+     * Assumes that the scheduler mutex is held.
+     */
+    private void startRunning(Entity e, CPU cpu) {
+	running[cpu.unit] = e;
+	e.lastCharged = e.sliceStart = Simulation.stats.totalTicks;
+	minVruntime = Math.max(minVruntime, e.vruntime);
+    }
+
+    /**
+     * Add the time a thread has run since it was last charged to its
+     * virtual runtime.  Assumes that the scheduler mutex is held.
+     */
+    private void charge(Entity e) {
+	int now = Simulation.stats.totalTicks;
+	e.vruntime += (long)(now - e.lastCharged) * NiceZeroWeight / e.weight;
+	e.lastCharged = now;
+    }
+
+    /**
+     * @return the length in ticks of a thread's time slice: its share of
+     * SchedLatency, but at least MinGranularity.
+     */
+    private int sliceOf(Entity e) {
+	int total = Math.max(totalWeight, e.weight);
+	return Math.max(MinGranularity, (int)((long)SchedLatency * e.weight / total));
+    }
+
+    /**
+     * Yield the current CPU, either to another thread, or else leave it idle.
+     * The current thread is charged for the time it has run.  If it wants
+     * to keep running and still has the least virtual runtime, it does;
+     * otherwise it goes back in the tree (or blocks, or finishes), and the
+     * thread with the least virtual runtime runs instead.
+     *
+     * This method must be called with interrupts disabled.
+     * When it eventually returns, the same will again be true.
+     *
+     * @param status  The status desired by the currently executing thread.
+     * @param  toRelease  If non-null, a spinlock held by the caller that is to be released
+     * atomically with relinquishing the CPU.
+     */
+    private void yieldCPU(int status, SpinLock toRelease) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	CPU currentCPU = CPU.currentCPU();
+	NachosThread currentThread = NachosThread.currentThread();
+
+	mutex.acquire();
+	// A finishing thread's state has already been dropped.
+	Entity current = null;
+	if(status != NachosThread.FINISHED) {
+	    current = entityOf(currentThread);
+	    charge(current);
+	}
+	Entity next = readyTree.isEmpty() ? null : readyTree.first();
+
+	// If the current thread wants to keep running and no other thread
+	// has had less of the CPU, give it a new slice.
+	if(status == NachosThread.RUNNING
+		&& (next == null || current.vruntime <= next.vruntime)) {
+	    current.sliceStart = Simulation.stats.totalTicks;
+	    mutex.release();
+	    Debug.println('r', "No other thread to run -- " + currentThread.name
+		    			+ " continuing");
+	    return;
+	}
+	if(next != null)
+	    readyTree.pollFirst();
+	Debug.println('r', "Next thread to run: "
+		+ (next == null ? "(none)" : next.thread.name));
+
+	// The current thread will be suspending -- save its context.
+	currentThread.saveState();
+
+	if(toRelease != null)
+	    toRelease.release();
+	if(status == NachosThread.BLOCKED && current.runnable) {
+	    current.runnable = false;
+	    totalWeight -= current.weight;
+	}
+	if(next != null) {
+	    // Switch the CPU from currentThread to nextThread.
+	    Debug.println('r', "Switching " + CPU.getName() +
+		    " from " + currentThread.name +
+		    " to " + next.thread.name);
+
+	    if(status == NachosThread.RUNNING) {
+		currentThread.setStatus(NachosThread.READY);
+		readyTree.add(current);
+	    } else if(status == NachosThread.BLOCKED) {
+		currentThread.setStatus(status);
+	    }
+	    startRunning(next, currentCPU);
+	    SchedStats.switched(currentThread, status, next.thread);
+	    CPU.switchTo(next.thread, mutex);
+	} else {
+	    // There is nothing for this CPU to do -- send it to the idle list.
+	    Debug.println('r', "Switching " + CPU.getName() +
+		    " from " + currentThread.name +
+		    " to idle");
+
+	    running[currentCPU.unit] = null;
+	    cpuList.offer(currentCPU);
+	    if(status != NachosThread.FINISHED)
+		currentThread.setStatus(status);
+	    TickControl.idle(currentCPU);
+	    SchedStats.switched(currentThread, status, null);
+	    CPU.idle(mutex);
+	}
+	// Control returns here when currentThread has been rescheduled,
+	// perhaps on a different CPU.
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	currentThread.restoreState();
+
+	Debug.println('r', "Now in thread: " + currentThread.name);
+    }
+
+    /**
+     * Relinquish the CPU if another thread has had less of it.
+     */
+    public void yieldThread () {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+
+	Debug.println('r', "Yielding thread: " + NachosThread.currentThread().name);
+
+	yieldCPU(NachosThread.RUNNING, null);
+	// Control returns here when currentThread is rescheduled.
+
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Relinquish the CPU, because the current thread is going to block.
+     * This method assumes interrupts are disabled.
+     *
+     * @param  toRelease  A spinlock held by the caller that is to be released atomically
+     * with relinquishing the CPU.
+     */
+    public void sleepThread (SpinLock toRelease) {
+	NachosThread currentThread = NachosThread.currentThread();
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+
+	Debug.println('r', "Sleeping thread: " + currentThread.name);
+
+	yieldCPU(NachosThread.BLOCKED, toRelease);
+	// Control returns here when currentThread is rescheduled.
+	// The caller is responsible for re-enabling interrupts.
+    }
+
+    /**
+     * Called by a thread to terminate itself.  Its scheduling state is
+     * dropped, and the next thread to finish destroys it.
+     */
+    public void finishThread() {
+	CPU.setLevel(CPU.IntOff);
+	NachosThread currentThread = NachosThread.currentThread();
+
+	Debug.println('r', "Finishing thread: " + currentThread.name);
+
+	currentThread.setStatus(NachosThread.FINISHED);
+
+	// Delete the carcass of any thread that died previously.
+	mutex.acquire();
+	if (threadToBeDestroyed != null) {
+	    threadToBeDestroyed.destroy();
+	    threadToBeDestroyed = null;
+	}
+	threadToBeDestroyed = currentThread;
+	Entity e = entities.remove(currentThread);
+	if(e != null && e.runnable) {
+	    e.runnable = false;
+	    totalWeight -= e.weight;
+	}
+	mutex.release();
+
+	yieldCPU(NachosThread.FINISHED, null);
+	// not reached
+    }
+
+    /**
+     * Forget the scheduling state of a blocked thread that is about to be
+     * given another program to run: it starts again from the minimum virtual runtime,
+     * with the weight of the thread that re-arms it.
+     *
+     * @param thread The thread, which is blocked.
+     */
+    public void forgetThread(NachosThread thread) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	Entity e = entities.remove(thread);
+	if(e != null && e.runnable) {
+	    e.runnable = false;
+	    totalWeight -= e.weight;
+	}
+	mutex.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Interrupt handler for the time-slice timer of one CPU.  It makes the
+     * interrupted thread yield once it has used up its slice.
+     */
+    private class TimerInterruptHandler implements InterruptHandler {
+
+	/** The Timer device this is a handler for. */
+	private final Timer timer;
+
+	/** The CPU the timer belongs to. */
+	private final int unit;
+
+	/**
+	 * Initialize an interrupt handler for a specified Timer device.
+	 *
+	 * @param timer  The device this handler is going to handle.
+	 * @param unit  The number of the CPU the timer belongs to.
+	 */
+	public TimerInterruptHandler(Timer timer, int unit) {
+	    this.timer = timer;
+	    this.unit = unit;
+	}
+
+	public void handleInterrupt() {
+	    TickControl.tick();
+	    TimerWheel.tick();
+	    Entity e = running[unit];
+	    if(e != null && Simulation.stats.totalTicks - e.sliceStart >= sliceOf(e)) {
+		Debug.println('i', "Timer interrupt: " + timer.name);
+		yieldOnReturn();
+	    }
+	}
+
+	/**
+	 * Cause a context switch in the interrupted thread when the
+	 * handler returns.
+	 */
+	private void yieldOnReturn() {
+	    Debug.println('i', "Yield on interrupt return requested");
+	    CPU.setOnInterruptReturn
+	    (new Runnable() {
+		public void run() {
+		    if(NachosThread.currentThread() != null) {
+			Debug.println('r', "Yielding current thread on interrupt return");
+			Nachos.scheduler.yieldThread();
+		    } else {
+			Debug.println('i', "No current thread on interrupt return, skipping yield");
+		    }
+		}
+	    });
+	}
+    }
+}
@@ -0,0 +1,596 @@
+// GangScheduler.java
+//
+// Copyright (c) 1992-1993 The Regents of the University of California.
+// Copyright (c) 1998 Rice University.
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.threads;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.userprog.UserThread;
+import nachos.machine.CPU;
+import nachos.machine.InterruptHandler;
+import nachos.machine.Machine;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+import nachos.machine.Timer;
+import nachos.util.FIFOQueue;
+
+/**
+ * A gang scheduler, for multiprocessors.  The user threads of a program
+ * form a gang, once there are at least two of them.  Fork gives the new
+ * thread a copy of the address space rather than sharing it, so a gang is
+ * keyed by AddrSpace.gangId: the threads of a program and of everything
+ * forked from it, which cooperate through shared memory segments.  Time
+ * is divided into slices of Quantum timer interrupts, and the gangs take
+ * turns at being the active gang, one slice each.  While a gang is active
+ * its ready threads are run ahead of everything else, on as many CPUs as
+ * they need, so that threads which synchronize with each other (at
+ * barriers, say) are all running at the same time rather than waiting for
+ * each other to be scheduled.
+ *
+ * CPUs the active gang leaves over -- because it has fewer threads than
+ * there are CPUs, or some of them are blocked -- are filled with other
+ * work: first kernel threads and single-threaded processes, in FIFO order,
+ * then threads of the other gangs.  These fillers are time-sliced every
+ * Quantum interrupts, and are preempted at the next timer interrupt when
+ * a thread of the active gang becomes ready and finds no CPU free.  When
+ * a slice ends, the threads of the old gang are preempted the same way by
+ * those of the new one.  A gang with no thread ready or running is passed
+ * over.
+ *
+ * At shutdown, printStats() gives the number of slices and how much of
+ * the CPU time used by gang threads they got within their own gang's
+ * slice, as opposed to filling in during another's.
+ */
+public class GangScheduler extends GenScheduler {
+
+    /** Number of timer interrupts in a slice, and in a filler's quantum. */
+    private static final int Quantum = 10;
+
+    /** Length of a slice in ticks. */
+    private static final int SliceTicks = Quantum * Timer.DefaultInterval;
+
+    /** Scheduling classes of a ready thread, best first. */
+    private static final int ACTIVE = 0, FILLER = 1, OTHER_GANG = 2;
+
+    /** The gang with each gang id that has live user threads. */
+    private final Map<Integer, Gang> gangs;
+
+    /** The gang of each live user thread. */
+    private final Map<NachosThread, Gang> memberOf;
+
+    /** The gangs, in the order in which they take turns. */
+    private final FIFOQueue<Gang> gangOrder;
+
+    /** The gang whose slice it is, or null. */
+    private Gang active;
+
+    /** The time at which the current slice ends. */
+    private int sliceEnd;
+
+    /** Ready threads that do not belong to a gang. */
+    private final FIFOQueue<NachosThread> others;
+
+    /** The gang of the thread running on each CPU, or null. */
+    private final Gang[] onCPU;
+
+    /** Queue of CPUs that are idle. */
+    private final FIFOQueue<CPU> cpuList;
+
+    /** Terminated thread awaiting reclamation of its stack. */
+    private volatile NachosThread threadToBeDestroyed;
+
+    /** Spin lock for mutually exclusive access to scheduler state. */
+    private final SpinLock mutex = new SpinLock("scheduler mutex");
+
+    /** Slices, and slices that some gang was active for. */
+    private int slices, gangSlices;
+
+    /**
+     * Timer interrupts that found a gang thread running in its own slice,
+     * or another's.
+     */
+    private int inSlice, asFiller;
+
+    /**
+     * The user threads of one program and the threads forked from it.
+     */
+    private static class Gang {
+	final int id;
+
+	/** Ready threads of the gang. */
+	final FIFOQueue<NachosThread> ready = new FIFOQueue<NachosThread>();
+
+	/** Live threads of the gang, and how many are running. */
+	int members, running;
+
+	Gang(int id) {
+	    this.id = id;
+	}
+
+	/** Is the gang big enough to be scheduled as one? */
+	boolean isGang() {
+	    return members >= 2;
+	}
+    }
+
+    /**
+     * Initialize the scheduler.
+     * Initialize the list of CPUs to contain all the available CPUs.
+     *
+     * @param firstThread  The first NachosThread to run.
+     */
+    public GangScheduler(NachosThread firstThread) {
+	super(firstThread);
+	gangs = new HashMap<Integer, Gang>();
+	memberOf = new HashMap<NachosThread, Gang>();
+	gangOrder = new FIFOQueue<Gang>();
+	others = new FIFOQueue<NachosThread>();
+	onCPU = new Gang[Machine.NUM_CPUS];
+	cpuList = new FIFOQueue<CPU>();
+
+	Debug.println('+', "Initializing gang scheduler");
+
+	// Add all the CPUs to the idle CPU list, and set up their time-slice timers.
+	// A timer is only started when its CPU is given a thread to run.
+	for(int i = 0; i < Machine.NUM_CPUS; i++) {
+	    CPU cpu = Machine.getCPU(i);
+	    cpuList.offer(cpu);
+
+	    Timer timer = cpu.timer;
+	    timer.setHandler(new TimerInterruptHandler(timer, i));
+	}
+
+	// Dispatch firstThread on the first CPU.
+	CPU firstCPU = cpuList.poll();
+	TickControl.enable(firstCPU);
+	firstCPU.dispatch(firstThread);
+    }
+
+    /**
+     * Stop the timers on all CPUs, in preparation for shutdown.
+     */
+    public void stop() {
+	for(int i = 0; i < Machine.NUM_CPUS; i++) {
+	    CPU cpu = Machine.getCPU(i);
+	    cpu.timer.stop();
+	}
+    }
+
+    /**
+     * Find the gang of a thread.  A user thread joins the gang with the id
+     * of its address space the first time it is seen, making the gang if
+     * need be.
+     * Assumes that the scheduler mutex is held.
+     *
+     * @return the gang, or null for a kernel thread.
+     */
+    private Gang gangOf(NachosThread thread) {
+	Gang g = memberOf.get(thread);
+	if(g != null || !(thread instanceof UserThread))
+	    return g;
+	int id = ((UserThread)thread).space.gangId;
+	g = gangs.get(id);
+	if(g == null) {
+	    g = new Gang(id);
+	    gangs.put(id, g);
+	    gangOrder.offer(g);
+	}
+	g.members++;
+	memberOf.put(thread, g);
+	return g;
+    }
+
+    /**
+     * Take a thread out of its gang, if it is in one.  A gang left with one
+     * member is no longer scheduled as a gang, so any thread of it that is
+     * ready moves to the list of other ready threads, where it takes turns
+     * with them instead of waiting for a slice that will never come.  A
+     * gang left with none is dropped.
+     * Assumes that the scheduler mutex is held.
+     */
+    private void leaveGang(NachosThread thread) {
+	Gang g = memberOf.remove(thread);
+	if(g == null)
+	    return;
+	g.members--;
+	if(!g.isGang()) {
+	    while(!g.ready.isEmpty())
+		others.offer(g.ready.poll());
+	    if(active == g)
+		active = null;
+	}
+	if(g.members == 0) {
+	    gangs.remove(g.id);
+	    gangOrder.remove(g);
+	}
+    }
+
+    /**
+     * Mark a thread as ready, but not running, and put it on the ready list
+     * for later scheduling onto a CPU.
+     * If there are idle CPUs then threads are dispatched onto CPUs until either
+     * all CPUs are in use or there are no more threads are ready to run.
+     *
+     * @param thread The thread to be put on the ready list.
+     */
+    public void readyToRun(NachosThread thread) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	makeReady(thread);
+	dispatchIdleCPUs();
+	mutex.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Mark a thread as ready and put it on the ready list of its gang, if
+     * the gang has at least two members now, or else on the list of other
+     * ready threads.
+     * Assumes that interrupts are disabled and that the scheduler mutex is held.
+     *
+     * @param thread The thread to be put on the ready list.
+     */
+    private void makeReady(NachosThread thread) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
+	SchedStats.ready(thread);
+	Gang g = gangOf(thread);
+	Debug.println('r', "Putting thread on ready list: " + thread.name
+		+ (g != null && g.isGang() ? " (gang)" : ""));
+	thread.setStatus(NachosThread.READY);
+	if(g != null && g.isGang())
+	    g.ready.offer(thread);
+	else
+	    others.offer(thread);
+    }
+
+    /**
+     * Begin a new slice, if the current one is over: make the next gang
+     * with a thread ready or running the active gang.
+     * Assumes that the scheduler mutex is held.
+     *
+     * @return true if a new slice has begun.
+     */
+    private boolean rotate() {
+	int now = Simulation.stats.totalTicks;
+	if(now < sliceEnd)
+	    return false;
+	sliceEnd = now + SliceTicks;
+	slices++;
+	active = null;
+	for(int i = gangOrder.size(); i > 0; i--) {
+	    Gang g = gangOrder.poll();
+	    gangOrder.offer(g);
+	    if(g.isGang() && (!g.ready.isEmpty() || g.running > 0)) {
+		active = g;
+		gangSlices++;
+		break;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Take the next thread to run off the ready lists: a thread of the
+     * active gang, else a thread that is not in a gang, else a thread of
+     * another gang.
+     * Assumes that the scheduler mutex is held.
+     *
+     * @param worst The worst class (ACTIVE, FILLER or OTHER_GANG) to take
+     * a thread from.
+     * @return the thread, or null if there is none good enough.
+     */
+    private NachosThread takeNext(int worst) {
+	if(active != null && !active.ready.isEmpty())
+	    return active.ready.poll();
+	if(worst >= FILLER && !others.isEmpty())
+	    return others.poll();
+	if(worst >= OTHER_GANG) {
+	    for(Gang g : gangOrder) {
+		if(!g.ready.isEmpty())
+		    return g.ready.poll();
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * @return the class of a thread: ACTIVE, FILLER or OTHER_GANG.
+     */
+    private int classOf(Gang g) {
+	if(g == null || !g.isGang())
+	    return FILLER;
+	return g == active ? ACTIVE : OTHER_GANG;
+    }
+
+    /**
+     * If there are idle CPUs and threads ready to run, dispatch threads on CPUs
+     * until either all CPUs are in use or no more threads are ready to run.
+     * Assumes that interrupts have been disabled and that the scheduler mutex
+     * is held.
+     */
+    private void dispatchIdleCPUs() {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
+	rotate();
+	while(!cpuList.isEmpty()) {
+	    NachosThread thread = takeNext(OTHER_GANG);
+	    if(thread == null)
+		break;
+	    CPU cpu = cpuList.poll();
+	    startRunning(thread, cpu);
+	    Debug.println('r', "Dispatching " + thread.name + " on " + cpu.name);
+	    TickControl.busy(cpu);
+	    SchedStats.dispatched(thread);
+	    cpu.dispatch(thread);
+	}
+    }
+
+    /**
+     * Record that a thread is about to run on a CPU.
+     * Assumes that the scheduler mutex is held.
+     */
+    private void startRunning(NachosThread thread, CPU cpu) {
+	Gang g = gangOf(thread);
+	onCPU[cpu.unit] = g;
+	if(g != null)
+	    g.running++;
+    }
+
+    /**
+     * Record that the thread running on a CPU is leaving it.
+     * Assumes that the scheduler mutex is held.
+     */
+    private void stopRunning(CPU cpu) {
+	Gang g = onCPU[cpu.unit];
+	onCPU[cpu.unit] = null;
+	if(g != null)
+	    g.running--;
+    }
+
+    /**
+     * Yield the current CPU, either to another thread, or else leave it idle.
+     * A thread that wants to keep running does so unless a thread of the
+     * same class or a better one is ready: the active gang first, then
+     * threads not in a gang, then threads of other gangs.
+     *
+     * This method must be called with interrupts disabled.
+     * When it eventually returns, the same will again be true.
+     *
+     * @param status  The status desired by the currently executing thread.
+     * @param  toRelease  If non-null, a spinlock held by the caller that is to be released
+     * atomically with relinquishing the CPU.
+     */
+    private void yieldCPU(int status, SpinLock toRelease) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	CPU currentCPU = CPU.currentCPU();
+	NachosThread currentThread = NachosThread.currentThread();
+
+	mutex.acquire();
+	rotate();
+	Gang current = onCPU[currentCPU.unit];
+	NachosThread nextThread = takeNext(status == NachosThread.RUNNING
+		? classOf(current) : OTHER_GANG);
+
+	// If the current thread wants to keep running and there is no
+	// thread as good to run, do nothing.
+	if(status == NachosThread.RUNNING && nextThread == null) {
+	    mutex.release();
+	    Debug.println('r', "No other thread to run -- " + currentThread.name
+		    			+ " continuing");
+	    return;
+	}
+	Debug.println('r', "Next thread to run: "
+		+ (nextThread == null ? "(none)" : nextThread.name));
+
+	// The current thread will be suspending -- save its context.
+	currentThread.saveState();
+
+	if(toRelease != null)
+	    toRelease.release();
+	stopRunning(currentCPU);
+	if(status == NachosThread.FINISHED)
+	    leaveGang(currentThread);
+	if(nextThread != null) {
+	    // Switch the CPU from currentThread to nextThread.
+	    Debug.println('r', "Switching " + CPU.getName() +
+		    " from " + currentThread.name +
+		    " to " + nextThread.name);
+
+	    if(status == NachosThread.RUNNING) {
+		makeReady(currentThread);
+	    } else if(status == NachosThread.BLOCKED) {
+		currentThread.setStatus(status);
+	    }
+	    startRunning(nextThread, currentCPU);
+	    SchedStats.switched(currentThread, status, nextThread);
+	    CPU.switchTo(nextThread, mutex);
+	} else {
+	    // There is nothing for this CPU to do -- send it to the idle list.
+	    Debug.println('r', "Switching " + CPU.getName() +
+		    " from " + currentThread.name +
+		    " to idle");
+
+	    cpuList.offer(currentCPU);
+	    if(status != NachosThread.FINISHED)
+		currentThread.setStatus(status);
+	    TickControl.idle(currentCPU);
+	    SchedStats.switched(currentThread, status, null);
+	    CPU.idle(mutex);
+	}
+	// Control returns here when currentThread has been rescheduled,
+	// perhaps on a different CPU.
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	currentThread.restoreState();
+
+	Debug.println('r', "Now in thread: " + currentThread.name);
+    }
+
+    /**
+     * Relinquish the CPU if a thread at least as deserving is ready to run.
+     */
+    public void yieldThread () {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+
+	Debug.println('r', "Yielding thread: " + NachosThread.currentThread().name);
+
+	yieldCPU(NachosThread.RUNNING, null);
+	// Control returns here when currentThread is rescheduled.
+
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Relinquish the CPU, because the current thread is going to block.
+     * This method assumes interrupts are disabled.
+     *
+     * @param  toRelease  A spinlock held by the caller that is to be released atomically
+     * with relinquishing the CPU.
+     */
+    public void sleepThread (SpinLock toRelease) {
+	NachosThread currentThread = NachosThread.currentThread();
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+
+	Debug.println('r', "Sleeping thread: " + currentThread.name);
+
+	yieldCPU(NachosThread.BLOCKED, toRelease);
+	// Control returns here when currentThread is rescheduled.
+	// The caller is responsible for re-enabling interrupts.
+    }
+
+    /**
+     * Called by a thread to terminate itself.  The next thread to finish
+     * destroys it.
+     */
+    public void finishThread() {
+	CPU.setLevel(CPU.IntOff);
+	NachosThread currentThread = NachosThread.currentThread();
+
+	Debug.println('r', "Finishing thread: " + currentThread.name);
+
+	currentThread.setStatus(NachosThread.FINISHED);
+
+	// Delete the carcass of any thread that died previously.
+	mutex.acquire();
+	if (threadToBeDestroyed != null) {
+	    threadToBeDestroyed.destroy();
+	    threadToBeDestroyed = null;
+	}
+	threadToBeDestroyed = currentThread;
+	mutex.release();
+
+	yieldCPU(NachosThread.FINISHED, null);
+	// not reached
+    }
+
+    /**
+     * Forget the scheduling state of a blocked thread that is about to be
+     * given another program to run: it leaves its gang, to join the gang of
+     * its new address space when it is next made ready.
+     *
+     * @param thread The thread, which is blocked.
+     */
+    public void forgetThread(NachosThread thread) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	leaveGang(thread);
+	mutex.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Print how many slices there were, and how gang threads got their
+     * CPU time.
+     */
+    public void printStats() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	int total = inSlice + asFiller;
+	Debug.println('+', "Gang slices: " + gangSlices + " of " + slices);
+	Debug.printf('+', "Gang thread interrupts: %d, %.1f%% in own slice, %.1f%% as filler\n",
+		total, total == 0 ? 0.0 : 100.0 * inSlice / total,
+		total == 0 ? 0.0 : 100.0 * asFiller / total);
+	mutex.release();
+	CPU.setLevel(oldLevel);
+	TickControl.printStats();
+    }
+
+    /**
+     * Interrupt handler for the time-slice timer.  It begins a new slice
+     * when the current one is over, preempts a thread that is not in the
+     * active gang when one of the gang's threads is waiting for a CPU, and
+     * time-slices the other threads every Quantum interrupts.
+     */
+    private class TimerInterruptHandler implements InterruptHandler {
+
+	/** The Timer device this is a handler for. */
+	private final Timer timer;
+
+	/** The CPU the timer belongs to. */
+	private final int unit;
+
+	private int numInterrupts;
+
+	/**
+	 * Initialize an interrupt handler for a specified Timer device.
+	 *
+	 * @param timer  The device this handler is going to handle.
+	 * @param unit  The number of the CPU the timer belongs to.
+	 */
+	public TimerInterruptHandler(Timer timer, int unit) {
+	    this.timer = timer;
+	    this.unit = unit;
+	    numInterrupts = 1;
+	}
+
+	public void handleInterrupt() {
+	    TickControl.tick();
+	    TimerWheel.tick();
+
+	    mutex.acquire();
+	    rotate();
+	    Gang g = onCPU[unit];
+	    int cls = classOf(g);
+	    if(cls == ACTIVE)
+		inSlice++;
+	    else if(cls == OTHER_GANG)
+		asFiller++;
+	    boolean preempt = cls != ACTIVE && active != null
+		    && !active.ready.isEmpty();
+	    mutex.release();
+
+	    if(preempt || (cls != ACTIVE && numInterrupts >= Quantum)) {
+		numInterrupts = 1;
+		Debug.println('i', "Timer interrupt: " + timer.name);
+		yieldOnReturn();
+	    } else {
+		numInterrupts++;
+	    }
+	}
+
+	/**
+	 * Called to cause a context switch in the interrupted thread when
+	 * the handler returns.
+	 */
+	private void yieldOnReturn() {
+	    Debug.println('i', "Yield on interrupt return requested");
+	    CPU.setOnInterruptReturn
+	    (new Runnable() {
+		public void run() {
+		    if(NachosThread.currentThread() != null) {
+			Debug.println('r', "Yielding current thread on interrupt return");
+			Nachos.scheduler.yieldThread();
+		    } else {
+			Debug.println('i', "No current thread on interrupt return, skipping yield");
+		    }
+		}
+	    });
+	}
+    }
+}
@@ -3,8 +3,6 @@
  */
 package nachos.kernel.threads;
 
-import java.util.LinkedList;
-
 import nachos.Debug;
 import nachos.kernel.Nachos;
 import nachos.kernel.userprog.UserThread;
@@ -26,9 +24,6 @@ public abstract class GenScheduler {
     /** Queue of threads that are ready to run, but not running. */
     private final Queue<NachosThread> readyList;
 
-    /** Queue of threads that are sleeping. */
-    public LinkedList<NachosThread> sleepList;
-
     /**
      * Initialize the scheduler.
      * Set the list of ready but not running threads to empty.
@@ -38,7 +33,6 @@ public abstract class GenScheduler {
      */
     public GenScheduler(NachosThread firstThread) {
 	readyList = new FIFOQueue<NachosThread>();
-	sleepList = new LinkedList<NachosThread>();
     };
 
     /**
@@ -112,6 +106,61 @@ public abstract class GenScheduler {
 
     }
 
+    /**
+     * Forget what the scheduler knows about a blocked thread that is about
+     * to be given another program to run, as finishThread() does for a
+     * thread that terminates, so that it is scheduled afresh.
+     *
+     * @param thread The thread, which is blocked.
+     */
+    public void forgetThread(NachosThread thread) {
+    }
+
+    /**
+     * Set the share of the CPU a thread is entitled to, for schedulers that
+     * divide the CPU in proportion.  Others ignore it.
+     *
+     * @param thread The thread.
+     * @param tickets Its share, in tickets; StrideScheduler.DefaultTickets
+     * is an ordinary share.
+     */
+    public void setShare(NachosThread thread, int tickets) {
+    }
+
+    /**
+     * Put the current thread into the real-time (earliest deadline first)
+     * class, or take it out, for schedulers that have one.
+     *
+     * @param thread The current thread.
+     * @param period Its period in ticks, or 0 to leave the class.
+     * @param budget Ticks of CPU time it needs in each period.
+     * @param deadline Ticks after the start of each period by which it needs them.
+     * @return 0, or -1 if the reservation is not valid or not admitted,
+     * or the scheduler has no real-time class.
+     */
+    public int setRealTime(NachosThread thread, int period, int budget, int deadline) {
+	return -1;
+    }
+
+    /**
+     * Restrict the current thread to a set of CPUs, for schedulers that
+     * honour affinity masks.  If the current CPU is not in the set, the
+     * thread moves to one that is.
+     *
+     * @param thread The current thread.
+     * @param mask One bit per CPU, bit i for CPU i.
+     * @return 0, or -1 if the scheduler does not honour affinity masks.
+     */
+    public int setAffinity(UserThread thread, int mask) {
+	return -1;
+    }
+
+    /**
+     * Print scheduler statistics at shutdown, if the scheduler keeps any.
+     */
+    public void printStats() {
+    }
+
     /**
      * Returns a queue object for a given thread. To be used in the MLF scheduler.
      * @return
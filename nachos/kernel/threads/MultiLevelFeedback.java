@@ -3,11 +3,11 @@
  */
 package nachos.kernel.threads;
 
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.Map;
 
 import nachos.Debug;
 import nachos.kernel.Nachos;
-import nachos.kernel.userprog.UserThread;
 import nachos.machine.CPU;
 import nachos.machine.InterruptHandler;
 import nachos.machine.Machine;
@@ -17,22 +17,35 @@ import nachos.util.FIFOQueue;
 import nachos.util.Queue;
 
 /**
+ * Multilevel feedback scheduler.  Each thread has one QueueObject, made
+ * the first time the thread is made ready and dropped when it finishes,
+ * which carries its level and CPU burst estimate from one wakeup to the
+ * next.  Choosing the next thread is a scan for the lowest set bit of
+ * nonEmptyLevels, and the quantum of each level is looked up in a table
+ * rather than recomputed, so the cost of scheduling does not grow with
+ * the number of threads or with how long the system has been running.
+ * Threads in the real-time class (see RealTimeClass) are run ahead of
+ * every level, earliest deadline first.
+ *
  * @author maedeh
  *
  */
 public class MultiLevelFeedback extends GenScheduler{
 
-    /** Keep track of the dispatched object */
-    public QueueObject justDispatched;
+    /** The queue object of the thread running on each CPU, or null if idle. */
+    private final QueueObject[] dispatched;
     
-    /** Keep track of all the queue objects*/
-    public LinkedList<QueueObject> queueObjectList;
+    /** The queue object of each thread that has not yet finished. */
+    private final Map<NachosThread, QueueObject> queueObjects;
     
     /** Array of priority queues */
     public Queue[] priorityArray;
     
-    /** Queue of threads that are sleeping. */
-    public LinkedList<NachosThread> sleepList;
+    /** Bit i is set when priorityArray[i] is not empty. */
+    private int nonEmptyLevels;
+    
+    /** The quantum of each level in ticks: 2^index * HIGHEST_QUANTUM. */
+    private final int[] quantum;
     
     /** Queue of CPUs that are idle. */
     private final Queue<CPU> cpuList;
@@ -43,6 +56,9 @@ public class MultiLevelFeedback extends GenScheduler{
     /** Spin lock for mutually exclusive access to scheduler state. */
     private final SpinLock mutex = new SpinLock("scheduler mutex");
 
+    /** Real-time threads, which are run ahead of every level. */
+    private final RealTimeClass realTime = new RealTimeClass();
+
     /**
      * Initialize the scheduler.
      * Set the list of ready but not running threads to empty.
@@ -55,44 +71,40 @@ public class MultiLevelFeedback extends GenScheduler{
 	
 	Debug.println('+', "Initializing MultiLevel Feedback scheduler");
 	
+	// Levels are kept in the bits of an int.
+	Debug.ASSERT(Nachos.options.NUM_P_LEVELS >= 1 && Nachos.options.NUM_P_LEVELS <= 31);
 	priorityArray = new Queue[Nachos.options.NUM_P_LEVELS];	//initialize an array size of NUM_P_LEVELS
+	quantum = new int[Nachos.options.NUM_P_LEVELS];
 	
 	for(int i=0; i<Nachos.options.NUM_P_LEVELS; i++){
-	    Queue<NachosThread> priorityQueue = new FIFOQueue<NachosThread>();
+	    Queue<QueueObject> priorityQueue = new FIFOQueue<QueueObject>();
 	    priorityArray[i] = priorityQueue;			//add the priority Queue to the array
-	    
-	    // we will set each queue's quantum in interrupt handler using this formula:
-	    // 2^index * HIGHES_QUANTUM
+	    quantum[i] = (1 << i) * Nachos.options.HIGHEST_QUANTUM;
 	}
 	
-	sleepList = new LinkedList<NachosThread>();
 	cpuList = new FIFOQueue<CPU>();
-	queueObjectList = new LinkedList<QueueObject>();
+	queueObjects = new HashMap<NachosThread, QueueObject>();
+	dispatched = new QueueObject[Machine.NUM_CPUS];
 	
-	// Add all the CPUs to the idle CPU list, and start their time-slice timers,
-	// if we are using them.
+	// Add all the CPUs to the idle CPU list, and set up their time-slice timers.
+	// A timer is only started when its CPU is given a thread to run.
 	for(int i = 0; i < Machine.NUM_CPUS; i++) {
 	    CPU cpu = Machine.getCPU(i);
 	    cpuList.offer(cpu);
 	    
 	    Timer timer = cpu.timer;
-	    timer.setHandler(new TimerInterruptHandler(timer));
-	    timer.start();
-	    
+	    timer.setHandler(new TimerInterruptHandler(timer, i));
 	}
 
-	//Create a queue object for the thread and add it to list
+	//Create a queue object for the thread
 	QueueObject object = new QueueObject(firstThread);
-	queueObjectList.offer(object);
-	
-	justDispatched = object;
-	
-	//Add the object to the MLF scheduler
-	int priorityIndex = getPriorityIndex(object);
-	
+	object.currentPLevelIndex = getPriorityIndex(object);
+	queueObjects.put(firstThread, object);
 	
 	// Dispatch firstThread on the first CPU.
 	CPU firstCPU = cpuList.poll();
+	TickControl.enable(firstCPU);
+	dispatched[firstCPU.unit] = object;
 	firstCPU.dispatch(firstThread);
     };
 
@@ -146,16 +158,70 @@ public class MultiLevelFeedback extends GenScheduler{
      */
     private void makeReady(NachosThread thread) {
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
+	SchedStats.ready(thread);
 	
-	//Create new queue object for thread and add it in.
-	QueueObject object = new QueueObject(thread);
+	thread.setStatus(NachosThread.READY);
+	QueueObject object = objectOf(thread);
+	if(realTime.offer(thread)) {
+	    Debug.println('r', "Putting thread " + thread.name + " in real-time class");
+	    return;
+	}
 	object.currentPLevelIndex = getPriorityIndex(object);
-	queueObjectList.offer(object);
 	
 	Debug.println('r', "Putting thread " + thread.name + " on MLF queue, priority: " + object.currentPLevelIndex);
-	priorityArray[object.currentPLevelIndex].offer(object);	//add this thrd to the highest priority queue that has a quantum >= avgCPUBurst for this thrd
-	thread.setStatus(NachosThread.READY);
-
+	enqueue(object);	//add this thrd to the highest priority queue that has a quantum >= avgCPUBurst for this thrd
+    }
+    
+    /**
+     * Find a thread's queue object, or create one the first time it is needed.
+     * Assumes that the scheduler mutex is held.
+     */
+    private QueueObject objectOf(NachosThread thread) {
+	QueueObject object = queueObjects.get(thread);
+	if(object == null) {
+	    object = new QueueObject(thread);
+	    queueObjects.put(thread, object);
+	}
+	return object;
+    }
+    
+    /**
+     * Take the next thread to run: the real-time thread with the earliest
+     * deadline, else the first of the highest priority non-empty level.
+     * Assumes that the scheduler mutex is held.
+     *
+     * @return the queue object of the thread, or null if no thread is ready.
+     */
+    private QueueObject takeNext() {
+	NachosThread thread = realTime.poll();
+	if(thread != null)
+	    return objectOf(thread);
+	return dequeue();
+    }
+    
+    /**
+     * Put a queue object at the end of the queue for its level.
+     * Assumes that the scheduler mutex is held.
+     */
+    private void enqueue(QueueObject object) {
+	priorityArray[object.currentPLevelIndex].offer(object);
+	nonEmptyLevels |= 1 << object.currentPLevelIndex;
+    }
+    
+    /**
+     * Take the first queue object from the highest priority non-empty level.
+     * Assumes that the scheduler mutex is held.
+     *
+     * @return the queue object, or null if no thread is ready.
+     */
+    private QueueObject dequeue() {
+	if(nonEmptyLevels == 0)
+	    return null;
+	int i = Integer.numberOfTrailingZeros(nonEmptyLevels);
+	QueueObject object = (QueueObject) priorityArray[i].poll();
+	if(priorityArray[i].isEmpty())
+	    nonEmptyLevels &= ~(1 << i);
+	return object;
     }
     
     /**
@@ -169,11 +235,9 @@ public class MultiLevelFeedback extends GenScheduler{
 	object.avgCPUBurst = 0.4 * object.sampleVal + 0.6 * object.avgCPUBurst;	//new avgCpu burst
 	
 	int i; 	//index to return
-	for(i=0; i < Nachos.options.NUM_P_LEVELS; i++){
-	    double thisQuantum = Math.pow(2, i)* Nachos.options.HIGHEST_QUANTUM;
-	    
-	    //check if thisQuantum is greater or equal to avg
-	    if(thisQuantum >= object.avgCPUBurst)
+	for(i=0; i < quantum.length - 1; i++){
+	    //check if this level's quantum is greater or equal to avg
+	    if(quantum[i] >= object.avgCPUBurst)
 		break;
 	    
 	}
@@ -191,20 +255,21 @@ public class MultiLevelFeedback extends GenScheduler{
     private void dispatchIdleCPUs() {
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
 	
-	//For each level starting from the highest, check if there are any threads to run.
-	for(int i = 0; i < Nachos.options.NUM_P_LEVELS; i++){
-	    while (!priorityArray[i].isEmpty() && !cpuList.isEmpty()) {
-		QueueObject object = (QueueObject) priorityArray[i].poll();
-		
-		//Set the dispatched object
-		justDispatched = object;
-		
-		NachosThread thread = (NachosThread) object.thread;
-		CPU cpu = cpuList.poll();
-		Debug.println('r', "Dispatching " + thread.name + " on "+ cpu.name);
-		cpu.dispatch(thread);
-		// The current CPU is not relinquished here -- immediate return.
-	    }
+	//Dispatch threads, highest priority first, while there are idle CPUs.
+	while ((realTime.hasReady() || nonEmptyLevels != 0) && !cpuList.isEmpty()) {
+	    QueueObject object = takeNext();
+	    NachosThread thread = object.thread;
+	    CPU cpu = cpuList.poll();
+	    
+	    //Set the dispatched object
+	    dispatched[cpu.unit] = object;
+	    realTime.switched(cpu.unit, thread);
+	    
+	    TickControl.busy(cpu);
+	    Debug.println('r', "Dispatching " + thread.name + " on "+ cpu.name);
+	    SchedStats.dispatched(thread);
+	    cpu.dispatch(thread);
+	    // The current CPU is not relinquished here -- immediate return.
 	}
     }
     
@@ -215,20 +280,17 @@ public class MultiLevelFeedback extends GenScheduler{
      * Side effect: thread is removed from the ready list.
      * Assumes that interrupts have been disabled.
      *
+     * @param running  True if the current thread wants to keep running;
+     * if it is a real-time thread with the earliest deadline, null is
+     * returned so that it does.
      * @return the thread to be scheduled onto a CPU.
      */
-    private QueueObject findNextToRun() {
+    private QueueObject findNextToRun(boolean running) {
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
 	mutex.acquire();
 	QueueObject object = null;
-	
-	for(int i=0; i < Nachos.options.NUM_P_LEVELS; i++){
-	    if(!priorityArray[i].isEmpty()) {
-		object = (QueueObject) priorityArray[i].poll();
-		break;
-	    }
-	}
-	
+	if(!(running && realTime.keepRunning(CPU.currentCPU().unit)))
+	    object = takeNext();
 	mutex.release();
 	return object;
     }
@@ -258,7 +320,7 @@ public class MultiLevelFeedback extends GenScheduler{
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
 	CPU currentCPU = CPU.currentCPU();
 	NachosThread currentThread = NachosThread.currentThread();
-	QueueObject object = findNextToRun();
+	QueueObject object = findNextToRun(status == NachosThread.RUNNING);
 	NachosThread nextThread = null;
 	if(object!=null)
 	    nextThread = object.thread;
@@ -289,25 +351,35 @@ public class MultiLevelFeedback extends GenScheduler{
 	    if(status != NachosThread.FINISHED && status != NachosThread.BLOCKED){
 		currentThread.setStatus(NachosThread.READY);
 		
-		QueueObject currentObject = findQueueObject(currentThread);
-		currentObject.currentPLevelIndex = getPriorityIndex(currentObject);	//set the object's index periodically
-		priorityArray[currentObject.currentPLevelIndex].offer(currentObject); 	//offer the object to the queue that
+		if(!realTime.offer(currentThread)) {
+		    QueueObject currentObject = findQueueObject(currentThread);
+		    currentObject.currentPLevelIndex = getPriorityIndex(currentObject);	//set the object's index periodically
+		    enqueue(currentObject); 	//offer the object to the queue that
 		
-		Debug.println('r', "Putting the current thread: "+ currentThread.name + " back on MLF queue, priority: " + currentObject.currentPLevelIndex);
+		    Debug.println('r', "Putting the current thread: "+ currentThread.name + " back on MLF queue, priority: " + currentObject.currentPLevelIndex);
+		}
 	    }
 	    
 	    else if(status == NachosThread.BLOCKED) {
 		currentThread.setStatus(status);
+		realTime.block(currentThread);
 	    }
-	    justDispatched = object;
+	    dispatched[currentCPU.unit] = object;
+	    realTime.switched(currentCPU.unit, nextThread);
+	    SchedStats.switched(currentThread, status, nextThread);
 	    CPU.switchTo(nextThread, mutex);
 	} else {
 	    // There is nothing for this CPU to do -- send it to the idle list.
 	    Debug.println('r', "Switching " + CPU.getName() + " from " + currentThread.name + " to idle");
 	    
 	    cpuList.offer(currentCPU);
+	    dispatched[currentCPU.unit] = null;
 	    if(status != NachosThread.FINISHED)
 		currentThread.setStatus(status);
+	    realTime.block(currentThread);
+	    realTime.switched(currentCPU.unit, null);
+	    TickControl.idle(currentCPU);
+	    SchedStats.switched(currentThread, status, null);
 	    CPU.idle(mutex);
 	}
 	// Control returns here when currentThread has been rescheduled,
@@ -400,6 +472,8 @@ public class MultiLevelFeedback extends GenScheduler{
 	    threadToBeDestroyed = null;
 	}
 	threadToBeDestroyed = currentThread;
+	queueObjects.remove(currentThread);
+	realTime.remove(currentThread);
 	mutex.release();
 
 	yieldCPU(NachosThread.FINISHED, null);
@@ -408,7 +482,23 @@ public class MultiLevelFeedback extends GenScheduler{
 	// Interrupts will be re-enabled when the next thread runs or the
 	// current CPU goes idle.
     }
-    
+
+    /**
+     * Forget the scheduling state of a blocked thread that is about to be
+     * given another program to run: its priority level and real-time reservation.
+     *
+     * @param thread The thread, which is blocked.
+     */
+    public void forgetThread(NachosThread thread) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	queueObjects.remove(thread);
+	realTime.remove(thread);
+	mutex.release();
+	CPU.setLevel(oldLevel);
+    }
+
+   
     /**
      * Set the thread's sample size in the case that it doesn't use it's full quantum
      * 
@@ -418,8 +508,10 @@ public class MultiLevelFeedback extends GenScheduler{
 	
 	//Find the queueObject for this thread
 	QueueObject object = findQueueObject(thread);
+	if(object == null)
+	    return;
 	
-	int levelQuantum = (int) Math.pow(2, object.currentPLevelIndex) * Nachos.options.HIGHEST_QUANTUM; //the quantum of the level the thread is currently in
+	int levelQuantum = quantum[object.currentPLevelIndex]; //the quantum of the level the thread is currently in
 	
 	//if the object didn't use it's full quantum
 	if(object.numInterrupts != levelQuantum/100){
@@ -428,11 +520,38 @@ public class MultiLevelFeedback extends GenScheduler{
     }
 
     public QueueObject findQueueObject(NachosThread thread){
-	    
-	for (QueueObject object : queueObjectList)
-	    if (object.thread == thread)
-		return object;
-	return null;
+	return queueObjects.get(thread);
+    }
+
+    /**
+     * Put the current thread into the real-time class, or take it out.
+     *
+     * @param thread The current thread.
+     * @param period Its period in ticks, or 0 to leave the class.
+     * @param budget Ticks of CPU time it needs in each period.
+     * @param deadline Ticks after the start of each period by which it needs them.
+     * @return 0, or -1 if the reservation is not valid or not admitted.
+     */
+    public int setRealTime(NachosThread thread, int period, int budget, int deadline) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	int result = realTime.admit(thread, CPU.currentCPU().unit, period, budget, deadline);
+	mutex.release();
+	CPU.setLevel(oldLevel);
+	return result;
+    }
+
+    /**
+     * Print the deadline counters of the real-time threads, and the
+     * timer interrupts taken by each CPU.
+     */
+    public void printStats() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	realTime.printStats();
+	mutex.release();
+	CPU.setLevel(oldLevel);
+	TickControl.printStats();
     }
     
     /**
@@ -441,31 +560,49 @@ public class MultiLevelFeedback extends GenScheduler{
      * The handleInterrupt() method is called with interrupts disabled each
      * time there is a timer interrupt.
      */
-    private static class TimerInterruptHandler implements InterruptHandler {
+    private class TimerInterruptHandler implements InterruptHandler {
 
 	/** The Timer device this is a handler for. */
 	private final Timer timer;
 	
+	/** The CPU the timer belongs to. */
+	private final int unit;
+	
 	/**
 	 * Initialize an interrupt handler for a specified Timer device.
 	 * 
 	 * @param timer  The device this handler is going to handle.
+	 * @param unit  The number of the CPU the timer belongs to.
 	 */
-	public TimerInterruptHandler(Timer timer) {
+	public TimerInterruptHandler(Timer timer, int unit) {
 	    this.timer = timer;
+	    this.unit = unit;
 	}
 
 	public void handleInterrupt() {
 	    
-	    handleSleep();
+	    TickControl.tick();
+	    TimerWheel.tick();
 	    
-	    //Get the object that just ran
-	    QueueObject object = ((MultiLevelFeedback)Nachos.scheduler).justDispatched;
-	    Debug.println('C', "Avg CPU Usage for thread: "+ object.objectName + ((UserThread)object.thread).processID + " is ====== " + object.avgCPUBurst);
+	    // Charge real-time budgets and start new periods; a thread whose
+	    // period has begun may be ready for an idle CPU, or need this one.
+	    mutex.acquire();
+	    boolean preempt = realTime.tick(unit);
+	    dispatchIdleCPUs();
+	    mutex.release();
 	    
+	    //Get the object that is running on this CPU
+	    QueueObject object = dispatched[unit];
+	    if(object == null)
+		return;
+	    if(preempt) {
+		object.numInterrupts = 1;
+		yieldOnReturn();
+		return;
+	    }
+	    Debug.println('C', "Avg CPU Usage for thread: "+ object.objectName + " is ====== " + object.avgCPUBurst);
 	    
-	    //object.currentPLevelIndex
-	    int levelQuantum = (int) Math.pow(2, object.currentPLevelIndex) * Nachos.options.HIGHEST_QUANTUM;
+	    int levelQuantum = quantum[object.currentPLevelIndex];
 	    
 	    if (object.numInterrupts != levelQuantum/100) {
 		object.numInterrupts++;
@@ -480,41 +617,17 @@ public class MultiLevelFeedback extends GenScheduler{
 		// so that once the interrupt handler is done, it will appear as
 		// if the interrupted thread called yield at the point it is
 		// was interrupted.
-		calcSample();
+		calcSample(object);
 		yieldOnReturn();
 	    }
    
 	}
 	
-	private void handleSleep() {
-	    //For each sleeping thread, 
-	    for (NachosThread s : Nachos.scheduler.sleepList) {
-		UserThread sleepThread = (UserThread)s;
-		
-		sleepThread.numOfTicksToSleep -= 100;		//decrement the number of ticks to sleep for each process
-		
-		if(sleepThread.numOfTicksToSleep <= 0) {	//if the number of ticks to sleep is less than or equal to zero
-		    Nachos.scheduler.sleepList.remove(s);	//remove the thread from scheduler's sleepList  
-		    sleepThread.sleepSemaphore.V();		//wake up the thread
-		    
-		    Debug.println('S', "Waking up the thread: "+ s.name);
-		   
-		}
-		
-	    }
-	    
-	}
-	
 	/**
 	 *  calculates the avg sample for the current thread
 	 */
-	private void calcSample() {
-	    
-	  //Get the object that just ran
-	    QueueObject object = ((MultiLevelFeedback)Nachos.scheduler).justDispatched;
-	    
-	    int currentQuantum = (int)Math.pow(2, object.currentPLevelIndex) * Nachos.options.HIGHEST_QUANTUM;
-	    object.sampleVal = 2 * currentQuantum;  
+	private void calcSample(QueueObject object) {
+	    object.sampleVal = 2 * quantum[object.currentPLevelIndex];  
 	}
 
 	/**
@@ -0,0 +1,638 @@
+// PerCPUScheduler.java
+//
+// Copyright (c) 1992-1993 The Regents of the University of California.
+// Copyright (c) 1998 Rice University.
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.threads;
+
+import java.util.Iterator;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.userprog.UserThread;
+import nachos.machine.CPU;
+import nachos.machine.InterruptHandler;
+import nachos.machine.Machine;
+import nachos.machine.NachosThread;
+import nachos.machine.Releasable;
+import nachos.machine.Simulation;
+import nachos.machine.Timer;
+import nachos.util.FIFOQueue;
+
+/**
+ * A round-robin scheduler that keeps a separate ready queue for each CPU,
+ * rather than one queue for the whole machine.  Each queue has its own
+ * spin lock, so CPUs that are busy with their own threads never contend
+ * with each other: a thread that yields, or is preempted, goes back on the
+ * queue of the CPU it was running on, and readyToRun() puts a thread on the
+ * queue of the CPU that made it ready.
+ *
+ * Work is moved between queues in three ways:
+ * (1) A CPU that runs out of threads steals one from the longest queue
+ * before it goes idle.
+ * (2) When there are idle CPUs, readyToRun() hands them threads straight
+ * away, taking them from the longest queues.
+ * (3) Every BalanceInterval timer intervals, the first CPU to take a timer
+ * interrupt moves threads from the longest queue to the shortest, until their lengths differ by at most one,
+ * and then hands threads to any idle CPUs as in (2), since an idle CPU does
+ * not look at its own queue.  Every timer interrupt also does (2) while any
+ * CPU is idle.
+ *
+ * The list of idle CPUs has a lock of its own, which is only taken when a
+ * CPU goes idle or when some CPU is known to be idle.  To make sure that a
+ * CPU never goes idle while a thread it could run sits on some queue, a
+ * CPU about to go idle first announces itself in idleCount, then looks at
+ * every queue once more; readyToRun() looks at idleCount only after the new
+ * thread is on a queue.  One of the two is then sure to see the other.
+ *
+ * Affinity masks are honoured by keeping a ready thread only on the queue
+ * of a CPU it may run on: readyToRun() and a yielding thread use the
+ * shortest such queue when the local one is not allowed, and stealing and
+ * balancing move only threads that may run on the CPU they go to.
+ *
+ * Selected with the -PCQ option.
+ */
+public class PerCPUScheduler extends GenScheduler {
+
+    /** Number of timer interrupts in a time slice. */
+    private static final int Quantum = 10;
+
+    /** Number of timer intervals between load balancing passes. */
+    private static final int BalanceInterval = 20;
+
+    /**
+     * The time at which the load balancer is next due.  It is not tied to
+     * one CPU, as an idle CPU's timer is stopped.
+     */
+    private volatile int nextBalance;
+
+    /** The ready queues, indexed by CPU number. */
+    private final RunQueue[] runQueues;
+
+    /** Queue of CPUs that are idle. */
+    private final FIFOQueue<CPU> cpuList;
+
+    /** Number of CPUs idle, or about to be. */
+    private volatile int idleCount;
+
+    /** Spin lock for the idle CPU list. */
+    private final SpinLock idleLock = new SpinLock("idle CPU lock");
+
+    /** Terminated thread awaiting reclamation of its stack. */
+    private volatile NachosThread threadToBeDestroyed;
+
+    /** Spin lock protecting threadToBeDestroyed. */
+    private final SpinLock destroyLock = new SpinLock("thread destroy lock");
+
+    /**
+     * The ready queue of one CPU.
+     */
+    private static class RunQueue {
+	/** Threads that are ready to run on this CPU. */
+	final FIFOQueue<NachosThread> threads = new FIFOQueue<NachosThread>();
+
+	/** Spin lock for mutually exclusive access to this queue. */
+	final SpinLock lock;
+
+	/** Number of threads in the queue, readable without the lock. */
+	volatile int length;
+
+	/** Number of threads this CPU has taken from other queues. */
+	int steals;
+
+	/** Number of threads handed to this CPU while it was idle. */
+	int handoffs;
+
+	/** Number of threads moved here by the load balancer. */
+	int balanced;
+
+	RunQueue(int cpu) {
+	    lock = new SpinLock("run queue lock " + cpu);
+	}
+
+	void offer(NachosThread thread) {
+	    threads.offer(thread);
+	    length++;
+	}
+
+	NachosThread poll() {
+	    NachosThread thread = threads.poll();
+	    if(thread != null)
+		length--;
+	    return thread;
+	}
+
+	/** Take the thread that has waited least, which is least likely to
+	 *  be about to run here, among those that may run on a CPU. */
+	NachosThread pollLastFor(int unit) {
+	    Iterator<NachosThread> it = threads.descendingIterator();
+	    while(it.hasNext()) {
+		NachosThread thread = it.next();
+		if(RoundRobinScheduler.mayRunOn(thread, unit)) {
+		    it.remove();
+		    length--;
+		    return thread;
+		}
+	    }
+	    return null;
+	}
+    }
+
+    /**
+     * Initialize the scheduler.
+     * Set each CPU's ready queue to empty.
+     * Initialize the list of idle CPUs to contain all the available CPUs.
+     *
+     * @param firstThread  The first NachosThread to run.
+     */
+    public PerCPUScheduler(NachosThread firstThread) {
+	super(firstThread);
+	cpuList = new FIFOQueue<CPU>();
+	runQueues = new RunQueue[Machine.NUM_CPUS];
+
+	Debug.println('+', "Initializing per-CPU run queue scheduler");
+
+	// Add all the CPUs to the idle CPU list, and set up their time-slice timers.
+	// A timer is only started when its CPU is given a thread to run.
+	for(int i = 0; i < Machine.NUM_CPUS; i++) {
+	    CPU cpu = Machine.getCPU(i);
+	    runQueues[i] = new RunQueue(i);
+	    cpuList.offer(cpu);
+
+	    Timer timer = cpu.timer;
+	    timer.setHandler(new TimerInterruptHandler(timer));
+	}
+	idleCount = Machine.NUM_CPUS - 1;
+
+	// Dispatch firstThread on the first CPU.
+	CPU firstCPU = cpuList.poll();
+	TickControl.enable(firstCPU);
+	firstCPU.dispatch(firstThread);
+    }
+
+    /**
+     * Stop the timers on all CPUs, in preparation for shutdown.
+     */
+    public void stop() {
+	for(int i = 0; i < Machine.NUM_CPUS; i++) {
+	    CPU cpu = Machine.getCPU(i);
+	    cpu.timer.stop();
+	}
+    }
+
+    /**
+     * @return the ready queue of the CPU we are running on, if the thread
+     * may run there, and otherwise the shortest queue of a CPU it may run on.
+     */
+    private RunQueue queueFor(NachosThread thread) {
+	CPU cpu = CPU.currentCPU();
+	int local = cpu == null ? 0 : cpu.unit;
+	if(RoundRobinScheduler.mayRunOn(thread, local))
+	    return runQueues[local];
+	RunQueue best = null;
+	for(int i = 0; i < runQueues.length; i++) {
+	    if(RoundRobinScheduler.mayRunOn(thread, i)
+		    && (best == null || runQueues[i].length < best.length))
+		best = runQueues[i];
+	}
+	return best;
+    }
+
+    /**
+     * Mark a thread as ready, and put it on the ready queue of the current
+     * CPU, or of another CPU if its affinity mask does not allow this one.
+     * If any CPU is idle, hand ready threads to idle CPUs.
+     *
+     * @param thread The thread to be put on the ready list.
+     */
+    public void readyToRun(NachosThread thread) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	RunQueue rq = queueFor(thread);
+	rq.lock.acquire();
+	Debug.println('r', "Putting thread on ready list: " + thread.name);
+	thread.setStatus(NachosThread.READY);
+	SchedStats.ready(thread);
+	rq.offer(thread);
+	rq.lock.release();
+
+	if(idleCount > 0)
+	    dispatchIdleCPUs();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Give each idle CPU a thread, if there is one ready that may run on
+     * it, taking threads from the longest queues.
+     * Assumes that interrupts have been disabled.
+     */
+    private void dispatchIdleCPUs() {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	idleLock.acquire();
+	Iterator<CPU> it = cpuList.iterator();
+	while(it.hasNext()) {
+	    CPU cpu = it.next();
+	    NachosThread thread = steal(cpu.unit);
+	    if(thread == null)
+		continue;
+	    it.remove();
+	    idleCount--;
+	    runQueues[cpu.unit].handoffs++;
+	    Debug.println('r', "Dispatching " + thread.name + " on " + cpu.name);
+	    TickControl.busy(cpu);
+	    SchedStats.dispatched(thread);
+	    cpu.dispatch(thread);
+	}
+	idleLock.release();
+    }
+
+    /**
+     * Take a thread that may run on a CPU from the longest ready queue
+     * that has one.
+     *
+     * @param unit The CPU the thread is for.
+     * @return the thread, or null if there is none.
+     */
+    private NachosThread steal(int unit) {
+	boolean[] tried = new boolean[runQueues.length];
+	while(true) {
+	    RunQueue victim = null;
+	    int v = -1;
+	    for(int i = 0; i < runQueues.length; i++) {
+		if(!tried[i] && runQueues[i].length > 0
+			&& (victim == null || runQueues[i].length > victim.length)) {
+		    victim = runQueues[i];
+		    v = i;
+		}
+	    }
+	    if(victim == null)
+		return null;
+
+	    victim.lock.acquire();
+	    NachosThread thread = victim.pollLastFor(unit);
+	    victim.lock.release();
+	    if(thread != null)
+		return thread;
+	    // Someone else emptied it first, or none of its threads may run
+	    // on this CPU -- look at the others.
+	    tried[v] = true;
+	}
+    }
+
+    /**
+     * Return the next thread to be scheduled onto the current CPU: the
+     * first on its own queue, or else one stolen from the longest queue.
+     * Assumes that interrupts have been disabled.
+     *
+     * @return the thread to be scheduled, or null if there is none.
+     */
+    private NachosThread findNextToRun(RunQueue rq) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	rq.lock.acquire();
+	NachosThread result = rq.poll();
+	rq.lock.release();
+	if(result == null) {
+	    result = steal(CPU.currentCPU().unit);
+	    if(result != null)
+		rq.steals++;
+	}
+	return result;
+    }
+
+
+    /**
+     * Yield the current CPU, either to another thread, or else leave it idle.
+     * As in RoundRobinScheduler, except that a thread that is to keep running
+     * goes back on this CPU's own queue, or on another CPU's if its affinity
+     * mask no longer allows this one, and that a CPU with nothing to do
+     * announces that it is going idle and looks at every queue once more
+     * before it gives up.
+     *
+     * This method must be called with interrupts disabled.
+     * When it eventually returns, the same will again be true.
+     *
+     * @param status  The status desired by the currently executing thread.
+     * @param  toRelease  If non-null, a spinlock held by the caller that is to be released
+     * atomically with relinquishing the CPU.
+     */
+    private void yieldCPU(int status, SpinLock toRelease) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	CPU currentCPU = CPU.currentCPU();
+	RunQueue rq = runQueues[currentCPU.unit];
+	NachosThread currentThread = NachosThread.currentThread();
+	NachosThread nextThread = findNextToRun(rq);
+
+	// If the current thread wants to keep running and there is no other thread to run,
+	// do nothing -- unless its affinity mask no longer allows it this CPU.
+	boolean moving = status == NachosThread.RUNNING
+		&& !RoundRobinScheduler.mayRunOn(currentThread, currentCPU.unit);
+	if(status == NachosThread.RUNNING && nextThread == null && !moving) {
+	    Debug.println('r', "No other thread to run -- " + currentThread.name
+		    			+ " continuing");
+	    return;
+	}
+
+	// The current thread will be suspending -- save its context.
+	currentThread.saveState();
+
+	if(nextThread == null) {
+	    idleLock.acquire();
+	    idleCount++;
+	    nextThread = steal(currentCPU.unit);
+	    if(nextThread == null) {
+		// There is nothing for this CPU to do -- send it to the idle list.
+		Debug.println('r', "Switching " + CPU.getName() +
+			" from " + currentThread.name +
+			" to idle");
+		if(toRelease != null)
+		    toRelease.release();
+		cpuList.offer(currentCPU);
+		TickControl.idle(currentCPU);
+		if(moving) {
+		    Releasable locks = moveAway(currentThread);
+		    SchedStats.switched(currentThread, status, null);
+		    CPU.idle(locks);
+		} else {
+		    if(status != NachosThread.FINISHED)
+			currentThread.setStatus(status);
+		    SchedStats.switched(currentThread, status, null);
+		    CPU.idle(idleLock);
+		}
+	    } else {
+		idleCount--;
+		rq.steals++;
+		idleLock.release();
+	    }
+	}
+
+	if(nextThread != null) {
+	    // Switch the CPU from currentThread to nextThread.
+	    Debug.println('r', "Switching " + CPU.getName() +
+		    " from " + currentThread.name +
+		    " to " + nextThread.name);
+	    if(moving) {
+		idleLock.acquire();
+		Releasable locks = moveAway(currentThread);
+		SchedStats.switched(currentThread, status, nextThread);
+		CPU.switchTo(nextThread, locks);
+	    } else {
+		rq.lock.acquire();
+		if(toRelease != null)
+		    toRelease.release();
+		if(status == NachosThread.RUNNING) {
+		    currentThread.setStatus(NachosThread.READY);
+		    rq.offer(currentThread);
+		} else if(status == NachosThread.BLOCKED) {
+		    currentThread.setStatus(status);
+		}
+		SchedStats.switched(currentThread, status, nextThread);
+		CPU.switchTo(nextThread, rq.lock);
+	    }
+	}
+	// Control returns here when currentThread has been rescheduled,
+	// perhaps on a different CPU.
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	currentThread.restoreState();
+
+	Debug.println('r', "Now in thread: " + currentThread.name);
+    }
+
+    /**
+     * Put the current thread, whose affinity mask does not allow this CPU,
+     * on the queue of a CPU it may run on, and if such a CPU is idle, start
+     * its timer, as an idle CPU does not look at its own queue.  The thread
+     * cannot be dispatched until this CPU has let go of it, so it is left
+     * to the interrupt handler of the woken CPU to do that.  Assumes that
+     * the idle CPU list lock is held.
+     *
+     * @param thread The current thread.
+     * @return an object that releases the idle CPU list lock and the lock
+     * of the thread's new queue, to be passed to CPU.switchTo() or
+     * CPU.idle() so that no other CPU can take the thread before then.
+     */
+    private Releasable moveAway(NachosThread thread) {
+	Debug.println('r', thread.name + " may not run on " + CPU.getName()
+		+ " -- moving it to another queue");
+	final RunQueue home = queueFor(thread);
+	home.lock.acquire();
+	thread.setStatus(NachosThread.READY);
+	home.offer(thread);
+	for(CPU cpu : cpuList) {
+	    if(RoundRobinScheduler.mayRunOn(thread, cpu.unit)) {
+		TickControl.wake(cpu);
+		break;
+	    }
+	}
+	return new Releasable() {
+	    public void release() {
+		home.lock.release();
+		idleLock.release();
+	    }
+	};
+    }
+
+    /**
+     * Relinquish the CPU if any other thread is ready to run.
+     * If so, put the thread on the end of this CPU's ready queue, so that
+     * it will eventually be re-scheduled.
+     */
+    public void yieldThread () {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+
+	Debug.println('r', "Yielding thread: " + NachosThread.currentThread().name);
+
+	yieldCPU(NachosThread.RUNNING, null);
+	// Control returns here when currentThread is rescheduled.
+
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Relinquish the CPU, because the current thread is going to block.
+     * This method assumes interrupts are disabled.
+     *
+     * @param  toRelease  A spinlock held by the caller that is to be released atomically
+     * with relinquishing the CPU.
+     */
+    public void sleepThread (SpinLock toRelease) {
+	NachosThread currentThread = NachosThread.currentThread();
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+
+	Debug.println('r', "Sleeping thread: " + currentThread.name);
+
+	yieldCPU(NachosThread.BLOCKED, toRelease);
+	// Control returns here when currentThread is rescheduled.
+	// The caller is responsible for re-enabling interrupts.
+    }
+
+    /**
+     * Called by a thread to terminate itself.  The next thread to finish
+     * destroys this one, as in RoundRobinScheduler.
+     */
+    public void finishThread() {
+	CPU.setLevel(CPU.IntOff);
+	NachosThread currentThread = NachosThread.currentThread();
+
+	Debug.println('r', "Finishing thread: " + currentThread.name);
+
+	currentThread.setStatus(NachosThread.FINISHED);
+
+	// Delete the carcass of any thread that died previously.
+	destroyLock.acquire();
+	if (threadToBeDestroyed != null) {
+	    threadToBeDestroyed.destroy();
+	    threadToBeDestroyed = null;
+	}
+	threadToBeDestroyed = currentThread;
+	destroyLock.release();
+
+	yieldCPU(NachosThread.FINISHED, null);
+	// not reached
+    }
+
+    /**
+     * Move threads from the longest ready queue to the shortest, until
+     * their lengths differ by at most one or no thread left on the longest
+     * may run on the shortest's CPU.  The two queue locks are taken
+     * in CPU order.  Idle CPUs are then given threads, as the shortest
+     * queue may belong to one.  Assumes that interrupts have been disabled.
+     */
+    private void balance() {
+	RunQueue longest = runQueues[0], shortest = runQueues[0];
+	for(int i = 1; i < runQueues.length; i++) {
+	    if(runQueues[i].length > longest.length)
+		longest = runQueues[i];
+	    if(runQueues[i].length < shortest.length)
+		shortest = runQueues[i];
+	}
+	if(longest.length - shortest.length <= 1)
+	    return;
+
+	RunQueue first = longest, second = shortest;
+	if(indexOf(shortest) < indexOf(longest)) {
+	    first = shortest;
+	    second = longest;
+	}
+	first.lock.acquire();
+	second.lock.acquire();
+	int moved = 0;
+	int target = indexOf(shortest);
+	while(longest.length - shortest.length > 1) {
+	    NachosThread thread = longest.pollLastFor(target);
+	    if(thread == null)
+		break;
+	    shortest.offer(thread);
+	    shortest.balanced++;
+	    moved++;
+	}
+	second.lock.release();
+	first.lock.release();
+	Debug.println('r', "Load balancer moved " + moved + " threads");
+	if(idleCount > 0)
+	    dispatchIdleCPUs();
+    }
+
+    /**
+     * Restrict the current thread to a set of CPUs.  If the current CPU is
+     * not in the set, the thread yields and goes on the queue of a CPU in
+     * the set, starting that CPU if it is idle.
+     *
+     * @param thread The current thread.
+     * @param mask One bit per CPU, bit i for CPU i.
+     * @return 0.
+     */
+    public int setAffinity(UserThread thread, int mask) {
+	thread.affinity = mask;
+	if((mask & (1 << CPU.currentCPU().unit)) == 0)
+	    yieldThread();
+	return 0;
+    }
+
+    private int indexOf(RunQueue rq) {
+	for(int i = 0; i < runQueues.length; i++) {
+	    if(runQueues[i] == rq)
+		return i;
+	}
+	return -1;
+    }
+
+    /**
+     * Print, for each CPU, how many threads it stole from other queues, how
+     * many it was handed while idle, and how many the load balancer moved
+     * to it.
+     */
+    public void printStats() {
+	for(int i = 0; i < runQueues.length; i++) {
+	    Debug.println('+', "CPU " + i + ": " + runQueues[i].steals
+		    + " threads stolen, " + runQueues[i].handoffs
+		    + " handed over while idle, " + runQueues[i].balanced
+		    + " moved in by balancer");
+	}
+	TickControl.printStats();
+    }
+
+    /**
+     * Interrupt handler for the time-slice timer of one CPU.  Every Quantum
+     * interrupts it makes the interrupted thread yield.  It also runs the
+     * load balancer when it is due.
+     */
+    private class TimerInterruptHandler implements InterruptHandler {
+
+	/** The Timer device this is a handler for. */
+	private final Timer timer;
+
+	private int numInterrupts;
+
+	/**
+	 * Initialize an interrupt handler for a specified Timer device.
+	 *
+	 * @param timer  The device this handler is going to handle.
+	 */
+	public TimerInterruptHandler(Timer timer) {
+	    this.timer = timer;
+	    numInterrupts = 1;
+	}
+
+	public void handleInterrupt() {
+	    TickControl.tick();
+	    TimerWheel.tick();
+	    // This CPU may have been woken to run a thread moved to its queue.
+	    if(idleCount > 0)
+		dispatchIdleCPUs();
+	    int now = Simulation.stats.totalTicks;
+	    if(now >= nextBalance) {
+		// Two CPUs may both see it due; balance() is safe to run twice.
+		nextBalance = now + BalanceInterval * Timer.DefaultInterval;
+		balance();
+	    }
+	    if (numInterrupts != Quantum) {
+		numInterrupts++;
+	    } else {
+		numInterrupts = 1;
+		Debug.println('i', "Timer interrupt: " + timer.name);
+		yieldOnReturn();
+	    }
+	}
+
+	/**
+	 * Cause a context switch in the interrupted thread when the
+	 * handler returns.
+	 */
+	private void yieldOnReturn() {
+	    Debug.println('i', "Yield on interrupt return requested");
+	    CPU.setOnInterruptReturn
+	    (new Runnable() {
+		public void run() {
+		    if(NachosThread.currentThread() != null) {
+			Debug.println('r', "Yielding current thread on interrupt return");
+			Nachos.scheduler.yieldThread();
+		    } else {
+			Debug.println('i', "No current thread on interrupt return, skipping yield");
+		    }
+		}
+	    });
+	}
+    }
+}
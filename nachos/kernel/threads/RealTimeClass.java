@@ -0,0 +1,391 @@
+// RealTimeClass.java
+//	Earliest-deadline-first scheduling of periodic threads.
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.threads;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import nachos.Debug;
+import nachos.machine.Machine;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * A real-time scheduling class, which a scheduler consults ahead of its own
+ * (best-effort) ready list.  A thread joins the class by declaring a period,
+ * a budget and a relative deadline, all in ticks: in every period it is
+ * entitled to budget ticks of CPU time, to be delivered by deadline ticks
+ * after the period starts.  Ready real-time threads run in order of their
+ * absolute deadlines, and ahead of every best-effort thread.
+ *
+ * Admission control keeps the sum of budget / deadline over all real-time
+ * threads at most MaxUtilization, which is the condition for EDF to meet
+ * every deadline on one CPU.  The bound is not raised for more CPUs, so
+ * that the real-time class never takes more than one CPU's worth of time
+ * from best-effort work.
+ *
+ * A thread that uses up its budget before the end of its period is
+ * throttled: it is not run again until the next period begins.  A deadline
+ * miss is counted when a period's deadline passes while its thread still
+ * wanted the CPU (was ready or running) and had budget left -- that is,
+ * when the scheduler, not the thread, is to blame.  An overrun is counted
+ * when a thread is throttled.
+ *
+ * The owning scheduler holds its own mutex around every call, so the
+ * class does no locking of its own.  Budgets are enforced, and periods
+ * begun, at timer interrupts, so to within one timer interval.  A timer
+ * interrupt looks only at the reservations whose next deadline or period
+ * start has come, which are kept in order of that time.
+ */
+class RealTimeClass {
+
+    /** Largest total utilization admitted. */
+    private static final double MaxUtilization = 1.0;
+
+    /** What a real-time thread is doing. */
+    private static final int BLOCKED = 0, READY = 1, THROTTLED = 2, RUNNING = 3;
+
+    /** Reservations of the threads in the class. */
+    private final Map<NachosThread, Reservation> reservations =
+	new HashMap<NachosThread, Reservation>();
+
+    /** Ready threads with budget left, in order of absolute deadline. */
+    private final PriorityQueue<Reservation> ready =
+	new PriorityQueue<Reservation>(11, new Comparator<Reservation>() {
+	    public int compare(Reservation a, Reservation b) {
+		return a.absDeadline < b.absDeadline ? -1
+			: (a.absDeadline == b.absDeadline ? 0 : 1);
+	    }
+	});
+
+    /**
+     * Every reservation, in order of the time at which its deadline must
+     * next be checked or its next period begins.
+     */
+    private final PriorityQueue<Reservation> events =
+	new PriorityQueue<Reservation>(11, new Comparator<Reservation>() {
+	    public int compare(Reservation a, Reservation b) {
+		return a.eventAt < b.eventAt ? -1 : (a.eventAt == b.eventAt ? 0 : 1);
+	    }
+	});
+
+    /** Ready threads that have used up their budget for this period. */
+    private final List<Reservation> throttled = new ArrayList<Reservation>();
+
+    /** The real-time thread running on each CPU, or null. */
+    private final Reservation[] running = new Reservation[Machine.NUM_CPUS];
+
+    /** Sum of budget / deadline over the admitted threads. */
+    private double utilization;
+
+    /**
+     * The parameters and state of one real-time thread.
+     */
+    private static class Reservation {
+	final NachosThread thread;
+	final int period, budget, deadline;
+
+	/** Start of the current period, and its absolute deadline. */
+	int periodStart, absDeadline;
+
+	/** Ticks of budget left in this period. */
+	int budgetLeft;
+
+	/** Has this period's deadline been checked for a miss? */
+	boolean deadlineChecked;
+
+	/** Key in the events queue, changed only while not in it. */
+	int eventAt;
+
+	/** BLOCKED, READY, THROTTLED or RUNNING. */
+	int state = RUNNING;
+
+	/** Time up to which a running thread has been charged. */
+	int lastCharged;
+
+	/** Counters: periods begun, deadlines missed, overruns. */
+	int periods, misses, overruns;
+
+	Reservation(NachosThread thread, int period, int budget, int deadline) {
+	    this.thread = thread;
+	    this.period = period;
+	    this.budget = budget;
+	    this.deadline = deadline;
+	}
+
+	double utilization() {
+	    return (double)budget / deadline;
+	}
+
+	/** When replenish() next has something to do. */
+	int nextEvent() {
+	    return deadlineChecked ? periodStart + period : absDeadline;
+	}
+    }
+
+    /**
+     * Put the running thread into the class, or take it out.
+     *
+     * @param thread The current thread.
+     * @param unit The CPU it is running on.
+     * @param period The period in ticks, or 0 to leave the class.
+     * @param budget Ticks of CPU time per period, at least 1.
+     * @param deadline Ticks after the start of each period by which the
+     * budget is due, from budget to period.
+     * @return 0, or -1 if the parameters are not valid or the thread
+     * cannot be admitted without overloading the class.
+     */
+    int admit(NachosThread thread, int unit, int period, int budget, int deadline) {
+	Reservation old = reservations.get(thread);
+	if(period == 0) {
+	    if(old == null)
+		return -1;
+	    remove(thread);
+	    running[unit] = null;
+	    return 0;
+	}
+	if(budget < 1 || deadline < budget || period < deadline)
+	    return -1;
+
+	Reservation r = new Reservation(thread, period, budget, deadline);
+	double others = utilization - (old == null ? 0 : old.utilization());
+	if(others + r.utilization() > MaxUtilization) {
+	    Debug.println('r', "Real-time admission refused for " + thread.name
+		    + ": utilization would be " + (others + r.utilization()));
+	    return -1;
+	}
+	utilization = others + r.utilization();
+	if(old != null) {
+	    reservations.remove(thread);
+	    events.remove(old);
+	}
+
+	int now = Simulation.stats.totalTicks;
+	r.periodStart = now;
+	r.absDeadline = now + deadline;
+	r.budgetLeft = budget;
+	r.periods = 1;
+	r.lastCharged = now;
+	r.eventAt = r.nextEvent();
+	events.offer(r);
+	reservations.put(thread, r);
+	running[unit] = r;
+	Debug.println('r', "Admitted " + thread.name + " to real-time class: period "
+		+ period + ", budget " + budget + ", deadline " + deadline);
+	return 0;
+    }
+
+    /**
+     * Drop a thread's reservation, when it leaves the class or finishes,
+     * and report its counters.
+     */
+    void remove(NachosThread thread) {
+	Reservation r = reservations.remove(thread);
+	if(r == null)
+	    return;
+	utilization -= r.utilization();
+	ready.remove(r);
+	throttled.remove(r);
+	events.remove(r);
+	for(int i = 0; i < running.length; i++) {
+	    if(running[i] == r)
+		running[i] = null;
+	}
+	report(r);
+    }
+
+    /**
+     * @return true if a thread has a reservation in the class.
+     */
+    boolean contains(NachosThread thread) {
+	return reservations.containsKey(thread);
+    }
+
+    /**
+     * Queue a thread that is ready to run, if it is in the class.
+     *
+     * @return true if the thread was queued here, false if it is a
+     * best-effort thread, for the scheduler to queue itself.
+     */
+    boolean offer(NachosThread thread) {
+	Reservation r = reservations.get(thread);
+	if(r == null)
+	    return false;
+	events.remove(r);
+	replenish(r, Simulation.stats.totalTicks);
+	r.eventAt = r.nextEvent();
+	events.offer(r);
+	if(r.budgetLeft > 0) {
+	    r.state = READY;
+	    ready.offer(r);
+	} else {
+	    r.state = THROTTLED;
+	    throttled.add(r);
+	}
+	return true;
+    }
+
+    /**
+     * Note that a thread in the class has blocked.
+     */
+    void block(NachosThread thread) {
+	Reservation r = reservations.get(thread);
+	if(r != null)
+	    r.state = BLOCKED;
+    }
+
+    /**
+     * @return true if a real-time thread is ready to run.
+     */
+    boolean hasReady() {
+	return !ready.isEmpty();
+    }
+
+    /**
+     * Take the ready thread with the earliest deadline.
+     *
+     * @return the thread, or null if there is none.
+     */
+    NachosThread poll() {
+	Reservation r = ready.poll();
+	return r == null ? null : r.thread;
+    }
+
+    /**
+     * Record a context switch on a CPU: charge the real-time thread that
+     * was running there, if any, and start the clock on the next one.
+     *
+     * @param unit The CPU.
+     * @param next The thread it is switching to, or null if it is going idle.
+     */
+    void switched(int unit, NachosThread next) {
+	int now = Simulation.stats.totalTicks;
+	charge(unit, now);
+	Reservation r = next == null ? null : reservations.get(next);
+	if(r != null) {
+	    r.state = RUNNING;
+	    r.lastCharged = now;
+	}
+	running[unit] = r;
+    }
+
+    /**
+     * Should the thread running on a CPU keep it, rather than yield?  True
+     * if it is a real-time thread with budget left, and no ready thread has
+     * an earlier deadline.
+     */
+    boolean keepRunning(int unit) {
+	charge(unit, Simulation.stats.totalTicks);
+	Reservation r = running[unit];
+	if(r == null || r.budgetLeft <= 0)
+	    return false;
+	Reservation head = ready.peek();
+	return head == null || r.absDeadline <= head.absDeadline;
+    }
+
+    /**
+     * Called at each timer interrupt on a CPU: charge the thread running
+     * there, begin new periods and check deadlines.
+     *
+     * @param unit The CPU.
+     * @return true if the thread running on the CPU should be preempted:
+     * because it has used up its budget, or a ready real-time thread has
+     * an earlier deadline.
+     */
+    boolean tick(int unit) {
+	int now = Simulation.stats.totalTicks;
+	charge(unit, now);
+	while(!events.isEmpty() && events.peek().eventAt <= now) {
+	    Reservation r = events.poll();
+	    replenish(r, now);
+	    r.eventAt = r.nextEvent();
+	    events.offer(r);
+	}
+
+	Reservation current = running[unit];
+	Reservation head = ready.peek();
+	if(current != null && current.budgetLeft <= 0)
+	    return true;
+	return head != null
+		&& (current == null || head.absDeadline < current.absDeadline);
+    }
+
+    /**
+     * Charge the real-time thread running on a CPU for the time since it
+     * was last charged, and count an overrun if it has used up its budget.
+     */
+    private void charge(int unit, int now) {
+	Reservation r = running[unit];
+	if(r == null)
+	    return;
+	boolean hadBudget = r.budgetLeft > 0;
+	r.budgetLeft -= now - r.lastCharged;
+	r.lastCharged = now;
+	if(hadBudget && r.budgetLeft <= 0) {
+	    r.overruns++;
+	    Debug.println('r', "Real-time thread " + r.thread.name
+		    + " used up its budget");
+	}
+    }
+
+    /**
+     * Check a thread's deadline, and begin any new periods that are due.
+     * The caller takes the reservation out of the events queue first, and
+     * puts it back after.  A reservation in the ready queue is taken out
+     * while its deadline changes, so that the queue stays in order.
+     */
+    private void replenish(Reservation r, int now) {
+	boolean wanting = r.state != BLOCKED;
+	if(!r.deadlineChecked && now >= r.absDeadline) {
+	    r.deadlineChecked = true;
+	    if(wanting && r.budgetLeft > 0) {
+		r.misses++;
+		Debug.println('r', "Real-time thread " + r.thread.name
+			+ " missed its deadline at " + r.absDeadline);
+	    }
+	}
+	if(now < r.periodStart + r.period)
+	    return;
+
+	// Skip whole periods the thread slept through.
+	boolean queued = r.state == READY && ready.remove(r);
+	int elapsed = (now - r.periodStart) / r.period;
+	r.periodStart += elapsed * r.period;
+	r.periods += elapsed;
+	r.absDeadline = r.periodStart + r.deadline;
+	r.budgetLeft = r.budget;
+	r.deadlineChecked = false;
+	if(queued) {
+	    ready.offer(r);
+	} else if(r.state == THROTTLED) {
+	    throttled.remove(r);
+	    r.state = READY;
+	    ready.offer(r);
+	}
+    }
+
+    /**
+     * Print the counters of every thread still in the class.
+     */
+    void printStats() {
+	Iterator<Reservation> it = reservations.values().iterator();
+	while(it.hasNext())
+	    report(it.next());
+    }
+
+    private void report(Reservation r) {
+	Debug.println('+', "Real-time thread " + r.thread.name + ": "
+		+ r.periods + " periods, " + r.misses + " deadlines missed, "
+		+ r.overruns + " budget overruns");
+    }
+}
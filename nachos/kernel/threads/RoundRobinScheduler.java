@@ -14,7 +14,9 @@
 
 package nachos.kernel.threads;
 
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import nachos.Debug;
 import nachos.kernel.Nachos;
@@ -26,7 +28,6 @@ import nachos.machine.Simulation;
 import nachos.machine.Timer;
 import nachos.machine.InterruptHandler;
 import nachos.util.FIFOQueue;
-import nachos.util.Queue;
 
 /**
  * The scheduler is responsible for maintaining a list of threads that
@@ -49,6 +50,14 @@ import nachos.util.Queue;
  * dispatched in order onto the first available CPU.
  * Scheduling may be preemptive or non-preemptive, depending on whether
  * timers are initialized for time-slicing.
+ * A thread is dispatched on the CPU it last ran on when that CPU is idle,
+ * and a CPU choosing its next thread looks a few places down the ready
+ * list for one that last ran there, so that threads tend to stay where
+ * their cache state is.  A user thread may also be restricted to a set of
+ * CPUs with SetAffinity, which is never broken.
+ * Threads that have joined the real-time class (see RealTimeClass) are
+ * run ahead of the FIFO queue, earliest deadline first, and preempt
+ * others at the next timer interrupt.
  * 
  * @author Thomas Anderson (UC Berkeley), original C++ version
  * @author Peter Druschel (Rice University), Java translation
@@ -56,14 +65,23 @@ import nachos.util.Queue;
  */
 public class RoundRobinScheduler extends GenScheduler {
 
+    /** Affinity mask of a thread that may run on any CPU. */
+    public static final int AllCPUs = -1;
+
+    /** How far down the ready list a CPU looks for a thread that last ran on it. */
+    private static final int AffinityWindow = 4;
+
     /** Queue of threads that are ready to run, but not running. */
-    private final Queue<NachosThread> readyList;
+    private final FIFOQueue<NachosThread> readyList;
 
-    /** Queue of threads that are sleeping. */
-    public LinkedList<NachosThread> sleepList;
-    
     /** Queue of CPUs that are idle. */
-    private final Queue<CPU> cpuList;
+    private final FIFOQueue<CPU> cpuList;
+
+    /** The CPU each thread that has not yet finished last ran on. */
+    private final Map<NachosThread, Integer> lastCPU = new HashMap<NachosThread, Integer>();
+
+    /** Dispatches of threads that had run before, and how many of them moved CPU. */
+    private int redispatches, migrations;
     
     /** Terminated thread awaiting reclamation of its stack. */
     private volatile NachosThread threadToBeDestroyed;
@@ -71,6 +89,9 @@ public class RoundRobinScheduler extends GenScheduler {
     /** Spin lock for mutually exclusive access to scheduler state. */
     private final SpinLock mutex = new SpinLock("scheduler mutex");
 
+    /** Real-time threads, which are run ahead of the ready list. */
+    private final RealTimeClass realTime = new RealTimeClass();
+
     /**
      * Initialize the scheduler.
      * Set the list of ready but not running threads to empty.
@@ -81,25 +102,23 @@ public class RoundRobinScheduler extends GenScheduler {
     public RoundRobinScheduler(NachosThread firstThread) {
 	super(firstThread);
 	readyList = new FIFOQueue<NachosThread>();
-	sleepList = new LinkedList<NachosThread>();
 	cpuList = new FIFOQueue<CPU>();
 	
 	Debug.println('+', "Initializing Round Robin scheduler");
 
-	// Add all the CPUs to the idle CPU list, and start their time-slice timers,
-	// if we are using them.
+	// Add all the CPUs to the idle CPU list, and set up their time-slice timers.
+	// A timer is only started when its CPU is given a thread to run.
 	for(int i = 0; i < Machine.NUM_CPUS; i++) {
 	    CPU cpu = Machine.getCPU(i);
 	    cpuList.offer(cpu);
 	    
 	    Timer timer = cpu.timer;
-	    timer.setHandler(new TimerInterruptHandler(timer));
-	    timer.start();
-	    
+	    timer.setHandler(new TimerInterruptHandler(timer, i));
 	}
 
 	// Dispatch firstThread on the first CPU.
 	CPU firstCPU = cpuList.poll();
+	TickControl.enable(firstCPU);
 	firstCPU.dispatch(firstThread);
     };
 
@@ -153,11 +172,13 @@ public class RoundRobinScheduler extends GenScheduler {
      */
     private void makeReady(NachosThread thread) {
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
+	SchedStats.ready(thread);
 
 	Debug.println('r', "Putting thread on ready list: " + thread.name);
 
 	thread.setStatus(NachosThread.READY);
-	readyList.offer(thread);
+	if(!realTime.offer(thread))
+	    readyList.offer(thread);
     }
 
     /**
@@ -168,27 +189,139 @@ public class RoundRobinScheduler extends GenScheduler {
      */
     private void dispatchIdleCPUs() {
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
-	while(!readyList.isEmpty() && !cpuList.isEmpty()) {
-	    NachosThread thread = readyList.poll();
-	    CPU cpu = cpuList.poll();
+	while(!cpuList.isEmpty()) {
+	    NachosThread thread = realTime.poll();
+	    CPU cpu = null;
+	    if(thread != null) {
+		cpu = chooseIdleCPU(thread, false);
+	    } else {
+		// Take the first ready thread that may run on one of the idle CPUs.
+		Iterator<NachosThread> it = readyList.iterator();
+		while(cpu == null && it.hasNext()) {
+		    thread = it.next();
+		    cpu = chooseIdleCPU(thread, true);
+		    if(cpu != null)
+			it.remove();
+		}
+		if(cpu == null)
+		    return;
+	    }
+	    cpuList.remove(cpu);
+	    placed(thread, cpu);
+	    realTime.switched(cpu.unit, thread);
+	    TickControl.busy(cpu);
 	    Debug.println('r', "Dispatching " + thread.name + " on " + cpu.name);
+	    SchedStats.dispatched(thread);
 	    cpu.dispatch(thread);
 	    // The current CPU is not relinquished here -- immediate return.
 	}
     }
 
+    /**
+     * Choose an idle CPU for a thread: the one it last ran on if that is
+     * idle, or else the first idle one it may run on.
+     * Assumes that the scheduler mutex is held.
+     *
+     * @param thread The thread.
+     * @param useMask Whether to honour the thread's affinity mask.
+     * @return the CPU, which is still in the idle list, or null if none will do.
+     */
+    private CPU chooseIdleCPU(NachosThread thread, boolean useMask) {
+	Integer last = lastCPU.get(thread);
+	CPU first = null;
+	for(CPU cpu : cpuList) {
+	    if(useMask && !mayRunOn(thread, cpu.unit))
+		continue;
+	    if(last != null && cpu.unit == last)
+		return cpu;
+	    if(first == null)
+		first = cpu;
+	}
+	return first;
+    }
+
+    /**
+     * Take the thread a CPU should run next from the ready list: one of
+     * the first AffinityWindow threads that last ran on the CPU if there
+     * is one, or else the first thread that may run on it.
+     * Assumes that the scheduler mutex is held.
+     *
+     * @param unit The CPU.
+     * @return the thread, or null if no ready thread may run on the CPU.
+     */
+    private NachosThread takeReady(int unit) {
+	Iterator<NachosThread> it = readyList.iterator();
+	NachosThread first = null;
+	for(int i = 0; it.hasNext() && (first == null || i < AffinityWindow); i++) {
+	    NachosThread thread = it.next();
+	    if(!mayRunOn(thread, unit))
+		continue;
+	    Integer last = lastCPU.get(thread);
+	    if(last != null && last == unit) {
+		it.remove();
+		return thread;
+	    }
+	    if(first == null)
+		first = thread;
+	}
+	if(first != null)
+	    readyList.remove(first);
+	return first;
+    }
+
+    /**
+     * @return true if a thread's affinity mask allows it to run on a CPU.
+     */
+    static boolean mayRunOn(NachosThread thread, int unit) {
+	return !(thread instanceof UserThread)
+		|| (((UserThread)thread).affinity & (1 << unit)) != 0;
+    }
+
+    /**
+     * @return true if a thread is in the real-time class, which ignores
+     * affinity masks.
+     */
+    private boolean isRealTime(NachosThread thread) {
+	mutex.acquire();
+	boolean result = realTime.contains(thread);
+	mutex.release();
+	return result;
+    }
+
+    /**
+     * Record that a thread is being dispatched on a CPU, counting it as a
+     * migration if it last ran on a different one.
+     * Assumes that the scheduler mutex is held.
+     */
+    private void placed(NachosThread thread, CPU cpu) {
+	Integer last = lastCPU.put(thread, cpu.unit);
+	if(last != null) {
+	    redispatches++;
+	    if(last != cpu.unit)
+		migrations++;
+	}
+    }
+
     /**
      * Return the next thread to be scheduled onto a CPU.
      * If there are no ready threads, return null.
      * Side effect: thread is removed from the ready list.
      * Assumes that interrupts have been disabled.
      *
+     * @param running  True if the current thread wants to keep running;
+     * if it is a real-time thread with the earliest deadline, null is
+     * returned so that it does.
      * @return the thread to be scheduled onto a CPU.
      */
-    private NachosThread findNextToRun() {
+    private NachosThread findNextToRun(boolean running) {
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
 	mutex.acquire();
-	NachosThread result = readyList.poll();
+	NachosThread result = null;
+	if(!(running && realTime.keepRunning(CPU.currentCPU().unit))) {
+	    result = realTime.poll();
+	    if(result == null)
+		result = takeReady(CPU.currentCPU().unit);
+	}
 	mutex.release();
 	return result;
     }
@@ -218,12 +351,14 @@ public class RoundRobinScheduler extends GenScheduler {
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
 	CPU currentCPU = CPU.currentCPU();
 	NachosThread currentThread = NachosThread.currentThread();
-	NachosThread nextThread = findNextToRun();
+	NachosThread nextThread = findNextToRun(status == NachosThread.RUNNING);
 
 	
 	// If the current thread wants to keep running and there is no other thread to run,
-	// do nothing.
-	if(status == NachosThread.RUNNING && nextThread == null) {
+	// do nothing -- unless its affinity mask no longer allows it this CPU.
+	boolean moving = status == NachosThread.RUNNING && nextThread == null
+		&& !mayRunOn(currentThread, currentCPU.unit) && !isRealTime(currentThread);
+	if(status == NachosThread.RUNNING && nextThread == null && !moving) {
 	    Debug.println('r', "No other thread to run -- " + currentThread.name
 		    			+ " continuing");
 	    return;
@@ -247,13 +382,18 @@ public class RoundRobinScheduler extends GenScheduler {
 	    if(status != NachosThread.FINISHED && status != NachosThread.BLOCKED){
 		Debug.println('r', "Putting the current thread: "+ currentThread.name + " back on the ready list");
 		currentThread.setStatus(NachosThread.READY);
-		readyList.offer(currentThread);	//put the thread    
+		if(!realTime.offer(currentThread))
+		    readyList.offer(currentThread);	//put the thread    
 	    }
 	    
 	    else if(status == NachosThread.BLOCKED) {
 		currentThread.setStatus(status);
+		realTime.block(currentThread);
 	    }
 	    
+	    placed(nextThread, currentCPU);
+	    realTime.switched(currentCPU.unit, nextThread);
+	    SchedStats.switched(currentThread, status, nextThread);
 	    CPU.switchTo(nextThread, mutex);
 	} else {
 	    // There is nothing for this CPU to do -- send it to the idle list.
@@ -261,9 +401,29 @@ public class RoundRobinScheduler extends GenScheduler {
 		    " from " + currentThread.name +
 		    " to idle");
 
+	    CPU allowed = null;
+	    if(moving) {
+		// The thread may not run here: leave it ready for a CPU it may
+		// run on.  It cannot be dispatched until this CPU has let go of
+		// it, so instead start the timer of an allowed idle CPU, whose
+		// interrupt handler will then dispatch it.
+		Debug.println('r', currentThread.name + " may not run on "
+			+ CPU.getName() + " -- putting it back on the ready list");
+		currentThread.setStatus(NachosThread.READY);
+		if(!realTime.offer(currentThread))
+		    readyList.offer(currentThread);
+		allowed = chooseIdleCPU(currentThread, true);
+	    } else {
+		if(status != NachosThread.FINISHED)
+		    currentThread.setStatus(status);
+		realTime.block(currentThread);
+	    }
 	    cpuList.offer(currentCPU);
-	    if(status != NachosThread.FINISHED)
-		currentThread.setStatus(status);
+	    realTime.switched(currentCPU.unit, null);
+	    TickControl.idle(currentCPU);
+	    if(allowed != null)
+		TickControl.wake(allowed);
+	    SchedStats.switched(currentThread, status, null);
 	    CPU.idle(mutex);
 	}
 	// Control returns here when currentThread has been rescheduled,
@@ -355,6 +515,8 @@ public class RoundRobinScheduler extends GenScheduler {
 	    threadToBeDestroyed = null;
 	}
 	threadToBeDestroyed = currentThread;
+	realTime.remove(currentThread);
+	lastCPU.remove(currentThread);
 	mutex.release();
 
 	yieldCPU(NachosThread.FINISHED, null);
@@ -363,6 +525,72 @@ public class RoundRobinScheduler extends GenScheduler {
 	// Interrupts will be re-enabled when the next thread runs or the
 	// current CPU goes idle.
     }
+
+    /**
+     * Forget the scheduling state of a blocked thread that is about to be
+     * given another program to run: its real-time reservation and last CPU.
+     *
+     * @param thread The thread, which is blocked.
+     */
+    public void forgetThread(NachosThread thread) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	realTime.remove(thread);
+	lastCPU.remove(thread);
+	mutex.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Put the current thread into the real-time class, or take it out.
+     *
+     * @param thread The current thread.
+     * @param period Its period in ticks, or 0 to leave the class.
+     * @param budget Ticks of CPU time it needs in each period.
+     * @param deadline Ticks after the start of each period by which it needs them.
+     * @return 0, or -1 if the reservation is not valid or not admitted.
+     */
+    public int setRealTime(NachosThread thread, int period, int budget, int deadline) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	int result = realTime.admit(thread, CPU.currentCPU().unit, period, budget, deadline);
+	mutex.release();
+	CPU.setLevel(oldLevel);
+	return result;
+    }
+
+    /**
+     * Restrict the current thread to a set of CPUs.  Threads in the
+     * real-time class keep their CPU regardless.  If the current CPU is not
+     * in the set, the thread yields and moves to a CPU in the set: at once
+     * if one is idle, and otherwise when one next looks for a thread to
+     * run, leaving this CPU idle meanwhile if nothing else is ready.
+     *
+     * @param thread The current thread.
+     * @param mask One bit per CPU, bit i for CPU i.
+     * @return 0.
+     */
+    public int setAffinity(UserThread thread, int mask) {
+	thread.affinity = mask;
+	if((mask & (1 << CPU.currentCPU().unit)) == 0)
+	    yieldThread();
+	return 0;
+    }
+
+    /**
+     * Print the deadline counters of the real-time threads, how often
+     * threads moved CPU, and the timer interrupts taken by each CPU.
+     */
+    public void printStats() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	realTime.printStats();
+	Debug.println('+', "Redispatches: " + redispatches + ", on the same CPU: "
+		+ (redispatches - migrations) + ", migrations: " + migrations);
+	mutex.release();
+	CPU.setLevel(oldLevel);
+	TickControl.printStats();
+    }
     
     /**
      * Interrupt handler for the time-slice timer.  A timer is set up to
@@ -370,26 +598,42 @@ public class RoundRobinScheduler extends GenScheduler {
      * The handleInterrupt() method is called with interrupts disabled each
      * time there is a timer interrupt.
      */
-    private static class TimerInterruptHandler implements InterruptHandler {
+    private class TimerInterruptHandler implements InterruptHandler {
 
 	/** The Timer device this is a handler for. */
 	private final Timer timer;
 	private int numInterrupts;
 	
+	/** The CPU the timer belongs to. */
+	private final int unit;
+	
 	/**
 	 * Initialize an interrupt handler for a specified Timer device.
 	 * 
 	 * @param timer  The device this handler is going to handle.
+	 * @param unit  The number of the CPU the timer belongs to.
 	 */
-	public TimerInterruptHandler(Timer timer) {
+	public TimerInterruptHandler(Timer timer, int unit) {
 	    this.timer = timer;
+	    this.unit = unit;
 	    numInterrupts = 1;
 	}
 
 	public void handleInterrupt() {
 
-	    handleSleep();
-	    if (numInterrupts != 10) {
+	    TickControl.tick();
+	    TimerWheel.tick();
+	    
+	    // Charge real-time budgets and start new periods; a thread whose
+	    // period has begun may be ready for an idle CPU, or need this one.
+	    mutex.acquire();
+	    boolean preempt = realTime.tick(unit);
+	    dispatchIdleCPUs();
+	    mutex.release();
+	    if(preempt) {
+		numInterrupts = 1;
+		yieldOnReturn();
+	    } else if (numInterrupts != 10) {
 		numInterrupts++;
 		
 	    }
@@ -407,25 +651,6 @@ public class RoundRobinScheduler extends GenScheduler {
 	    
 	}
 	
-	private void handleSleep() {
-	    //For each sleeping thread, 
-	    for (NachosThread s : Nachos.scheduler.sleepList) {
-		UserThread sleepThread = (UserThread)s;
-		
-		sleepThread.numOfTicksToSleep -= 100;		//decrement the number of ticks to sleep for each process
-		
-		if(sleepThread.numOfTicksToSleep <= 0) {	//if the number of ticks to sleep is less than or equal to zero
-		    Nachos.scheduler.sleepList.remove(s);	//remove the thread from scheduler's sleepList  
-		    sleepThread.sleepSemaphore.V();		//wake up the thread
-		    
-		    Debug.println('S', "Waking up the thread: "+ s.name);
-		   
-		}
-		
-	    }
-	    
-	}
-
 	/**
 	 * Called to cause a context switch (for example, on a time slice)
 	 * in the interrupted thread when the handler returns.
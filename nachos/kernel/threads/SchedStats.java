@@ -0,0 +1,188 @@
+// SchedStats.java
+//	Per-thread scheduling latency and run-time accounting.
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.threads;
+
+import nachos.Debug;
+import nachos.kernel.userprog.UserThread;
+import nachos.machine.CPU;
+import nachos.machine.Machine;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+import nachos.machine.Timer;
+
+/**
+ * Scheduling counters for a user thread: how long it waited on the ready
+ * list each time before it was dispatched (as a histogram), how much CPU
+ * time it used, and how often it gave up the CPU of its own accord (by
+ * blocking, finishing or calling Yield) or was preempted.
+ *
+ * Every scheduler calls ready() when it makes a thread ready and switched()
+ * whenever a CPU changes thread, with interrupts disabled.  For kernel
+ * threads these return at once; for a user thread they update the
+ * thread's counters, which no other CPU touches at the same time, and
+ * totals kept separately for each CPU, so that no lock is needed.
+ *
+ * Each thread's counters are printed when it exits, and the totals over
+ * all user threads at shutdown.
+ */
+public class SchedStats {
+
+    /** Number of buckets in the ready-wait histogram. */
+    public static final int Buckets = 8;
+
+    /** Totals over all user threads, kept by the CPU that counted them. */
+    private static final SchedStats[] totals = new SchedStats[Machine.NUM_CPUS];
+
+    static {
+	for(int i = 0; i < totals.length; i++)
+	    totals[i] = new SchedStats();
+    }
+
+    /**
+     * Set by Yield() while it calls yieldThread(), so that giving up
+     * the CPU then is counted as voluntary.
+     */
+    public boolean yielding;
+
+    /** When the thread was last made ready, or -1 if it is not waiting. */
+    private int readyAt = -1;
+
+    /** When the thread was last dispatched. */
+    private int runningSince;
+
+    /** Ticks spent ready but not running, and running. */
+    private long waitTicks, runTicks;
+
+    /** Dispatches, and times the CPU was given up voluntarily or not. */
+    private int dispatches, voluntary, involuntary;
+
+    /**
+     * Number of ready waits of less than one timer interval (bucket 0),
+     * of 1 interval, 2-3 intervals, 4-7 intervals and so on, the last
+     * bucket taking everything longer.
+     */
+    private final int[] waitHistogram = new int[Buckets];
+
+    /**
+     * @return the counters of a thread, or null for a kernel thread.
+     */
+    private static SchedStats of(NachosThread thread) {
+	return thread instanceof UserThread ? ((UserThread)thread).schedStats : null;
+    }
+
+    /**
+     * Note that a thread has been made ready to run.
+     *
+     * @param thread The thread.
+     */
+    public static void ready(NachosThread thread) {
+	SchedStats s = of(thread);
+	if(s != null)
+	    s.readyAt = Simulation.stats.totalTicks;
+    }
+
+    /**
+     * Note that a thread is being dispatched on an idle CPU.
+     *
+     * @param thread The thread.
+     */
+    public static void dispatched(NachosThread thread) {
+	switched(null, NachosThread.RUNNING, thread);
+    }
+
+    /**
+     * Note that a CPU is changing thread.
+     *
+     * @param from The thread giving up the CPU, or null if the CPU was idle.
+     * @param status The status the thread giving up the CPU asked for:
+     * RUNNING if it goes back on the ready list, BLOCKED or FINISHED.
+     * @param to The thread being dispatched, or null if the CPU is going idle.
+     */
+    public static void switched(NachosThread from, int status, NachosThread to) {
+	int now = Simulation.stats.totalTicks;
+	SchedStats total = totals[CPU.currentCPU().unit];
+	SchedStats s = from == null ? null : of(from);
+	if(s != null) {
+	    int ran = now - s.runningSince;
+	    s.runTicks += ran;
+	    total.runTicks += ran;
+	    if(status == NachosThread.RUNNING && !s.yielding) {
+		s.involuntary++;
+		total.involuntary++;
+	    } else {
+		s.voluntary++;
+		total.voluntary++;
+	    }
+	    if(status == NachosThread.RUNNING)
+		s.readyAt = now;
+	}
+	s = to == null ? null : of(to);
+	if(s != null) {
+	    if(s.readyAt >= 0) {
+		int waited = now - s.readyAt;
+		int bucket = Math.min(Buckets - 1,
+			32 - Integer.numberOfLeadingZeros(waited / Timer.DefaultInterval));
+		s.waitTicks += waited;
+		s.waitHistogram[bucket]++;
+		total.waitTicks += waited;
+		total.waitHistogram[bucket]++;
+		s.readyAt = -1;
+	    }
+	    s.runningSince = now;
+	    s.dispatches++;
+	    total.dispatches++;
+	}
+    }
+
+    /**
+     * Print the counters of the current thread, when it exits.  It is
+     * charged first for the time it has been running.
+     *
+     * @param thread The current thread.
+     */
+    public static void print(UserThread thread) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	int now = Simulation.stats.totalTicks;
+	SchedStats s = thread.schedStats;
+	s.runTicks += now - s.runningSince;
+	totals[CPU.currentCPU().unit].runTicks += now - s.runningSince;
+	s.runningSince = now;
+	CPU.setLevel(oldLevel);
+	s.print("Process " + thread.processID + " (" + thread.joinRecord.name + ")");
+    }
+
+    /**
+     * Print the totals over all user threads.
+     */
+    public static void printTotals() {
+	SchedStats sum = new SchedStats();
+	for(SchedStats t : totals) {
+	    sum.waitTicks += t.waitTicks;
+	    sum.runTicks += t.runTicks;
+	    sum.dispatches += t.dispatches;
+	    sum.voluntary += t.voluntary;
+	    sum.involuntary += t.involuntary;
+	    for(int i = 0; i < Buckets; i++)
+		sum.waitHistogram[i] += t.waitHistogram[i];
+	}
+	sum.print("All user threads");
+    }
+
+    private void print(String who) {
+	StringBuilder hist = new StringBuilder();
+	for(int i = 0; i < Buckets; i++) {
+	    int low = i == 0 ? 0 : 1 << (i - 1);
+	    hist.append(i == 0 ? " <1:" : (i == Buckets - 1 ? " " + low + "+:" : " " + low + ":"))
+		.append(waitHistogram[i]);
+	}
+	Debug.println('+', who + ": ran " + runTicks + " ticks in " + dispatches
+		+ " dispatches, waited " + waitTicks + " ticks ready; "
+		+ voluntary + " voluntary, " + involuntary + " involuntary switches");
+	Debug.println('+', who + ": ready waits in timer intervals:" + hist);
+    }
+}
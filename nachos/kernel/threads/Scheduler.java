@@ -78,8 +78,9 @@ public class Scheduler extends GenScheduler {
 
 	Debug.println('+', "Initializing scheduler");
 
-	// Add all the CPUs to the idle CPU list, and start their time-slice timers,
-	// if we are using them.
+	// Add all the CPUs to the idle CPU list, and set up their time-slice timers,
+	// if we are using them.  A timer is only started when its CPU is given
+	// a thread to run.
 	for(int i = 0; i < Machine.NUM_CPUS; i++) {
 	    CPU cpu = Machine.getCPU(i);
 	    cpuList.offer(cpu);
@@ -88,12 +89,13 @@ public class Scheduler extends GenScheduler {
 		timer.setHandler(new TimerInterruptHandler(timer));
 		if(Nachos.options.RANDOM_YIELD)
 		    timer.setRandom(true);
-		timer.start();
 	    }
 	}
 
 	// Dispatch firstThread on the first CPU.
 	CPU firstCPU = cpuList.poll();
+	if(Nachos.options.CPU_TIMERS)
+	    TickControl.enable(firstCPU);
 	firstCPU.dispatch(firstThread);
     };
 
@@ -147,6 +149,7 @@ public class Scheduler extends GenScheduler {
      */
     private void makeReady(NachosThread thread) {
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
+	SchedStats.ready(thread);
 
 	Debug.println('t', "Putting thread on ready list: " + thread.name);
 
@@ -165,7 +168,9 @@ public class Scheduler extends GenScheduler {
 	while(!readyList.isEmpty() && !cpuList.isEmpty()) {
 	    NachosThread thread = readyList.poll();
 	    CPU cpu = cpuList.poll();
+	    TickControl.busy(cpu);
 	    Debug.println('t', "Dispatching " + thread.name + " on " + cpu.name);
+	    SchedStats.dispatched(thread);
 	    cpu.dispatch(thread);
 	    // The current CPU is not relinquished here -- immediate return.
 	}
@@ -245,6 +250,7 @@ public class Scheduler extends GenScheduler {
 		if(status != NachosThread.FINISHED)
 		    currentThread.setStatus(status);
 	    }
+	    SchedStats.switched(currentThread, status, nextThread);
 	    CPU.switchTo(nextThread, mutex);
 	} else {
 	    // There is nothing for this CPU to do -- send it to the idle list.
@@ -256,6 +262,8 @@ public class Scheduler extends GenScheduler {
 	    cpuList.offer(currentCPU);
 	    if(status != NachosThread.FINISHED)
 		currentThread.setStatus(status);
+	    TickControl.idle(currentCPU);
+	    SchedStats.switched(currentThread, status, null);
 	    CPU.idle(mutex);
 	}
 	// Control returns here when currentThread has been rescheduled,
@@ -356,6 +364,13 @@ public class Scheduler extends GenScheduler {
 	// current CPU goes idle.
     }
 
+    /**
+     * Print the timer interrupts taken by each CPU.
+     */
+    public void printStats() {
+	TickControl.printStats();
+    }
+
     /**
      * Interrupt handler for the time-slice timer.  A timer is set up to
      * interrupt the CPU periodically (once every Timer.DefaultInterval ticks).
@@ -378,6 +393,8 @@ public class Scheduler extends GenScheduler {
 	}
 
 	public void handleInterrupt() {
+	    TickControl.tick();
+	    TimerWheel.tick();
 	    Debug.println('i', "Timer interrupt: " + timer.name);
 	    // Note that instead of calling yield() directly (which would
 	    // suspend the interrupt handler, not the interrupted thread
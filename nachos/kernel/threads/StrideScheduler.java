@@ -0,0 +1,617 @@
+// StrideScheduler.java
+//
+// Copyright (c) 1992-1993 The Regents of the University of California.
+// Copyright (c) 1998 Rice University.
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.threads;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.userprog.UserThread;
+import nachos.machine.CPU;
+import nachos.machine.InterruptHandler;
+import nachos.machine.Machine;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+import nachos.machine.Timer;
+import nachos.util.FIFOQueue;
+import nachos.util.Queue;
+
+/**
+ * A proportional-share scheduler.  Each thread holds a number of tickets,
+ * and gets a share of the CPU in proportion to its tickets, relative to
+ * the other threads that want to run.  A user program sets the tickets of
+ * its process with SetShare(); a process started by Exec or Fork has as
+ * many tickets as its parent.
+ *
+ * In stride scheduling (the default, -STRIDE), each thread has a stride,
+ * Stride1 / tickets, and a pass value.  The thread with the smallest pass
+ * runs next, and its pass goes up by its stride for each quantum it runs
+ * (in proportion, for a partial quantum).  Ready threads are kept in a
+ * heap ordered by pass.  A thread that wakes up after blocking is given
+ * at least the pass of the threads that kept running, so it cannot make
+ * up for time it spent asleep.
+ *
+ * In lottery scheduling (-LOTTERY), at the end of each quantum one ticket
+ * is drawn at random from those held by the ready threads and the current
+ * one, and its holder runs.  Shares then hold on average rather than
+ * exactly, but no thread can be starved.
+ *
+ * At shutdown, printStats() lists for each process the share of the CPU
+ * it asked for, by its tickets, and the share it got.  The CPU time of a
+ * process is added up as its threads run, so nothing is kept of a thread
+ * once it has finished; kernel threads are counted together as one.
+ */
+public class StrideScheduler extends GenScheduler {
+
+    /** Tickets held by a thread that has not asked for a share. */
+    public static final int DefaultTickets = 100;
+
+    /** The most tickets a thread may hold. */
+    public static final int MaxTickets = 10000;
+
+    /** Numerator of strides: large, so that strides are precise. */
+    private static final long Stride1 = 1 << 20;
+
+    /** Number of timer interrupts in a quantum. */
+    private static final int Quantum = 10;
+
+    /** The key in shares of the threads that belong to no user process. */
+    private static final int KernelProcess = -1;
+
+    /** Ready threads, in order of pass. */
+    private final PriorityQueue<Client> readyQueue;
+
+    /** Scheduling state of each thread that has not yet finished. */
+    private final Map<NachosThread, Client> clients;
+
+    /** CPU time used by each process, kept for printStats(). */
+    private final Map<Integer, Share> shares;
+
+    /** The client running on each CPU, or null if the CPU is idle. */
+    private final Client[] running;
+
+    /** Pass of the most recently dispatched thread. */
+    private long globalPass;
+
+    /** Should the next thread be chosen by lottery? */
+    private final boolean lottery;
+
+    /** Source of lottery draws. */
+    private final Random random;
+
+    /** Queue of CPUs that are idle. */
+    private final Queue<CPU> cpuList;
+
+    /** Terminated thread awaiting reclamation of its stack. */
+    private volatile NachosThread threadToBeDestroyed;
+
+    /** Spin lock for mutually exclusive access to scheduler state. */
+    private final SpinLock mutex = new SpinLock("scheduler mutex");
+
+    /**
+     * Scheduling state of one thread.
+     */
+    private static class Client {
+	final NachosThread thread;
+
+	/** Tickets held. */
+	int tickets;
+
+	/** Stride1 / tickets. */
+	long stride;
+
+	/** Virtual time at which the thread is next due to run. */
+	long pass;
+
+	/** Time up to which the thread has been charged. */
+	int lastCharged;
+
+	/** The process the thread belongs to. */
+	final Share share;
+
+	Client(NachosThread thread, int tickets, Share share) {
+	    this.thread = thread;
+	    this.share = share;
+	    setTickets(tickets);
+	}
+
+	void setTickets(int tickets) {
+	    this.tickets = tickets;
+	    stride = Stride1 / tickets;
+	}
+    }
+
+    /**
+     * The tickets held by a process and the CPU time its threads have used.
+     */
+    private static class Share {
+	final String name;
+
+	/** Tickets most recently set for the process. */
+	int tickets;
+
+	/** Total ticks of CPU time used. */
+	long runTicks;
+
+	Share(String name, int tickets) {
+	    this.name = name;
+	    this.tickets = tickets;
+	}
+    }
+
+    /**
+     * Initialize the scheduler.
+     * Set the queue of ready threads to empty.
+     * Initialize the list of CPUs to contain all the available CPUs.
+     *
+     * @param firstThread  The first NachosThread to run.
+     * @param lottery  true to choose threads by lottery, false by stride.
+     */
+    public StrideScheduler(NachosThread firstThread, boolean lottery) {
+	super(firstThread);
+	this.lottery = lottery;
+	random = new Random(Nachos.options.RANDOM_SEED);
+	readyQueue = new PriorityQueue<Client>(11, new Comparator<Client>() {
+	    public int compare(Client a, Client b) {
+		return a.pass < b.pass ? -1 : (a.pass == b.pass ? 0 : 1);
+	    }
+	});
+	clients = new HashMap<NachosThread, Client>();
+	shares = new HashMap<Integer, Share>();
+	running = new Client[Machine.NUM_CPUS];
+	cpuList = new FIFOQueue<CPU>();
+
+	Debug.println('+', "Initializing " + (lottery ? "lottery" : "stride")
+		+ " scheduler");
+
+	// Add all the CPUs to the idle CPU list, and set up their time-slice timers.
+	// A timer is only started when its CPU is given a thread to run.
+	for(int i = 0; i < Machine.NUM_CPUS; i++) {
+	    CPU cpu = Machine.getCPU(i);
+	    cpuList.offer(cpu);
+
+	    Timer timer = cpu.timer;
+	    timer.setHandler(new TimerInterruptHandler(timer));
+	}
+
+	Client first = clientOf(firstThread);
+
+	// Dispatch firstThread on the first CPU.
+	CPU firstCPU = cpuList.poll();
+	TickControl.enable(firstCPU);
+	startRunning(first, firstCPU);
+	firstCPU.dispatch(firstThread);
+    }
+
+    /**
+     * Stop the timers on all CPUs, in preparation for shutdown.
+     */
+    public void stop() {
+	for(int i = 0; i < Machine.NUM_CPUS; i++) {
+	    CPU cpu = Machine.getCPU(i);
+	    cpu.timer.stop();
+	}
+    }
+
+    /**
+     * Set the number of tickets a thread holds.
+     *
+     * @param thread The thread.
+     * @param tickets The number of tickets, from 1 to MaxTickets.
+     */
+    public void setShare(NachosThread thread, int tickets) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	Client c = clientOf(thread);
+	boolean queued = readyQueue.remove(c);
+	c.setTickets(tickets);
+	c.share.tickets = tickets;
+	if(queued)
+	    readyQueue.offer(c);
+	mutex.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Find the scheduling state of a thread, making it if the thread has
+     * not been seen before.  A user thread starts with the tickets of its
+     * process; a kernel thread with DefaultTickets.
+     * Assumes that the scheduler mutex is held.
+     */
+    private Client clientOf(NachosThread thread) {
+	Client c = clients.get(thread);
+	if(c == null) {
+	    int tickets = DefaultTickets;
+	    if(thread instanceof UserThread)
+		tickets = ((UserThread)thread).tickets;
+	    c = new Client(thread, tickets, shareOf(thread, tickets));
+	    c.pass = globalPass;
+	    clients.put(thread, c);
+	}
+	return c;
+    }
+
+    /**
+     * Find the Share of the process a thread belongs to, making it if the
+     * process has not been seen before.
+     * Assumes that the scheduler mutex is held.
+     */
+    private Share shareOf(NachosThread thread, int tickets) {
+	int pid = KernelProcess;
+	String name = "kernel";
+	if(thread instanceof UserThread) {
+	    UserThread t = (UserThread)thread;
+	    pid = t.processID;
+	    name = "process " + pid + " (" + t.joinRecord.name + ")";
+	}
+	Share share = shares.get(pid);
+	if(share == null) {
+	    share = new Share(name, tickets);
+	    shares.put(pid, share);
+	}
+	return share;
+    }
+
+    /**
+     * Mark a thread as ready, but not running, and put it on the ready queue
+     * for later scheduling onto a CPU.  If there are idle CPUs then threads
+     * are dispatched onto CPUs until either all CPUs are in use or there are
+     * no more threads ready to run.
+     *
+     * @param thread The thread to be put on the ready list.
+     */
+    public void readyToRun(NachosThread thread) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	makeReady(thread);
+	dispatchIdleCPUs();
+	mutex.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Mark a thread as ready and put it on the ready queue.  Its pass is
+     * brought up to globalPass, if it has fallen behind while blocked.
+     * Assumes that interrupts are disabled and that the scheduler mutex is held.
+     *
+     * @param thread The thread to be put on the ready list.
+     */
+    private void makeReady(NachosThread thread) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
+	SchedStats.ready(thread);
+	Client c = clientOf(thread);
+	c.pass = Math.max(c.pass, globalPass);
+	Debug.println('r', "Putting thread on ready queue: " + thread.name
+		+ ", pass " + c.pass);
+	thread.setStatus(NachosThread.READY);
+	readyQueue.offer(c);
+    }
+
+    /**
+     * If there are idle CPUs and threads ready to run, dispatch threads on CPUs
+     * until either all CPUs are in use or no more threads are ready to run.
+     * Assumes that interrupts have been disabled and that the scheduler mutex
+     * is held.
+     */
+    private void dispatchIdleCPUs() {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
+	while(!readyQueue.isEmpty() && !cpuList.isEmpty()) {
+	    Client c = choose(null);
+	    CPU cpu = cpuList.poll();
+	    startRunning(c, cpu);
+	    Debug.println('r', "Dispatching " + c.thread.name + " on " + cpu.name);
+	    TickControl.busy(cpu);
+	    SchedStats.dispatched(c.thread);
+	    cpu.dispatch(c.thread);
+	}
+    }
+
+    /**
+     * Choose the next thread to run and take it off the ready queue: the
+     * one with least pass, or the holder of a ticket drawn at random.
+     * Assumes that the scheduler mutex is held.
+     *
+     * @param current The running thread, which takes part in the choice
+     * as if it were ready, or null.
+     * @return the chosen thread (possibly current), or null if there is none.
+     */
+    private Client choose(Client current) {
+	if(!lottery) {
+	    Client next = readyQueue.peek();
+	    if(next == null || (current != null && current.pass <= next.pass))
+		return current;
+	    return readyQueue.poll();
+	}
+
+	int total = current == null ? 0 : current.tickets;
+	for(Client c : readyQueue)
+	    total += c.tickets;
+	if(total == 0)
+	    return null;
+	int winner = random.nextInt(total);
+	if(current != null) {
+	    if(winner < current.tickets)
+		return current;
+	    winner -= current.tickets;
+	}
+	Iterator<Client> it = readyQueue.iterator();
+	while(true) {
+	    Client c = it.next();
+	    if(winner < c.tickets) {
+		it.remove();
+		return c;
+	    }
+	    winner -= c.tickets;
+	}
+    }
+
+    /**
+     * Record that a thread is about to run on a CPU.
+     * Assumes that the scheduler mutex is held.
+     */
+    private void startRunning(Client c, CPU cpu) {
+	running[cpu.unit] = c;
+	c.lastCharged = Simulation.stats.totalTicks;
+	globalPass = Math.max(globalPass, c.pass);
+    }
+
+    /**
+     * Charge a thread for the time it has run since it was last charged:
+     * its stride for each quantum, in proportion.
+     * Assumes that the scheduler mutex is held.
+     */
+    private void charge(Client c) {
+	int now = Simulation.stats.totalTicks;
+	int used = now - c.lastCharged;
+	c.share.runTicks += used;
+	c.pass += c.stride * used / (Quantum * Timer.DefaultInterval);
+	c.lastCharged = now;
+    }
+
+    /**
+     * Yield the current CPU, either to another thread, or else leave it idle.
+     * The current thread is charged for the time it has run.  If it wants
+     * to keep running and is chosen again, it does; otherwise it goes back
+     * on the ready queue (or blocks, or finishes) and the chosen thread runs.
+     *
+     * This method must be called with interrupts disabled.
+     * When it eventually returns, the same will again be true.
+     *
+     * @param status  The status desired by the currently executing thread.
+     * @param  toRelease  If non-null, a spinlock held by the caller that is to be released
+     * atomically with relinquishing the CPU.
+     */
+    private void yieldCPU(int status, SpinLock toRelease) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	CPU currentCPU = CPU.currentCPU();
+	NachosThread currentThread = NachosThread.currentThread();
+
+	mutex.acquire();
+	Client current = clientOf(currentThread);
+	charge(current);
+	if(status == NachosThread.FINISHED)
+	    clients.remove(currentThread);
+	Client next = choose(status == NachosThread.RUNNING ? current : null);
+
+	// If the current thread wants to keep running and has been chosen
+	// again, do nothing.
+	if(next == current) {
+	    mutex.release();
+	    Debug.println('r', "No other thread to run -- " + currentThread.name
+		    			+ " continuing");
+	    return;
+	}
+	Debug.println('r', "Next thread to run: "
+		+ (next == null ? "(none)" : next.thread.name));
+
+	// The current thread will be suspending -- save its context.
+	currentThread.saveState();
+
+	if(toRelease != null)
+	    toRelease.release();
+	if(next != null) {
+	    // Switch the CPU from currentThread to nextThread.
+	    Debug.println('r', "Switching " + CPU.getName() +
+		    " from " + currentThread.name +
+		    " to " + next.thread.name);
+
+	    if(status == NachosThread.RUNNING) {
+		currentThread.setStatus(NachosThread.READY);
+		readyQueue.offer(current);
+	    } else if(status == NachosThread.BLOCKED) {
+		currentThread.setStatus(status);
+	    }
+	    startRunning(next, currentCPU);
+	    SchedStats.switched(currentThread, status, next.thread);
+	    CPU.switchTo(next.thread, mutex);
+	} else {
+	    // There is nothing for this CPU to do -- send it to the idle list.
+	    Debug.println('r', "Switching " + CPU.getName() +
+		    " from " + currentThread.name +
+		    " to idle");
+
+	    running[currentCPU.unit] = null;
+	    cpuList.offer(currentCPU);
+	    if(status != NachosThread.FINISHED)
+		currentThread.setStatus(status);
+	    TickControl.idle(currentCPU);
+	    SchedStats.switched(currentThread, status, null);
+	    CPU.idle(mutex);
+	}
+	// Control returns here when currentThread has been rescheduled,
+	// perhaps on a different CPU.
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	currentThread.restoreState();
+
+	Debug.println('r', "Now in thread: " + currentThread.name);
+    }
+
+    /**
+     * Relinquish the CPU if another thread is chosen to run instead.
+     */
+    public void yieldThread () {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+
+	Debug.println('r', "Yielding thread: " + NachosThread.currentThread().name);
+
+	yieldCPU(NachosThread.RUNNING, null);
+	// Control returns here when currentThread is rescheduled.
+
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Relinquish the CPU, because the current thread is going to block.
+     * This method assumes interrupts are disabled.
+     *
+     * @param  toRelease  A spinlock held by the caller that is to be released atomically
+     * with relinquishing the CPU.
+     */
+    public void sleepThread (SpinLock toRelease) {
+	NachosThread currentThread = NachosThread.currentThread();
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+
+	Debug.println('r', "Sleeping thread: " + currentThread.name);
+
+	yieldCPU(NachosThread.BLOCKED, toRelease);
+	// Control returns here when currentThread is rescheduled.
+	// The caller is responsible for re-enabling interrupts.
+    }
+
+    /**
+     * Called by a thread to terminate itself.  The next thread to finish
+     * destroys it.
+     */
+    public void finishThread() {
+	CPU.setLevel(CPU.IntOff);
+	NachosThread currentThread = NachosThread.currentThread();
+
+	Debug.println('r', "Finishing thread: " + currentThread.name);
+
+	currentThread.setStatus(NachosThread.FINISHED);
+
+	// Delete the carcass of any thread that died previously.
+	mutex.acquire();
+	if (threadToBeDestroyed != null) {
+	    threadToBeDestroyed.destroy();
+	    threadToBeDestroyed = null;
+	}
+	threadToBeDestroyed = currentThread;
+	mutex.release();
+
+	yieldCPU(NachosThread.FINISHED, null);
+	// not reached
+    }
+
+    /**
+     * Forget the scheduling state of a blocked thread that is about to be
+     * given another program to run: its pass is dropped, and the time it
+     * used stays with the process it last ran for.
+     *
+     * @param thread The thread, which is blocked.
+     */
+    public void forgetThread(NachosThread thread) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	clients.remove(thread);
+	mutex.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Print, for each process that has used the CPU, the share of it that
+     * its tickets asked for and the share it got, both as a percentage of
+     * the totals over all those processes.
+     */
+    public void printStats() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	mutex.acquire();
+	for(int i = 0; i < running.length; i++) {
+	    if(running[i] != null)
+		charge(running[i]);
+	}
+	long totalTickets = 0, totalTicks = 0;
+	for(Share share : shares.values()) {
+	    if(share.runTicks > 0) {
+		totalTickets += share.tickets;
+		totalTicks += share.runTicks;
+	    }
+	}
+	for(Share share : shares.values()) {
+	    if(share.runTicks > 0) {
+		Debug.printf('+', "%s: %d tickets, requested %.1f%%, got %.1f%%\n",
+			share.name, share.tickets,
+			100.0 * share.tickets / totalTickets,
+			100.0 * share.runTicks / totalTicks);
+	    }
+	}
+	mutex.release();
+	CPU.setLevel(oldLevel);
+	TickControl.printStats();
+    }
+
+    /**
+     * Interrupt handler for the time-slice timer.  Every Quantum interrupts
+     * it makes the interrupted thread yield, so that the next thread can be
+     * chosen.
+     */
+    private static class TimerInterruptHandler implements InterruptHandler {
+
+	/** The Timer device this is a handler for. */
+	private final Timer timer;
+
+	private int numInterrupts;
+
+	/**
+	 * Initialize an interrupt handler for a specified Timer device.
+	 *
+	 * @param timer  The device this handler is going to handle.
+	 */
+	public TimerInterruptHandler(Timer timer) {
+	    this.timer = timer;
+	    numInterrupts = 1;
+	}
+
+	public void handleInterrupt() {
+	    TickControl.tick();
+	    TimerWheel.tick();
+	    if (numInterrupts != Quantum) {
+		numInterrupts++;
+	    } else {
+		numInterrupts = 1;
+		Debug.println('i', "Timer interrupt: " + timer.name);
+		yieldOnReturn();
+	    }
+	}
+
+	/**
+	 * Cause a context switch in the interrupted thread when the
+	 * handler returns.
+	 */
+	private void yieldOnReturn() {
+	    Debug.println('i', "Yield on interrupt return requested");
+	    CPU.setOnInterruptReturn
+	    (new Runnable() {
+		public void run() {
+		    if(NachosThread.currentThread() != null) {
+			Debug.println('r', "Yielding current thread on interrupt return");
+			Nachos.scheduler.yieldThread();
+		    } else {
+			Debug.println('i', "No current thread on interrupt return, skipping yield");
+		    }
+		}
+	    });
+	}
+    }
+}
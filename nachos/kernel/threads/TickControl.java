@@ -0,0 +1,195 @@
+// TickControl.java
+//	Starting and stopping the per-CPU timers for tickless idle.
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.threads;
+
+import nachos.Debug;
+import nachos.machine.CPU;
+import nachos.machine.Machine;
+import nachos.machine.Simulation;
+import nachos.machine.Timer;
+
+/**
+ * Keeps the time-slice timer of a CPU running only while the CPU has
+ * something to do.  A scheduler that uses it calls busy() when it
+ * dispatches a thread on a CPU, idle() when a CPU runs out of threads,
+ * and tick() at the start of its timer interrupt handler, instead of
+ * starting every timer once and leaving it running.
+ *
+ * A timer cannot be stopped on every CPU at once, though: the TimerWheel
+ * is advanced by timer interrupts, so while any timeouts are pending the
+ * last CPU with a running timer keeps it, idle or not, until they have
+ * expired.  A timeout scheduled when no timer is running starts the timer
+ * of the current CPU.
+ *
+ * The machine's timers interrupt at a fixed interval, so a busy CPU
+ * still takes an interrupt every Timer.DefaultInterval ticks and counts
+ * out its quantum in them; what is saved is every interrupt on an idle CPU.
+ * The number of interrupts each CPU took is printed at shutdown, next to
+ * the number a CPU with its timer always running would have taken.
+ */
+public class TickControl {
+
+    /** Has a scheduler handed its timers over? */
+    private static volatile boolean enabled;
+
+    /** Whether the timer of each CPU is running. */
+    private static final boolean[] ticking = new boolean[Machine.NUM_CPUS];
+
+    /** Whether each CPU has been given a thread and has not since gone idle. */
+    private static final boolean[] busy = new boolean[Machine.NUM_CPUS];
+
+    /** The number of CPUs whose timer is running. */
+    private static int tickingCount;
+
+    /** Timer interrupts taken by each CPU. */
+    private static final int[] interrupts = new int[Machine.NUM_CPUS];
+
+    /** Times the timer of each CPU has been stopped for idleness. */
+    private static final int[] stops = new int[Machine.NUM_CPUS];
+
+    /** Spin lock for the above, which are used from every CPU. */
+    private static final SpinLock tickLock = new SpinLock("tick control lock");
+
+    /**
+     * Take over the timers of all CPUs, whose handlers have been set but
+     * which have not been started, and start the timer of the CPU the
+     * first thread is to run on.  Called by the scheduler's constructor,
+     * before any CPU is running, so no lock is taken.
+     *
+     * @param first The CPU the first thread is dispatched on.
+     */
+    public static void enable(CPU first) {
+	enabled = true;
+	busy[first.unit] = true;
+	ticking[first.unit] = true;
+	tickingCount = 1;
+	first.timer.start();
+    }
+
+    /**
+     * Start the timer of a CPU that is being given a thread to run, if
+     * it is not running already.  Assumes interrupts are disabled.
+     *
+     * @param cpu The CPU.
+     */
+    public static void busy(CPU cpu) {
+	if(!enabled)
+	    return;
+	tickLock.acquire();
+	busy[cpu.unit] = true;
+	start(cpu);
+	tickLock.release();
+    }
+
+    /**
+     * Start the timer of an idle CPU, without marking it busy, so that its
+     * interrupt handler runs once and can dispatch a thread that has been
+     * left ready for it.  If it is given none, tick() stops the timer again.
+     * Assumes interrupts are disabled.
+     *
+     * @param cpu The CPU.
+     */
+    public static void wake(CPU cpu) {
+	if(!enabled)
+	    return;
+	tickLock.acquire();
+	start(cpu);
+	tickLock.release();
+    }
+
+    /**
+     * Start the timer of a CPU if it is not running.  Assumes the tick lock
+     * is held.
+     */
+    private static void start(CPU cpu) {
+	if(!ticking[cpu.unit]) {
+	    ticking[cpu.unit] = true;
+	    tickingCount++;
+	    cpu.timer.start();
+	}
+    }
+
+    /**
+     * Note that a CPU has nothing to run, and stop its timer unless it is
+     * the last timer running and timeouts are pending.  Assumes interrupts
+     * are disabled.
+     *
+     * @param cpu The CPU, which must be the current one.
+     */
+    public static void idle(CPU cpu) {
+	if(!enabled)
+	    return;
+	tickLock.acquire();
+	busy[cpu.unit] = false;
+	stop(cpu);
+	tickLock.release();
+    }
+
+    /**
+     * Stop the timer of an idle CPU, unless it is the last timer running
+     * and timeouts are pending.  Assumes the tick lock is held.
+     */
+    private static void stop(CPU cpu) {
+	if(ticking[cpu.unit]
+		&& (tickingCount > 1 || !TimerWheel.hasPending())) {
+	    ticking[cpu.unit] = false;
+	    tickingCount--;
+	    stops[cpu.unit]++;
+	    cpu.timer.stop();
+	}
+    }
+
+    /**
+     * Count a timer interrupt on the current CPU, and stop its timer if
+     * the CPU is idle and no longer needed to advance the TimerWheel.
+     * Called at the start of a timer interrupt handler.  Whether the CPU
+     * is idle is taken from busy() and idle(), not from currentThread(),
+     * which is null in every interrupt handler.
+     */
+    public static void tick() {
+	CPU cpu = CPU.currentCPU();
+	interrupts[cpu.unit]++;
+	if(!enabled)
+	    return;
+	tickLock.acquire();
+	if(!busy[cpu.unit])
+	    stop(cpu);
+	tickLock.release();
+    }
+
+    /**
+     * Make sure some CPU's timer is running, so that a timeout just
+     * scheduled will expire.  Called by TimerWheel.schedule(), with
+     * interrupts disabled.
+     */
+    static void ensureTicking() {
+	if(!enabled)
+	    return;
+	tickLock.acquire();
+	if(tickingCount == 0)
+	    start(CPU.currentCPU());
+	tickLock.release();
+    }
+
+    /**
+     * Print the number of timer interrupts each CPU took.
+     */
+    public static void printStats() {
+	if(!enabled)
+	    return;
+	int periodic = Simulation.stats.totalTicks / Timer.DefaultInterval;
+	int total = 0;
+	for(int i = 0; i < Machine.NUM_CPUS; i++) {
+	    Debug.println('+', "CPU" + i + ": " + interrupts[i] + " timer interrupts of "
+		    + periodic + " periodic, timer stopped " + stops[i] + " times");
+	    total += interrupts[i];
+	}
+	Debug.println('+', "Timer interrupts: " + total + " of "
+		+ periodic * Machine.NUM_CPUS + " periodic");
+    }
+}
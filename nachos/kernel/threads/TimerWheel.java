@@ -0,0 +1,237 @@
+// TimerWheel.java
+//	Timeouts for sleeping threads and timed waits.
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.threads;
+
+import nachos.Debug;
+import nachos.machine.CPU;
+import nachos.machine.Simulation;
+import nachos.machine.Timer;
+
+/**
+ * A hierarchical timing wheel, which runs actions once a given number of
+ * ticks have gone by.  It is what Sleep() and timed waits such as Poll()
+ * use, and does not depend on which scheduler is in use: every scheduler's
+ * timer interrupt handler calls tick(), and the wheel works out from the
+ * simulated clock how far it has to move.
+ *
+ * Time is kept in units of one timer interrupt (Resolution ticks).  Level 0
+ * of the wheel has a slot for each of the next Slots units; each slot of
+ * level 1 covers Slots units of level 0, and so on for Levels levels.  A
+ * timeout goes in the lowest level whose span reaches its expiry time.
+ * Each time level 0 wraps around, the next slot of level 1 is emptied and
+ * its timeouts put back in lower levels, and likewise further up.  Adding
+ * or cancelling a timeout takes constant time, and a tick costs only as
+ * much as the timeouts that expire or move down a level on it, however
+ * many threads are asleep.
+ *
+ * The actions of expired timeouts are run from the timer interrupt
+ * handler, with interrupts disabled, so they must not block; typically
+ * they do a V() on a semaphore, or broadcast a condition.
+ */
+public class TimerWheel {
+
+    /** Ticks in one unit of the wheel: the interval of the timer. */
+    public static final int Resolution = Timer.DefaultInterval;
+
+    /** log2 of the number of slots in each level. */
+    private static final int SlotBits = 6;
+
+    /** Number of slots in each level. */
+    private static final int Slots = 1 << SlotBits;
+
+    /** Number of levels. */
+    private static final int Levels = 4;
+
+    /** The slots: each is the sentinel of a circular list of timeouts. */
+    private static final Timeout[][] wheel = new Timeout[Levels][Slots];
+
+    /** The time, in units, up to which the wheel has been advanced. */
+    private static volatile long current = Simulation.stats.totalTicks / Resolution;
+
+    /** The number of timeouts that have neither expired nor been cancelled. */
+    private static volatile int pending;
+
+    /** Spin lock for the wheel, which is used from every CPU. */
+    private static final SpinLock wheelLock = new SpinLock("timer wheel lock");
+
+    static {
+	for(int level = 0; level < Levels; level++) {
+	    for(int slot = 0; slot < Slots; slot++)
+		wheel[level][slot] = new Timeout(null);
+	}
+    }
+
+    /**
+     * An action to be run when a number of ticks have gone by.
+     */
+    public static class Timeout {
+
+	/** What to do when the timeout expires. */
+	private final Runnable action;
+
+	/** The time, in units, at which the timeout expires. */
+	private long when;
+
+	/** Neighbours in the list of the slot this timeout is in. */
+	private Timeout prev, next;
+
+	private Timeout(Runnable action) {
+	    this.action = action;
+	    prev = next = this;
+	}
+    }
+
+    /**
+     * Arrange for an action to be run after a number of ticks.
+     *
+     * @param ticks How many ticks from now the action is to be run.
+     * It will be run at the first timer interrupt at or after that time.
+     * @param action What to do, from interrupt context.
+     * @return the Timeout, which may be passed to cancel().
+     */
+    public static Timeout schedule(int ticks, Runnable action) {
+	Timeout t = new Timeout(action);
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	wheelLock.acquire();
+	t.when = Math.max(current + 1,
+		((long)Simulation.stats.totalTicks + ticks + Resolution - 1) / Resolution);
+	insert(t);
+	pending++;
+	wheelLock.release();
+	TickControl.ensureTicking();
+	CPU.setLevel(oldLevel);
+	return t;
+    }
+
+    /**
+     * Stop a timeout from expiring.
+     *
+     * @param t The Timeout returned by schedule().
+     * @return true if it was cancelled, false if it had already expired.
+     */
+    public static boolean cancel(Timeout t) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	wheelLock.acquire();
+	boolean cancelled = t.next != t;
+	if(cancelled) {
+	    unlink(t);
+	    pending--;
+	}
+	wheelLock.release();
+	CPU.setLevel(oldLevel);
+	return cancelled;
+    }
+
+    /**
+     * Block the current thread for a number of ticks.
+     *
+     * @param ticks The number of ticks to sleep.
+     */
+    public static void sleep(int ticks) {
+	final Semaphore wakeup = new Semaphore("sleep wakeup", 0);
+	schedule(ticks, new Runnable() {
+	    public void run() {
+		wakeup.V();
+	    }
+	});
+	wakeup.P();
+    }
+
+    /**
+     * @return true if any timeouts have yet to expire.
+     */
+    public static boolean hasPending() {
+	return pending > 0;
+    }
+
+    /**
+     * Advance the wheel to the present time, running the actions of any
+     * timeouts that have expired.  Called from the timer interrupt handlers
+     * of every CPU; calls after the first in the same unit find nothing to do.
+     */
+    public static void tick() {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	long now = Simulation.stats.totalTicks / Resolution;
+	if(now <= current)
+	    return;
+
+	Timeout expired = new Timeout(null);
+	wheelLock.acquire();
+	while(current < now) {
+	    current++;
+	    // When a level wraps around, bring down the next slot above it.
+	    for(int level = 1; level < Levels
+		    && slotOf(current, level - 1) == 0; level++)
+		cascade(level);
+	    Timeout slot = wheel[0][slotOf(current, 0)];
+	    while(slot.next != slot) {
+		Timeout t = slot.next;
+		unlink(t);
+		link(expired, t);
+		pending--;
+	    }
+	}
+	wheelLock.release();
+
+	// Run the actions without the lock, as they may take scheduler locks.
+	while(expired.next != expired) {
+	    Timeout t = expired.next;
+	    unlink(t);
+	    t.action.run();
+	}
+    }
+
+    /**
+     * Put a timeout into the slot for its expiry time.
+     * Assumes the wheel lock is held.
+     */
+    private static void insert(Timeout t) {
+	long delta = t.when - current;
+	int level = 0;
+	while(level < Levels - 1 && delta >= 1L << (SlotBits * (level + 1)))
+	    level++;
+	// Beyond the top level, wait in the furthest slot and cascade again.
+	long when = Math.min(t.when, current + (1L << (SlotBits * Levels)) - 1);
+	link(wheel[level][slotOf(when, level)], t);
+    }
+
+    /**
+     * Empty the current slot of a level, putting its timeouts back into
+     * lower levels.  Assumes the wheel lock is held.
+     */
+    private static void cascade(int level) {
+	Timeout slot = wheel[level][slotOf(current, level)];
+	while(slot.next != slot) {
+	    Timeout t = slot.next;
+	    unlink(t);
+	    if(t.when <= current)
+		t.when = current;
+	    insert(t);
+	}
+    }
+
+    /**
+     * @return the index in a level of the slot covering a time.
+     */
+    private static int slotOf(long when, int level) {
+	return (int)(when >> (SlotBits * level)) & (Slots - 1);
+    }
+
+    private static void link(Timeout list, Timeout t) {
+	t.prev = list.prev;
+	t.next = list;
+	list.prev.next = t;
+	list.prev = t;
+    }
+
+    private static void unlink(Timeout t) {
+	t.prev.next = t.next;
+	t.next.prev = t.prev;
+	t.prev = t.next = t;
+    }
+}
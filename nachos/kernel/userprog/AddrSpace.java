@@ -20,10 +20,12 @@
 package nachos.kernel.userprog;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
 import nachos.Debug;
+import nachos.kernel.Nachos;
 import nachos.machine.CPU;
 import nachos.machine.MIPS;
 import nachos.machine.Machine;
@@ -35,6 +37,7 @@ import nachos.noff.NoffHeader;
 import nachos.noff.NoffHeader.NoffSegment;
 import nachos.kernel.filesys.OpenFile;
 import nachos.kernel.filesys.OpenFileEntry;
+import nachos.kernel.threads.Lock;
 
 /**
  * This class manages "address spaces", which are the contexts in which
@@ -68,11 +71,51 @@ public class AddrSpace {
   private int numPages;
   private long sharedSize;
 
+  /** Number of pages in the address space when the executable was loaded. */
+  private int execPages;
+
+  /** Log of the executable's page faults, if prefetching is enabled. */
+  private PageFaultLog faultLog;
+
+  /** The executable this address space was loaded from. */
+  private OpenFile executable;
+
+  /** Files this address space has open, indexed by OpenFileId. */
+  public FileDescriptorTable fileTable;
+
+  /** Asynchronous I/O rings registered by IoSetup(), if any. */
+  public AsyncIO ioRing;
+
+  /** Output to ConsoleOutput not yet passed on to the console. */
+  public ConsoleBuffer consoleBuffer;
+
+  /** Shared memory segments attached to this address space. */
+  public List<SharedMemory.Attachment> shmAttachments = new LinkedList<SharedMemory.Attachment>();
+
+  /**
+   * The gang this address space's threads belong to: a new one for each
+   * program, shared with the copies forked from it.  An id rather than the
+   * first address space, so that a gang does not keep that alive once its
+   * program has exited.
+   */
+  public int gangId;
+
+  /** The gang id to be given to the next program. */
+  private static int nextGangId;
+
+  /** Lock for nextGangId. */
+  private static final Lock gangIdLock = new Lock("gang id lock");
+
   /**
    * Create a new address space.
    */
   public AddrSpace() { 
+      gangIdLock.acquire();
+      gangId = nextGangId++;
+      gangIdLock.release();
       nextVPN = 0;
+      fileTable = new FileDescriptorTable();
+      consoleBuffer = new ConsoleBuffer(Nachos.options.CONSOLE_BUFFERING);
   }
 
   /**
@@ -115,6 +158,9 @@ public class AddrSpace {
     Debug.println('M', "Initializing address space, numPages=" 
 		+ numPages + ", size=" + size);
 
+    execPages = numPages;
+    this.executable = executable;
+
     // first, set up the translation 
     pageTable = new TranslationEntry[numPages];
     
@@ -276,7 +322,7 @@ public class AddrSpace {
   protected int malloc(NoffSegment segment, OpenFile executable, boolean readOnly) {
      
       
-      if(numPages <= Machine.NumPhysPages && numPages<=MemoryManager.freePagesList.size()){
+      if(numPages <= Machine.NumPhysPages && numPages<=MemoryManager.numFreePages()){
 	  
 	    long size = roundToPage(segment.size);
 	    int numSegmentPages = (int)(size / Machine.PageSize);
@@ -296,9 +342,7 @@ public class AddrSpace {
 		entry = getEntry(bufferAddr);
 		
 		// Allocate some pages
-		MemoryManager.freePagesLock.acquire();
-		int freePageAddr= MemoryManager.freePagesList.removeFirst();
-		MemoryManager.freePagesLock.release();
+		int freePageAddr= MemoryManager.allocatePage();
 		entry.physicalPage = freePageAddr;
 		entry.valid = true;
 		entry.readOnly = readOnly;
@@ -371,6 +415,8 @@ public class AddrSpace {
    */
   public int demandMalloc (int virtAddr, OpenFile executable) {
       int vpn = (int)(virtAddr & LOW32BITS) / Machine.PageSize;
+      if(faultLog != null && vpn < execPages)
+	  faultLog.record(vpn);
       NoffHeader noffH;
       executable.seek(0);
       if((noffH = NoffHeader.readHeader(executable)) == null){
@@ -438,6 +484,106 @@ public class AddrSpace {
       return vpn;
   }
   
+  /**
+   * Attach the page fault log for the executable this address space was
+   * loaded from.  If an earlier run of the executable left a log behind,
+   * the pages in it are prefetched right away; otherwise the pages this run
+   * faults on are recorded, to be saved by saveFaultLog() when it exits.
+   *
+   * @param execName The name of the executable file.
+   * @param executable The open executable file.
+   */
+  public void startFaultLog(String execName, OpenFile executable) {
+      faultLog = PageFaultLog.load(execName);
+      if(faultLog.isReplaying())
+	  prefetch(executable, faultLog.getPages());
+  }
+
+  /**
+   * Write out the page fault log recorded by this address space, if any.
+   */
+  public void saveFaultLog() {
+      if(faultLog != null)
+	  faultLog.save();
+  }
+
+  /**
+   * Bring a list of pages of the executable into memory before they are
+   * touched.  Runs of consecutive pages that lie wholly within the code or
+   * initialized data segment are read from the executable with one read
+   * per run.  Any other page is loaded through demandMalloc(), just as if
+   * it had faulted.  Prefetching stops early rather than use up the last
+   * free physical pages; whatever is left is demand paged as usual.
+   *
+   * @param executable The file containing the object code.
+   * @param vpns The virtual pages to bring in, in the order to load them.
+   * @return the number of pages brought in.
+   */
+  public int prefetch(OpenFile executable, List<Integer> vpns) {
+      NoffHeader noffH;
+      executable.seek(0);
+      if((noffH = NoffHeader.readHeader(executable)) == null)
+	  return 0;
+
+      int count = 0;
+      int i = 0;
+      while(i < vpns.size()) {
+	  int vpn = vpns.get(i);
+	  if(vpn < 0 || vpn >= execPages || pageTable[vpn].valid) {
+	      i++;
+	      continue;
+	  }
+
+	  NoffSegment segment = wholePageSegment(vpn, noffH);
+	  int run = 1;
+	  if(segment != null) {
+	      while(i + run < vpns.size() && vpns.get(i + run) == vpn + run
+		      && vpn + run < execPages && !pageTable[vpn + run].valid
+		      && wholePageSegment(vpn + run, noffH) == segment)
+		  run++;
+	  }
+	  if(MemoryManager.numFreePages() <= run)
+	      break;
+
+	  if(segment == null) {
+	      demandMalloc(vpn * Machine.PageSize, executable);
+	  } else {
+	      // One read for the whole run, then one copy into each frame.
+	      byte[] buf = new byte[run * Machine.PageSize];
+	      executable.readAt(buf, 0, buf.length,
+		      segment.inFileAddr + vpn * Machine.PageSize);
+	      for(int j = 0; j < run; j++) {
+		  allocatePageTableEntry(vpn + j, segment == noffH.code);
+		  System.arraycopy(buf, j * Machine.PageSize, Machine.mainMemory,
+			  pageTable[vpn + j].physicalPage * Machine.PageSize,
+			  Machine.PageSize);
+	      }
+	  }
+	  count += run;
+	  i += run;
+      }
+
+      Debug.println('M', "Prefetched " + count + " of " + vpns.size() + " logged pages");
+      return count;
+  }
+
+  /**
+   * Determine whether a page lies entirely within the code or initialized
+   * data segment, so that it can be read straight from the executable.
+   *
+   * @param vpn The virtual page number.
+   * @param noffH The header of the executable.
+   * @return the segment holding the page, or null if the page is not
+   * wholly inside the code or initialized data segment.
+   */
+  private NoffSegment wholePageSegment(int vpn, NoffHeader noffH) {
+      List<NoffSegment> segments = findSegmentsAtPageFault(vpn, noffH);
+      if(segments.size() == 1
+	      && (segments.get(0) == noffH.code || segments.get(0) == noffH.initData))
+	  return segments.get(0);
+      return null;
+  }
+  
   /**
    * 
    * @param vpn
@@ -445,17 +591,13 @@ public class AddrSpace {
   private void allocatePageTableEntry (int vpn, boolean isReadOnly) {
       
 	//Get a free page for this address
-	MemoryManager.freePagesLock.acquire();
-	if(MemoryManager.freePagesList.size() <= 0){
+	int freePageAddr= MemoryManager.allocatePage();
+	if(freePageAddr < 0){
 	    Debug.println('+', "No more free physical pages left! Not allocating page.");
-	    MemoryManager.freePagesLock.release();
 	    Syscall.exit(0);
 	    return;
 	}
 	
-	int freePageAddr= MemoryManager.freePagesList.removeFirst();
-	MemoryManager.freePagesLock.release();
-	
 	//Extend the pageTable
 	if (vpn >= numPages) {
 	    int newPages = vpn - numPages - 1;
@@ -486,14 +628,12 @@ public class AddrSpace {
   protected int mallocStack(TranslationEntry pageTable[], AddrSpace space){
       Debug.println('M', "Allocating Space for stack");
       int numStackPages = UserStackSize / Machine.PageSize;
-      if(numPages <= Machine.NumPhysPages && numPages<=MemoryManager.freePagesList.size()) {
+      if(numPages <= Machine.NumPhysPages && numPages<=MemoryManager.numFreePages()) {
           for (int i = 0; i < numStackPages; i++) {
     	  TranslationEntry entry = pageTable[space.nextVPN];
     	  
     	  // Allocate some pages
-    	  MemoryManager.freePagesLock.acquire();
-    	  int freePageIndex = MemoryManager.freePagesList.removeFirst();
-    	  MemoryManager.freePagesLock.release();
+    	  int freePageIndex = MemoryManager.allocatePage();
     	  entry.physicalPage = freePageIndex;
     	  entry.valid = true;
     	  entry.use= true;
@@ -520,9 +660,7 @@ public class AddrSpace {
 	  for (int i=0; i< pageTable.length ; i++) {
 		TranslationEntry entry = pageTable[i];
 		if (entry.valid) {
-		    MemoryManager.freePagesLock.acquire();
-		    MemoryManager.freePagesList.add(entry.physicalPage);
-		    MemoryManager.freePagesLock.release();
+		    MemoryManager.freePage(entry.physicalPage);
 		}
 	    }
 	  return 0;
@@ -567,9 +705,7 @@ public class AddrSpace {
 	    return -1;
 	} else if (!pageTable[(int) vpn].valid) {
 	    Debug.println('a', "virtual page # " + vpn + " not valid");
-	    UserThread curUserThrd = ((UserThread)NachosThread.currentThread());
-	    OpenFileEntry fileEntry = Syscall.findOpenFileEntry(curUserThrd.filename);
-	    demandMalloc(virtAddr, fileEntry.file);
+	    demandMalloc(virtAddr, executable);
 	    Simulation.stats.numPageFaults++;
 //	    return -1;
 	}
@@ -600,6 +736,213 @@ public class AddrSpace {
       return physAddr;
     }
  
+    /**
+     * Read from a file, at its current seek position, straight into a user
+     * buffer.  See fileIO().
+     * @param file the file to read
+     * @param virtAddr virtual address of the user buffer
+     * @param size number of bytes to read
+     * @return the number of bytes read, or -1 if the buffer is not valid
+     */
+    public int readFile(OpenFile file, int virtAddr, int size) {
+	return fileIO(file, virtAddr, size, -1, true);
+    }
+    
+    /**
+     * Write a user buffer straight to a file, at its current seek position.
+     * See fileIO().
+     * @param file the file to write
+     * @param virtAddr virtual address of the user buffer
+     * @param size number of bytes to write
+     * @return the number of bytes written, or -1 if the buffer is not valid
+     */
+    public int writeFile(OpenFile file, int virtAddr, int size) {
+	return fileIO(file, virtAddr, size, -1, false);
+    }
+    
+    /**
+     * Read from a file, at a given offset, straight into a user buffer.  The
+     * file's seek position is not used or changed.
+     * @param file the file to read
+     * @param virtAddr virtual address of the user buffer
+     * @param size number of bytes to read
+     * @param position offset in the file to read from
+     * @return the number of bytes read, or -1 if the buffer is not valid
+     */
+    public int readFileAt(OpenFile file, int virtAddr, int size, long position) {
+	return fileIO(file, virtAddr, size, position, true);
+    }
+    
+    /**
+     * Write a user buffer straight to a file, at a given offset.  The
+     * file's seek position is not used or changed.
+     * @param file the file to write
+     * @param virtAddr virtual address of the user buffer
+     * @param size number of bytes to write
+     * @param position offset in the file to write at
+     * @return the number of bytes written, or -1 if the buffer is not valid
+     */
+    public int writeFileAt(OpenFile file, int virtAddr, int size, long position) {
+	return fileIO(file, virtAddr, size, position, false);
+    }
+    
+    /**
+     * Copy bytes out of user memory, a page at a time, faulting pages in as
+     * needed.
+     * @param virtAddr virtual address to copy from
+     * @param data buffer to copy into
+     * @param offset position in data of the first byte
+     * @param length number of bytes to copy
+     * @return the number of bytes copied, or -1 if the address is not valid
+     */
+    public int copyIn(int virtAddr, byte[] data, int offset, int length) {
+	return copyUser(virtAddr, data, offset, length, false);
+    }
+    
+    /**
+     * Copy bytes into user memory, a page at a time, faulting pages in as
+     * needed.
+     * @param virtAddr virtual address to copy to
+     * @param data buffer to copy from
+     * @param offset position in data of the first byte
+     * @param length number of bytes to copy
+     * @return the number of bytes copied, or -1 if the address is not valid
+     */
+    public int copyOut(int virtAddr, byte[] data, int offset, int length) {
+	return copyUser(virtAddr, data, offset, length, true);
+    }
+    
+    private int copyUser(int virtAddr, byte[] data, int offset, int length, boolean toUser) {
+	int done = 0;
+	while(done < length) {
+	    int physAddr = translate(virtAddr + done, 1, toUser);
+	    if(physAddr < 0)
+		return done > 0 ? done : -1;
+	    int chunk = Math.min(length - done,
+		    Machine.PageSize - (int)(((virtAddr + done) & LOW32BITS) % Machine.PageSize));
+	    if(toUser)
+		System.arraycopy(data, offset + done, Machine.mainMemory, physAddr, chunk);
+	    else
+		System.arraycopy(Machine.mainMemory, physAddr, data, offset + done, chunk);
+	    done += chunk;
+	}
+	return done;
+    }
+    
+    /**
+     * Make sure every page of a user buffer is in memory, faulting in any
+     * that are not, so that the buffer can later be used from a thread that
+     * must not take a page fault.
+     * @param virtAddr virtual address of the buffer
+     * @param size length of the buffer
+     * @param writing true if the buffer is going to be written
+     * @return false if some part of the buffer is not a valid address
+     */
+    public boolean prefault(int virtAddr, int size, boolean writing) {
+	if(size <= 0)
+	    return true;
+	long first = (virtAddr & LOW32BITS) / Machine.PageSize;
+	long last = ((virtAddr & LOW32BITS) + size - 1) / Machine.PageSize;
+	for(long vpn = first; vpn <= last; vpn++) {
+	    int addr = (vpn == first) ? virtAddr : (int)(vpn * Machine.PageSize);
+	    if(translate(addr, 1, writing) < 0)
+		return false;
+	}
+	return true;
+    }
+    
+    /**
+     * Read a word from user memory.  User memory is little-endian.  The
+     * caller should check the address first (with prefault()), as an
+     * address that is not valid reads as 0.
+     * @param virtAddr word-aligned virtual address
+     * @return the word, or 0 if the address is not valid
+     */
+    public int readUserInt(int virtAddr) {
+	byte[] b = new byte[4];
+	if(copyIn(virtAddr, b, 0, 4) != 4) {
+	    Debug.println('a', "Reading a word at invalid address " + virtAddr);
+	    return 0;
+	}
+	return (b[0] & 0xff) | ((b[1] & 0xff) << 8) | ((b[2] & 0xff) << 16) | ((b[3] & 0xff) << 24);
+    }
+    
+    /**
+     * Write a word to user memory.  User memory is little-endian.
+     * @param virtAddr word-aligned virtual address
+     * @param value the word to write
+     */
+    public void writeUserInt(int virtAddr, int value) {
+	byte[] b = new byte[] {(byte)value, (byte)(value >> 8), (byte)(value >> 16), (byte)(value >> 24)};
+	copyOut(virtAddr, b, 0, 4);
+    }
+    
+    /**
+     * Transfer data between a file and a user buffer without copying it
+     * through a kernel buffer.  The buffer is walked through the page table
+     * (faulting pages in as needed), and each physically contiguous piece of
+     * it is handed to the file system as a slice of main memory, so that
+     * whole sectors move directly between the disk and the frames backing
+     * the buffer.
+     * @param file the file to transfer to or from
+     * @param virtAddr virtual address of the user buffer
+     * @param size number of bytes to transfer
+     * @param position offset in the file, or -1 to use the seek position
+     * @param toUser true to read from the file into the buffer, false to
+     * write the buffer to the file
+     * @return the number of bytes transferred, or -1 if the buffer is not
+     * valid or the file refused the transfer before any bytes moved
+     */
+    private int fileIO(OpenFile file, int virtAddr, int size, long position, boolean toUser) {
+	int done = 0;
+	while(done < size) {
+	    int physAddr = translate(virtAddr + done, 1, toUser);
+	    if(physAddr < 0)
+		return done > 0 ? done : -1;
+	    int chunk = contiguousLength(virtAddr + done, size - done, toUser);
+	    
+	    int n;
+	    if(position < 0)
+		n = toUser ? file.read(Machine.mainMemory, physAddr, chunk)
+			   : file.write(Machine.mainMemory, physAddr, chunk);
+	    else
+		n = toUser ? file.readAt(Machine.mainMemory, physAddr, chunk, position + done)
+			   : file.writeAt(Machine.mainMemory, physAddr, chunk, position + done);
+	    if(n < 0 && done == 0)
+		return -1;	// e.g. positioned I/O on a pipe
+	    if(n <= 0)
+		break;
+	    done += n;
+	    if(n < chunk)
+		break;
+	}
+	return done;
+    }
+    
+    /**
+     * Find how much of a user buffer is physically contiguous, starting at a
+     * virtual address whose page has already been translated.  Following
+     * pages are translated (and faulted in) one at a time for as long as
+     * each lands in the frame right after the one before.
+     * @param virtAddr virtual address of the start of the buffer
+     * @param size length of the buffer
+     * @param writing true if the buffer is about to be written
+     * @return the number of bytes, at most size, that lie in consecutive
+     * physical frames
+     */
+    private int contiguousLength(int virtAddr, int size, boolean writing) {
+	int vpn = (int)((virtAddr & LOW32BITS) / Machine.PageSize);
+	int length = Math.min(size, Machine.PageSize - (int)((virtAddr & LOW32BITS) % Machine.PageSize));
+	while(length < size) {
+	    int next = translate(virtAddr + length, 1, writing);
+	    if(next < 0 || next / Machine.PageSize != pageTable[vpn].physicalPage + 1)
+		break;
+	    vpn++;
+	    length += Math.min(size - length, Machine.PageSize);
+	}
+	return length;
+    }
+    
     public int readVirtualMemory(int virtualAddress, byte[] data, int offset, int length, boolean isEntryVPN) {
 
 	byte[] memory = Machine.mainMemory;
@@ -641,6 +984,9 @@ public class AddrSpace {
     public AddrSpace clone() {
 	AddrSpace newSpace = new AddrSpace();
 	newSpace.pageTable = new TranslationEntry[numPages];
+	newSpace.executable = executable;
+	newSpace.gangId = gangId;
+	newSpace.fileTable = fileTable.copy();	//share open files with the new space
 	int sharedPages = (int)sharedSize / Machine.PageSize;
 	
 	//initializing page tables
@@ -658,9 +1004,7 @@ public class AddrSpace {
 	 
 	for(int i = 0; i <sharedPages; i++) {
 	    // Allocate some pages
-	    MemoryManager.freePagesLock.acquire();
-	    int freePageAddr= MemoryManager.freePagesList.removeFirst();
-	    MemoryManager.freePagesLock.release();
+	    int freePageAddr= MemoryManager.allocatePage();
 	    newSpace.pageTable[i].physicalPage = freePageAddr;
 	    newSpace.pageTable[i].valid = true;
 	    newSpace.pageTable[i].readOnly = this.pageTable[i].readOnly;
@@ -698,7 +1042,7 @@ public class AddrSpace {
 	int newTotalPages = N + oldPageTableLength;
 	    
 	TranslationEntry newPageTable[] = new TranslationEntry[newTotalPages];
-	System.arraycopy(pageTable, 0, newPageTable, 0, numPages);
+	System.arraycopy(pageTable, 0, newPageTable, 0, oldPageTableLength);
 	pageTable = newPageTable;
 	CPU.setPageTable(pageTable);
 	numPages = newTotalPages;
@@ -718,6 +1062,42 @@ public class AddrSpace {
 	return N;	
     }
     
+    /**
+     * Back a newly mapped region with one physically contiguous run of
+     * frames and read the file into it with a single read.  If there is no
+     * free run big enough, the region is left to be paged in on demand.
+     * @param file the mapped region, as recorded by Mmap
+     * @param openFile the file being mapped
+     */
+    public void mapContiguous(MemMappedFile file, OpenFile openFile) {
+	int n = file.allocatedSize;
+	if(n == 0)
+	    return;
+	
+	int first = MemoryManager.allocateRun(n);
+	if(first < 0) {
+	    Debug.println('M', "No contiguous run of " + n + " pages for " + file.fileName);
+	    return;
+	}
+	
+	int base = first * Machine.PageSize;
+	Arrays.fill(Machine.mainMemory, base, base + n * Machine.PageSize, (byte)0);
+	openFile.readAt(Machine.mainMemory, base,
+		Math.min((int)openFile.length(), n * Machine.PageSize), 0);
+	
+	int startVpn = file.startAddr / Machine.PageSize;
+	for(int i = 0; i < n; i++) {
+	    TranslationEntry entry = pageTable[startVpn + i];
+	    entry.physicalPage = first + i;
+	    entry.valid = true;
+	    entry.use = false;
+	    entry.dirty = false;
+	    entry.readOnly = false;
+	}
+	file.firstFrame = first;
+	Debug.println('M', "Mapped " + file.fileName + " at frames " + first + "-" + (first + n - 1));
+    }
+    
     /**
      * Will be called on Exit Syscall
      * Removes MemMappedFile from the list in userthread
@@ -731,9 +1111,7 @@ public class AddrSpace {
 	for(MemMappedFile f: uThrd.mappedFiles) {
 	    freeMappedRegions(f.startAddr, f);	//free regions and write to file		
 	    
-	    OpenFileEntry fileEntry = Syscall.findOpenFileEntry(f.fileName);
-	    if(fileEntry != null)
-		Syscall.close(fileEntry.id);	//removes it from openFileList and close
+	    Syscall.close(f.fd);	//removes it from openFileList and close
 	}
 	
 	uThrd.mappedFiles = new LinkedList<MemMappedFile>();	//remove all from mappedfile list
@@ -747,15 +1125,39 @@ public class AddrSpace {
      * @return
      */
     public void freeMappedRegions (int startAddr, MemMappedFile file) {
-	long size = roundToPage(file.allocatedSize);
-	int allocatedPages = (int)(size / Machine.PageSize);
+	int allocatedPages = file.allocatedSize;
 	int startVpn = startAddr / Machine.PageSize;
+	
+	// Set if the region's frames went back as one run, so the pages
+	// are not written back or freed again one at a time below
+	boolean freedAsRun = false;
+	
+	if(file.firstFrame >= 0) {
+	    // The region lives in one physically contiguous run, so any
+	    // changes go back to the file with a single write straight out
+	    // of main memory.
+	    boolean dirty = false;
+	    for(int i = startVpn; i < startVpn + allocatedPages; i++)
+		dirty |= pageTable[i].dirty;
+	    
+	    OpenFileEntry openF = fileTable.get(file.fd);
+	    if(dirty && openF != null) {
+		OpenFile oFile = openF.file;
+		int length = Math.min((int)oFile.length(), allocatedPages * Machine.PageSize);
+		oFile.writeAt(Machine.mainMemory, file.firstFrame * Machine.PageSize, length, 0);
+	    }
+	    
+	    MemoryManager.freeRun(file.firstFrame);
+	    file.firstFrame = -1;
+	    freedAsRun = true;
+	}
+	
 	for(int i = startVpn; i < startVpn + allocatedPages; i++) {
 	    
-	    if(pageTable[i].physicalPage != -1){
+	    if(pageTable[i].valid && !freedAsRun){
 		
 		if(pageTable[i].dirty){
-		    OpenFileEntry openF = Syscall.findOpenFileEntry(file.fileName);
+		    OpenFileEntry openF = fileTable.get(file.fd);
 		    if(openF != null){
 			
 			OpenFile oFile = openF.file;
@@ -764,14 +1166,12 @@ public class AddrSpace {
 
 			readVirtualMemory(pageTable[i].virtualPage, buf, 0,
 				Machine.PageSize, true);
-			oFile.writeAt(buf, 0, Machine.PageSize, i - startVpn);
+			oFile.writeAt(buf, 0, Machine.PageSize, (i - startVpn) * Machine.PageSize);
 		    }
 		}
 		
 		// Put the physcial page back in the free page list
-		MemoryManager.freePagesLock.acquire();
-		MemoryManager.freePagesList.add(pageTable[i].physicalPage);
-		MemoryManager.freePagesLock.release();
+		MemoryManager.freePage(pageTable[i].physicalPage);
 	    }
 	    
 	    
@@ -796,10 +1196,10 @@ public class AddrSpace {
      * @param vAddr
      * @return
      */
-    public OpenFileEntry findFile(int vAddr) {
+    public OpenFile findFile(int vAddr) {
 	int vpn = vAddr / Machine.PageSize;
 	UserThread uThrd = (UserThread)NachosThread.currentThread();
-	OpenFileEntry ofe = null;
+	OpenFile file = null;
 	
 	//Search for the file in the memory mapped list
 	for(MemMappedFile f: uThrd.mappedFiles){
@@ -807,24 +1207,23 @@ public class AddrSpace {
 	    
 	    //If the vpn falls between the pages of the mapped file, return that file
 	    if(startVpn <= vpn && vpn <startVpn + f.allocatedSize){
-		ofe = Syscall.findOpenFileEntry(f.fileName);
+		OpenFileEntry ofe = fileTable.get(f.fd);
 		Debug.ASSERT(ofe != null); //Entry should never be null since we open all memory mapped files
+		file = ofe.file;
 		break;
 	    }
 	}
 	
 	//If not found, check if its the file of the running thread
-	if(ofe == null){
-	    //Get the file of the current thread
-	    OpenFileEntry fileEntry = Syscall.findOpenFileEntry(uThrd.filename);
+	if(file == null){
 	    if(vpn >=0 && vpn < numPages)
-		ofe = fileEntry;
+		file = executable;
 	}
 	
-	//If no ofe found, the page fault was on an unallocated address in main memory.
-	Debug.ASSERT(ofe != null);
+	//If no file found, the page fault was on an unallocated address in main memory.
+	Debug.ASSERT(file != null);
 	
-	return ofe;
+	return file;
     }
  
 }
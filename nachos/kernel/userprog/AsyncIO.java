@@ -0,0 +1,312 @@
+// AsyncIO.java
+//	Submission and completion rings for asynchronous file I/O.
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.userprog;
+
+import java.util.LinkedList;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.filesys.OpenFileEntry;
+import nachos.kernel.threads.Lock;
+import nachos.kernel.threads.Semaphore;
+import nachos.machine.NachosThread;
+
+/**
+ * An AsyncIO object holds the I/O rings that a user program has registered
+ * with IoSetup().  The rings live in the program's own address space:
+ *
+ *	struct io_ring {
+ *	    int sq_head, sq_tail;	(submission queue: kernel, user)
+ *	    int cq_head, cq_tail;	(completion queue: user, kernel)
+ *	    int entries;		(slots in each queue)
+ *	    struct io_sqe *sqes;	(submission slots)
+ *	    struct io_cqe *cqes;	(completion slots)
+ *	};
+ *
+ * The program fills in submission entries, advances sq_tail, and calls
+ * IoSubmit().  The kernel takes the entries between sq_head and sq_tail,
+ * advances sq_head, and hands each request to a pool of kernel worker
+ * threads, so the calling thread does not block on the disk.  As each
+ * request finishes, its worker writes a completion entry at cq_tail and
+ * advances cq_tail; the program consumes completions by advancing cq_head.
+ * Each index is only ever written by one side, and slot i of a queue is
+ * at index (i % entries).
+ *
+ * IoSubmit() never lets more requests be outstanding than there are free
+ * completion slots, so the completion queue cannot overflow.  User buffers
+ * are faulted in at submission time, in the submitting thread, so that the
+ * workers never take a page fault on a user's behalf.
+ *
+ * Only files can be used asynchronously; a request on the console
+ * completes at once with a result of -1.
+ */
+public class AsyncIO {
+
+    /** Opcode: read into the buffer. */
+    public static final int IO_READ = 0;
+
+    /** Opcode: write from the buffer. */
+    public static final int IO_WRITE = 1;
+
+    /** Opcode: do nothing, just post a completion. */
+    public static final int IO_NOP = 2;
+
+    // Byte offsets of the fields of struct io_ring.
+    private static final int SQ_HEAD = 0;
+    private static final int SQ_TAIL = 4;
+    private static final int CQ_HEAD = 8;
+    private static final int CQ_TAIL = 12;
+    private static final int ENTRIES = 16;
+    private static final int SQES = 20;
+    private static final int CQES = 24;
+    private static final int RingSize = 28;
+
+    /** Size of struct io_sqe {opcode, fd, buf, len, offset, user_data}. */
+    private static final int SqeSize = 24;
+
+    /** Size of struct io_cqe {user_data, result}. */
+    private static final int CqeSize = 8;
+
+    /** Number of kernel worker threads. */
+    private static final int NumWorkers = 4;
+
+    /** Requests waiting for a worker, from all processes. */
+    private static final LinkedList<Request> requests = new LinkedList<Request>();
+
+    /** Lock protecting the request queue. */
+    private static final Lock requestLock = new Lock("io request queue lock");
+
+    /** Counts requests waiting in the queue. */
+    private static final Semaphore requestsPending = new Semaphore("io requests pending", 0);
+
+    /** Have the worker threads been started? */
+    private static boolean workersStarted;
+
+    /** Address space the rings belong to. */
+    private final AddrSpace space;
+
+    /** Virtual address of the struct io_ring. */
+    private final int ringAddr;
+
+    /** Number of slots in each queue. */
+    private final int entries;
+
+    /** Virtual addresses of the submission and completion slots. */
+    private final int sqes, cqes;
+
+    /** Requests submitted and not yet completed. */
+    private int inflight;
+
+    /** Lock serializing completions, and updates of inflight. */
+    private final Lock lock = new Lock("io ring lock");
+
+    /** Signalled once for each completion posted. */
+    private final Semaphore completed = new Semaphore("io completions", 0);
+
+    /**
+     * One submitted request, waiting for or being handled by a worker.
+     */
+    private static class Request {
+	AsyncIO ring;
+	int opcode;
+	OpenFileEntry file;
+	int buf, len, offset, userData;
+    }
+
+    private AsyncIO(AddrSpace space, int ringAddr, int entries, int sqes, int cqes) {
+	this.space = space;
+	this.ringAddr = ringAddr;
+	this.entries = entries;
+	this.sqes = sqes;
+	this.cqes = cqes;
+    }
+
+    /**
+     * Register the rings described by a struct io_ring in an address space.
+     * The header and both sets of slots are faulted in, and the worker
+     * threads are started if this is the first ring in the system.
+     *
+     * @param space The address space holding the rings.
+     * @param ringAddr Virtual address of the struct io_ring.
+     * @return the new AsyncIO object, or null if the rings are not valid.
+     */
+    public static AsyncIO setup(AddrSpace space, int ringAddr) {
+	if(!space.prefault(ringAddr, RingSize, true))
+	    return null;
+	int entries = space.readUserInt(ringAddr + ENTRIES);
+	int sqes = space.readUserInt(ringAddr + SQES);
+	int cqes = space.readUserInt(ringAddr + CQES);
+	if(entries <= 0
+		|| !space.prefault(sqes, entries * SqeSize, false)
+		|| !space.prefault(cqes, entries * CqeSize, true))
+	    return null;
+
+	startWorkers();
+	Debug.println('S', "I/O rings registered at " + ringAddr + ", " + entries + " entries");
+	return new AsyncIO(space, ringAddr, entries, sqes, cqes);
+    }
+
+    /**
+     * Start the worker threads, unless they are already running.
+     */
+    private static void startWorkers() {
+	requestLock.acquire();
+	boolean start = !workersStarted;
+	workersStarted = true;
+	requestLock.release();
+	if(!start)
+	    return;
+
+	for(int i = 0; i < NumWorkers; i++) {
+	    NachosThread worker = new NachosThread("io worker " + i, new Runnable() {
+		public void run() {
+		    serveRequests();
+		}
+	    });
+	    Nachos.scheduler.readyToRun(worker);
+	}
+    }
+
+    /**
+     * Body of a worker thread: take requests off the queue, carry them
+     * out, and post their completions, forever.
+     */
+    private static void serveRequests() {
+	while(true) {
+	    requestsPending.P();
+	    requestLock.acquire();
+	    Request r = requests.removeFirst();
+	    requestLock.release();
+
+	    int result = r.ring.perform(r);
+	    Syscall.releaseOpenFileEntry(r.file);
+	    r.ring.complete(r.userData, result);
+	}
+    }
+
+    /**
+     * Take up to count requests from the submission queue and start them.
+     * If minComplete is positive, then wait until at least that many
+     * completions are waiting in the completion queue, or until every
+     * request in flight has completed, if that leaves fewer.
+     *
+     * @param count The most requests to take.
+     * @param minComplete The number of completions to wait for.
+     * @return the number of requests taken.
+     */
+    public int submit(int count, int minComplete) {
+	int head = space.readUserInt(ringAddr + SQ_HEAD);
+	int tail = space.readUserInt(ringAddr + SQ_TAIL);
+
+	lock.acquire();
+	int cqUsed = space.readUserInt(ringAddr + CQ_TAIL)
+		- space.readUserInt(ringAddr + CQ_HEAD);
+	int room = entries - cqUsed - inflight;
+	int n = Math.max(0, Math.min(count, Math.min(tail - head, room)));
+	inflight += n;
+	lock.release();
+
+	for(int i = 0; i < n; i++) {
+	    int sqe = sqes + ((head + i) % entries) * SqeSize;
+	    Request r = new Request();
+	    r.ring = this;
+	    r.opcode = space.readUserInt(sqe);
+	    int fd = space.readUserInt(sqe + 4);
+	    r.buf = space.readUserInt(sqe + 8);
+	    r.len = space.readUserInt(sqe + 12);
+	    r.offset = space.readUserInt(sqe + 16);
+	    r.userData = space.readUserInt(sqe + 20);
+	    r.file = space.fileTable.get(fd);
+
+	    if(r.opcode == IO_NOP) {
+		complete(r.userData, 0);
+	    } else if(r.file == null || (r.opcode != IO_READ && r.opcode != IO_WRITE)
+		    || r.len < 0 || !space.prefault(r.buf, r.len, r.opcode == IO_READ)) {
+		complete(r.userData, -1);
+	    } else {
+		// Hold the open file until the worker is done with it, in case
+		// the program closes it in the meantime.
+		Syscall.retainOpenFileEntry(r.file);
+		requestLock.acquire();
+		requests.offer(r);
+		requestLock.release();
+		requestsPending.V();
+	    }
+	}
+	space.writeUserInt(ringAddr + SQ_HEAD, head + n);
+
+	// Never wait for more completions than can still come: those waiting
+	// already and those of the requests in flight.
+	while(true) {
+	    lock.acquire();
+	    int waiting = space.readUserInt(ringAddr + CQ_TAIL)
+		    - space.readUserInt(ringAddr + CQ_HEAD);
+	    boolean enough = waiting >= Math.min(minComplete, waiting + inflight);
+	    lock.release();
+	    if(enough)
+		break;
+	    completed.P();
+	}
+	return n;
+    }
+
+    /**
+     * Carry out a request.  Called in a worker thread; the user buffer has
+     * already been faulted in.  The open file entry's lock is held, as it
+     * is by Pread and Pwrite as well as by Read and Write.
+     *
+     * @param r The request.
+     * @return the number of bytes transferred, or -1 on error.
+     */
+    private int perform(Request r) {
+	boolean reading = (r.opcode == IO_READ);
+	int result;
+	r.file.lock.acquire();
+	if(r.offset >= 0)
+	    result = reading ? space.readFileAt(r.file.file, r.buf, r.len, r.offset)
+			     : space.writeFileAt(r.file.file, r.buf, r.len, r.offset);
+	else	// A negative offset means the file's seek position
+	    result = reading ? space.readFile(r.file.file, r.buf, r.len)
+			     : space.writeFile(r.file.file, r.buf, r.len);
+	r.file.lock.release();
+	return result;
+    }
+
+    /**
+     * Post a completion entry and wake up anyone waiting for one.
+     *
+     * @param userData The user_data of the request.
+     * @param result The result of the request.
+     */
+    private void complete(int userData, int result) {
+	lock.acquire();
+	int tail = space.readUserInt(ringAddr + CQ_TAIL);
+	int cqe = cqes + (tail % entries) * CqeSize;
+	space.writeUserInt(cqe, userData);
+	space.writeUserInt(cqe + 4, result);
+	space.writeUserInt(ringAddr + CQ_TAIL, tail + 1);
+	inflight--;
+	lock.release();
+	completed.V();
+    }
+
+    /**
+     * Wait for every outstanding request to finish.  Called before the
+     * address space is freed.
+     */
+    public void drain() {
+	while(true) {
+	    lock.acquire();
+	    int n = inflight;
+	    lock.release();
+	    if(n == 0)
+		return;
+	    completed.P();
+	}
+    }
+}
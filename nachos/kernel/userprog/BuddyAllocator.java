@@ -0,0 +1,218 @@
+// BuddyAllocator.java
+//	Buddy-system allocator for physical page frames.
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.userprog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A BuddyAllocator hands out physically contiguous runs of page frames
+ * whose length is a power of two.  Free frames are kept in blocks, one
+ * free list per block order (a block of order k holds 2^k frames and starts
+ * at a frame number that is a multiple of 2^k).  An allocation takes the
+ * smallest free block that is big enough, splitting it in half as many
+ * times as needed; a free merges the block with its "buddy" (the other
+ * half of the block it was split from) for as long as the buddy is free.
+ *
+ * Each free list is kept sorted, so that allocations come from the lowest
+ * numbered frames first and the high end of memory stays unbroken for as
+ * long as possible.
+ *
+ * This class does no locking of its own; MemoryManager serializes access.
+ */
+public class BuddyAllocator {
+
+    /** Total number of frames managed. */
+    private final int numFrames;
+
+    /** Largest block order. */
+    private final int maxOrder;
+
+    /** Free block start frames, indexed by block order. */
+    private final List<TreeSet<Integer>> freeLists;
+
+    /** Order of the allocated block starting at each frame, or -1. */
+    private final int[] allocatedOrder;
+
+    /** Number of frames asked for in the allocation starting at each frame. */
+    private final int[] requested;
+
+    /** Number of frames currently free. */
+    private int freeFrames;
+
+    /** Number of frames asked for by callers and not yet freed. */
+    private int requestedFrames;
+
+    /** Number of allocations that could not be satisfied. */
+    private int failures;
+
+    /**
+     * Create an allocator for a range of frames, all initially free.
+     *
+     * @param numFrames The number of frames, numbered 0 to numFrames-1.
+     */
+    public BuddyAllocator(int numFrames) {
+	this.numFrames = numFrames;
+	int order = 0;
+	while((2 << order) <= numFrames)
+	    order++;
+	maxOrder = order;
+
+	freeLists = new ArrayList<TreeSet<Integer>>();
+	for(int k = 0; k <= maxOrder; k++)
+	    freeLists.add(new TreeSet<Integer>());
+	allocatedOrder = new int[numFrames];
+	requested = new int[numFrames];
+	for(int i = 0; i < numFrames; i++)
+	    allocatedOrder[i] = -1;
+
+	// Carve the frames into the largest aligned blocks that fit, so that
+	// a frame count that is not a power of two is still fully usable.
+	int frame = 0;
+	for(int k = maxOrder; k >= 0; k--) {
+	    while(frame + (1 << k) <= numFrames) {
+		freeLists.get(k).add(frame);
+		frame += 1 << k;
+	    }
+	}
+	freeFrames = numFrames;
+    }
+
+    /**
+     * Compute the smallest block order holding a number of frames.
+     *
+     * @param frames The number of frames.
+     * @return the order k such that 2^(k-1) < frames <= 2^k.
+     */
+    public static int orderFor(int frames) {
+	int order = 0;
+	while((1 << order) < frames)
+	    order++;
+	return order;
+    }
+
+    /**
+     * Allocate a physically contiguous run of frames.  The run is rounded up
+     * to the next power of two.
+     *
+     * @param frames The number of frames wanted.
+     * @return the first frame of the run, or -1 if no free block is big
+     * enough.
+     */
+    public int allocate(int frames) {
+	int order = orderFor(Math.max(frames, 1));
+	int k = order;
+	while(k <= maxOrder && freeLists.get(k).isEmpty())
+	    k++;
+	if(k > maxOrder) {
+	    failures++;
+	    return -1;
+	}
+
+	int block = freeLists.get(k).pollFirst();
+	// Split down to the wanted order, freeing the upper half each time.
+	while(k > order) {
+	    k--;
+	    freeLists.get(k).add(block + (1 << k));
+	}
+
+	allocatedOrder[block] = order;
+	requested[block] = frames;
+	freeFrames -= 1 << order;
+	requestedFrames += frames;
+	return block;
+    }
+
+    /**
+     * Free a run of frames returned by allocate(), merging it with its
+     * buddies where possible.
+     *
+     * @param block The first frame of the run.
+     * @return false if block is not the start of an allocated run.
+     */
+    public boolean free(int block) {
+	if(block < 0 || block >= numFrames || allocatedOrder[block] < 0)
+	    return false;
+
+	int order = allocatedOrder[block];
+	allocatedOrder[block] = -1;
+	freeFrames += 1 << order;
+	requestedFrames -= requested[block];
+	requested[block] = 0;
+
+	while(order < maxOrder) {
+	    int buddy = block ^ (1 << order);
+	    if(buddy + (1 << order) > numFrames || !freeLists.get(order).remove(buddy))
+		break;
+	    block = Math.min(block, buddy);
+	    order++;
+	}
+	freeLists.get(order).add(block);
+	return true;
+    }
+
+    /**
+     * @return the number of frames currently free.
+     */
+    public int freeFrames() {
+	return freeFrames;
+    }
+
+    /**
+     * @return the number of frames in the largest free block.
+     */
+    public int largestFreeBlock() {
+	for(int k = maxOrder; k >= 0; k--)
+	    if(!freeLists.get(k).isEmpty())
+		return 1 << k;
+	return 0;
+    }
+
+    /**
+     * External fragmentation: the fraction of free memory that lies outside
+     * the largest free block, and so cannot be handed out as one run.
+     *
+     * @return a value between 0 (no fragmentation) and 1.
+     */
+    public double externalFragmentation() {
+	if(freeFrames == 0)
+	    return 0.0;
+	return 1.0 - (double)largestFreeBlock() / freeFrames;
+    }
+
+    /**
+     * Internal fragmentation: the fraction of allocated frames that were
+     * only handed out because runs are rounded up to a power of two.
+     *
+     * @return a value between 0 (no waste) and 1.
+     */
+    public double internalFragmentation() {
+	int allocated = numFrames - freeFrames;
+	if(allocated == 0)
+	    return 0.0;
+	return 1.0 - (double)requestedFrames / allocated;
+    }
+
+    /**
+     * @return a summary of the free lists and fragmentation.
+     */
+    public String toString() {
+	StringBuffer sb = new StringBuffer();
+	sb.append("Frames: " + numFrames + ", free " + freeFrames
+		+ ", largest free block " + largestFreeBlock()
+		+ ", failed allocations " + failures + "\n");
+	sb.append("Free blocks by order:");
+	for(int k = 0; k <= maxOrder; k++)
+	    sb.append(" " + k + ":" + freeLists.get(k).size());
+	sb.append("\n");
+	sb.append(String.format("External fragmentation %.2f, internal fragmentation %.2f",
+		externalFragmentation(), internalFragmentation()));
+	return sb.toString();
+    }
+}
@@ -0,0 +1,132 @@
+// ConsoleBuffer.java
+//	Per-process buffering of output to the console.
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.userprog;
+
+import nachos.Debug;
+import nachos.kernel.threads.Lock;
+
+/**
+ * A ConsoleBuffer collects the bytes a process writes to ConsoleOutput and
+ * hands them to the console driver in batches, rather than one Write at a
+ * time.  Each address space has its own buffer, so the output of one
+ * process is never split up by the output of another in the middle of a
+ * batch.
+ *
+ * A buffer works in one of three modes:
+ *
+ *	UNBUFFERED	every Write is passed on at once (the old behavior);
+ *	LINE_BUFFERED	output is passed on when a newline is written;
+ *	BLOCK_BUFFERED	output is passed on only when the buffer fills.
+ *
+ * In every mode the buffer is also emptied when it fills up, when the
+ * program calls Flush(ConsoleOutput), before it reads from the console (so
+ * that a prompt appears before the program waits for input), and when it
+ * forks or exits.
+ */
+public class ConsoleBuffer {
+
+    /** Mode: pass each Write straight on to the console. */
+    public static final int UNBUFFERED = 0;
+
+    /** Mode: pass output on at each newline. */
+    public static final int LINE_BUFFERED = 1;
+
+    /** Mode: pass output on only when the buffer is full. */
+    public static final int BLOCK_BUFFERED = 2;
+
+    /** Number of bytes a buffer holds. */
+    public static final int BufferSize = 128;
+
+    /** Bytes written and not yet passed on. */
+    private final byte[] buffer = new byte[BufferSize];
+
+    /** Number of bytes in the buffer. */
+    private int count;
+
+    /** The buffering mode. */
+    private final int mode;
+
+    /** Lock serializing threads writing through this buffer. */
+    private final Lock lock = new Lock("console buffer lock");
+
+    /**
+     * Create an empty buffer.
+     *
+     * @param mode UNBUFFERED, LINE_BUFFERED or BLOCK_BUFFERED.
+     */
+    public ConsoleBuffer(int mode) {
+	this.mode = mode;
+    }
+
+    /**
+     * Add bytes written to ConsoleOutput to the buffer, passing the buffer
+     * on to the console as the mode requires.
+     *
+     * @param data The bytes written.
+     * @param size The number of bytes.
+     */
+    public void write(byte[] data, int size) {
+	lock.acquire();
+	int done = 0;
+	while(done < size) {
+	    if(count == 0 && size - done >= BufferSize) {
+		// No point copying a whole buffer's worth; send it as it is.
+		int n = size - done;
+		byte[] chunk = data;
+		if(done > 0) {
+		    chunk = new byte[n];
+		    System.arraycopy(data, done, chunk, 0, n);
+		}
+		Syscall.writeConsole(chunk, n);
+		done = size;
+		break;
+	    }
+	    int n = Math.min(size - done, BufferSize - count);
+	    System.arraycopy(data, done, buffer, count, n);
+	    count += n;
+	    done += n;
+	    if(count == BufferSize)
+		drain();
+	}
+
+	if(mode == UNBUFFERED || (mode == LINE_BUFFERED && hasNewline(data, size)))
+	    drain();
+	lock.release();
+    }
+
+    /**
+     * Pass anything in the buffer on to the console.
+     */
+    public void flush() {
+	lock.acquire();
+	drain();
+	lock.release();
+    }
+
+    /**
+     * Pass the contents of the buffer on to the console in one batch.  The
+     * caller holds the lock.
+     */
+    private void drain() {
+	if(count == 0)
+	    return;
+	Debug.println('S', "Flushing " + count + " bytes of console output");
+	Syscall.writeConsole(buffer, count);
+	count = 0;
+    }
+
+    /**
+     * @return true if the first size bytes of data include a newline.
+     */
+    private static boolean hasNewline(byte[] data, int size) {
+	for(int i = 0; i < size; i++)
+	    if(data[i] == '\n')
+		return true;
+	return false;
+    }
+}
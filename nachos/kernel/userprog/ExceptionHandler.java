@@ -8,7 +8,6 @@ import nachos.kernel.Nachos;
 import nachos.kernel.filesys.FileSystem;
 import nachos.kernel.filesys.OpenFile;
 import nachos.kernel.filesys.OpenFileEntry;
-import nachos.kernel.threads.Semaphore;
 import nachos.Debug;
 import nachos.machine.CPU;
 import nachos.machine.MIPS;
@@ -29,9 +28,6 @@ import nachos.kernel.userprog.Syscall;
  */
 public class ExceptionHandler implements nachos.machine.ExceptionHandler {
 
-    //Semaphore for read/write
-    private Semaphore ioSemaphore = new Semaphore("ioSemaphore", 1);
-    
     /**
      * Entry point into the Nachos kernel. Called when a user program is
      * executing, and either does a syscall, or generates an addressing or
@@ -61,107 +57,11 @@ public class ExceptionHandler implements nachos.machine.ExceptionHandler {
 	//Handle syscalls here
 	if (which == MachineException.SyscallException) {
 
-	    switch (type) {
-
-	    case Syscall.SC_Join:
-		result = Syscall.join(CPU.readRegister(4));
-		CPU.writeRegister(2, result);
-		break;
-	    case Syscall.SC_Create:
-		String createFile = getFileName(4);
-		Syscall.create(createFile);
-		break;
-	    case Syscall.SC_Open:
-		String openFile = getFileName(4);
-		result = Syscall.open(openFile);
-		CPU.writeRegister(2, result);
-		break;
-	    case Syscall.SC_Read:
-		//Block on read
-		ioSemaphore.P();
-		
-		int virtualAddress = CPU.readRegister(4);
-		int inputLength = CPU.readRegister(5);
-		byte readBuf[] = new byte[inputLength];
-		result = Syscall.read(readBuf, inputLength, CPU.readRegister(6));
-		int physicalAddress = ((UserThread)NachosThread.currentThread()).space.translate(virtualAddress, inputLength, true);
-		System.arraycopy(readBuf, 0, Machine.mainMemory, physicalAddress, inputLength);
-		CPU.writeRegister(2, result);
-		
-		//Release block
-		ioSemaphore.V();
-		break;
-	    case Syscall.SC_Close:
-		Syscall.close(CPU.readRegister(4));
-		break;
-	    case Syscall.SC_Fork:
-		Syscall.fork(CPU.readRegister(4));
-		break;
-	    case Syscall.SC_Yield:
-		Syscall.yield();
-		break;
-	    case Syscall.SC_Remove:
-		String removeFile = getFileName(4);
-		Syscall.remove(removeFile);
-		break;
-	    case Syscall.SC_Halt:
-		Syscall.halt();
-		break;
-	    case Syscall.SC_Exit:
-		Syscall.exit(CPU.readRegister(4));
-		break;
-	    case Syscall.SC_Exec:
-		String fileName = getFileName(4);
-		result = Syscall.exec(fileName);
-		CPU.writeRegister(2, result);
-		break;
-	    case Syscall.SC_Write:
-		//Block on write
-		ioSemaphore.P();
-		Debug.println('S', "Write syscall");
-		int ptr = CPU.readRegister(4);
-		int len = CPU.readRegister(5);
-		
-		byte buf[] = new byte[len];
-		((UserThread)NachosThread.currentThread()).space.readVirtualMemory(ptr, buf, 0, len, false);
-		
-		Syscall.write(buf, len, CPU.readRegister(6));
-		
-		//Release block
-		ioSemaphore.V();
-		break;
-	    case Syscall.SC_Sleep:
-		Syscall.sleep(CPU.readRegister(4));
-		break;
-	    case Syscall.SC_Mkdir:
-		String makedirName = getFileName(4);
-		Syscall.makeDirectory(makedirName);
-		break;
-	    case Syscall.SC_Rmdir:
-		String removedirName = getFileName(4);
-		Syscall.removeDirectory(removedirName);
-		break;
-	    case Syscall.SC_Mmap:
-		Debug.println('S', "Mmap called");
-		String name = getFileName(4);
-		int sizeAddr = CPU.readRegister(5);
-		int startAddr = Syscall.Mmap(name, sizeAddr);
-		CPU.writeRegister(2, startAddr);
-		
-		
-		break;
-	    case Syscall.SC_Munmap:
-		Debug.println('S', "Munmap called");
-		startAddr = CPU.readRegister(4);
-		Syscall.Munmap(startAddr);
-		break;
-		
-	    default:
-		Debug.println('S', "Invalid Syscall: " + type);
-		Debug.ASSERT(false);
-	    }
-
+	    result = doSyscall(type, CPU.readRegister(4), CPU.readRegister(5),
+		    CPU.readRegister(6), CPU.readRegister(7));
+	    
 	    // Write syscall status back to result register and update the program counter.
+	    CPU.writeRegister(2, result);
 	    CPU.writeRegister(MIPS.PrevPCReg, CPU.readRegister(MIPS.PCReg));
 	    CPU.writeRegister(MIPS.PCReg, CPU.readRegister(MIPS.NextPCReg));
 	    CPU.writeRegister(MIPS.NextPCReg, CPU.readRegister(MIPS.NextPCReg) + 4);
@@ -178,10 +78,10 @@ public class ExceptionHandler implements nachos.machine.ExceptionHandler {
 	    UserThread curUserThrd = ((UserThread)NachosThread.currentThread());
 //	    OpenFileEntry fileEntry = Syscall.findOpenFileEntry(curUserThrd.filename);
 //	    Debug.ASSERT(fileEntry != null , "Cannot find an OpenFileEntry with name: " + curUserThrd.filename);
-	    OpenFileEntry fileEntry = curUserThrd.space.findFile(vAddr);
+	    OpenFile file = curUserThrd.space.findFile(vAddr);
 	    
-	    //fileEntry.file is the executable
-	    ((UserThread)NachosThread.currentThread()).space.demandMalloc(vAddr, fileEntry.file);
+	    //file is the executable, or a memory mapped file
+	    ((UserThread)NachosThread.currentThread()).space.demandMalloc(vAddr, file);
 	}
 	else{
 	    System.out.println("Unexpected user mode exception " + which + ", " + type);
@@ -190,6 +90,210 @@ public class ExceptionHandler implements nachos.machine.ExceptionHandler {
 
     }
 
+    /**
+     * Carry out one system call.  Used both for a syscall trap, with the
+     * arguments taken from r4-r7, and for each entry of a Batch.
+     * 
+     * @param type
+     *            The system call code.
+     * @param arg1
+     *            First argument.
+     * @param arg2
+     *            Second argument.
+     * @param arg3
+     *            Third argument.
+     * @param arg4
+     *            Fourth argument.
+     * @return The result of the call; 0 for calls that have none, and a
+     *         negative value if the call failed.
+     */
+    public int doSyscall(int type, int arg1, int arg2, int arg3, int arg4) {
+	int result = 0;
+	AddrSpace space = ((UserThread)NachosThread.currentThread()).space;
+
+	switch (type) {
+
+	case Syscall.SC_Join:
+	    result = Syscall.join(arg1);
+	    break;
+	case Syscall.SC_Create:
+	    Syscall.create(readFileName(arg1));
+	    break;
+	case Syscall.SC_Open:
+	    result = Syscall.open(readFileName(arg1));
+	    break;
+	case Syscall.SC_Read:
+	    if(arg3 == Syscall.ConsoleInput) {
+		byte readBuf[] = new byte[arg2];
+		result = Syscall.read(readBuf, arg2, arg3);
+		space.copyOut(arg1, readBuf, 0, result);
+	    } else {
+		//Files are read straight into the user's buffer
+		result = Syscall.readUser(arg1, arg2, arg3);
+	    }
+	    break;
+	case Syscall.SC_Close:
+	    Syscall.close(arg1);
+	    break;
+	case Syscall.SC_Fork:
+	    Syscall.fork(arg1);
+	    break;
+	case Syscall.SC_Yield:
+	    Syscall.yield();
+	    break;
+	case Syscall.SC_Remove:
+	    Syscall.remove(readFileName(arg1));
+	    break;
+	case Syscall.SC_Halt:
+	    Syscall.halt();
+	    break;
+	case Syscall.SC_Exit:
+	    Syscall.exit(arg1);
+	    break;
+	case Syscall.SC_Exec:
+	    result = Syscall.exec(readFileName(arg1));
+	    break;
+	case Syscall.SC_Write:
+	    Debug.println('S', "Write syscall");
+	    if(arg3 == Syscall.ConsoleOutput) {
+		byte buf[] = new byte[arg2];
+		space.copyIn(arg1, buf, 0, arg2);
+		Syscall.write(buf, arg2, arg3);
+		result = arg2;
+	    } else {
+		//Files are written straight from the user's buffer
+		result = Syscall.writeUser(arg1, arg2, arg3);
+	    }
+	    break;
+	case Syscall.SC_Sleep:
+	    Syscall.sleep(arg1);
+	    break;
+	case Syscall.SC_Mkdir:
+	    Syscall.makeDirectory(readFileName(arg1));
+	    break;
+	case Syscall.SC_Rmdir:
+	    Syscall.removeDirectory(readFileName(arg1));
+	    break;
+	case Syscall.SC_Mmap:
+	    Debug.println('S', "Mmap called");
+	    result = Syscall.Mmap(readFileName(arg1), arg2);
+	    break;
+	case Syscall.SC_Pread:
+	    result = Syscall.pread(arg1, arg2, arg3, arg4);
+	    break;
+	case Syscall.SC_Pwrite:
+	    result = Syscall.pwrite(arg1, arg2, arg3, arg4);
+	    break;
+	case Syscall.SC_Readv:
+	    result = Syscall.readv(arg1, arg2, arg3);
+	    break;
+	case Syscall.SC_Writev:
+	    result = Syscall.writev(arg1, arg2, arg3);
+	    break;
+	case Syscall.SC_IoSetup:
+	    result = Syscall.ioSetup(arg1);
+	    break;
+	case Syscall.SC_IoSubmit:
+	    result = Syscall.ioSubmit(arg1, arg2);
+	    break;
+	case Syscall.SC_Munmap:
+	    Debug.println('S', "Munmap called");
+	    result = Syscall.Munmap(arg1);
+	    break;
+	case Syscall.SC_Flush:
+	    result = Syscall.flush(arg1);
+	    break;
+	case Syscall.SC_Pipe:
+	    result = Syscall.pipe(arg1);
+	    break;
+	case Syscall.SC_ShmCreate:
+	    result = SharedMemory.create(space, readFileName(arg1), arg2);
+	    break;
+	case Syscall.SC_ShmAttach:
+	    result = SharedMemory.attach(space, readFileName(arg1));
+	    break;
+	case Syscall.SC_ShmDetach:
+	    result = SharedMemory.detach(space, arg1);
+	    break;
+	case Syscall.SC_FutexWait:
+	    result = Futex.await(space, arg1, arg2);
+	    break;
+	case Syscall.SC_FutexWake:
+	    result = Futex.wake(space, arg1, arg2);
+	    break;
+	case Syscall.SC_CopyFile:
+	    result = Syscall.copyFile(arg1, arg2, arg3);
+	    break;
+	case Syscall.SC_Poll:
+	    result = Poll.poll(space, arg1, arg2, arg3);
+	    break;
+	case Syscall.SC_SetShare:
+	    result = Syscall.setShare(arg1);
+	    break;
+	case Syscall.SC_SetRealTime:
+	    result = Syscall.setRealTime(arg1, arg2, arg3);
+	    break;
+	case Syscall.SC_SetAffinity:
+	    result = Syscall.setAffinity(arg1);
+	    break;
+	case Syscall.SC_Batch:
+	    result = doBatch(arg1, arg2, arg3);
+	    break;
+	    
+	default:
+	    // The code comes from the user program, which must not be able
+	    // to stop the kernel with it.
+	    Debug.println('S', "Invalid Syscall: " + type);
+	    result = -1;
+	}
+	return result;
+    }
+
+    /**
+     * Carry out a Batch call: run each system call described in an array of
+     * struct syscall_desc {code, args[4], result} in user memory, in order,
+     * writing each result back into its descriptor.
+     * 
+     * @param descAddr
+     *            Virtual address of the descriptor array.
+     * @param count
+     *            The number of descriptors.
+     * @param flags
+     *            Syscall.BATCH_STOP_ON_ERROR to stop after the first call
+     *            that returns a negative result.
+     * @return The number of calls carried out, or -1 if count is more
+     *         than Syscall.BatchMax or the array is not valid.
+     */
+    private int doBatch(int descAddr, int count, int flags) {
+	AddrSpace space = ((UserThread)NachosThread.currentThread()).space;
+	// Check the whole array first: a descriptor at a bad address would
+	// read as code 0, which is Halt.
+	if(count > Syscall.BatchMax
+		|| !space.prefault(descAddr, count * Syscall.BatchDescSize, true))
+	    return -1;
+	int i;
+	for(i = 0; i < count; i++) {
+	    int desc = descAddr + i * Syscall.BatchDescSize;
+	    int code = space.readUserInt(desc);
+	    int result;
+	    if(code == Syscall.SC_Batch || code == Syscall.SC_Exit) {
+		// No nesting, and no exiting with results left unwritten
+		result = -1;
+	    } else {
+		result = doSyscall(code, space.readUserInt(desc + 4),
+			space.readUserInt(desc + 8), space.readUserInt(desc + 12),
+			space.readUserInt(desc + 16));
+	    }
+	    space.writeUserInt(desc + 20, result);
+	    if(result < 0 && (flags & Syscall.BATCH_STOP_ON_ERROR) != 0) {
+		i++;
+		break;
+	    }
+	}
+	Debug.println('S', "Batch ran " + i + " of " + count + " calls");
+	return i;
+    }
+
     /*
      * Function to return a string from an array of bytes.
      */
@@ -219,22 +323,9 @@ public class ExceptionHandler implements nachos.machine.ExceptionHandler {
      */
     public String getFileName(int reg) {
 
-	Debug.println('S', "getFileName obtaining name from pointer.");
-
 	// Check reg number
 	if (reg >= 2 && reg <= 25) {
-	    int length = 20; // Typically allow only 255 chars for filename.
-	    int ptr = CPU.readRegister(reg); // Get the address this pointer is pointing to.
-	    byte buf[] = new byte[length];
-	    String fileName;
-	    
-	    int pAddr = ((UserThread)NachosThread.currentThread()).space.translate(ptr, length, false);
-
-	    System.arraycopy(Machine.mainMemory, pAddr, buf, 0, length);
-	    fileName = bytesToString(buf);
-	    Debug.println('S', "File name is: " + fileName);
-
-	    return fileName;
+	    return readFileName(CPU.readRegister(reg));
 	}
 	// Otherwise return null
 	else {
@@ -243,4 +334,22 @@ public class ExceptionHandler implements nachos.machine.ExceptionHandler {
 	}
     }
 
+    /*
+     * Returns the filename stored in user memory at the given address.
+     */
+    public String readFileName(int ptr) {
+
+	Debug.println('S', "readFileName obtaining name from pointer.");
+
+	int length = 20; // Typically allow only 255 chars for filename.
+	byte buf[] = new byte[length];
+	String fileName;
+
+	((UserThread)NachosThread.currentThread()).space.copyIn(ptr, buf, 0, length);
+	fileName = bytesToString(buf);
+	Debug.println('S', "File name is: " + fileName);
+
+	return fileName;
+    }
+
 }
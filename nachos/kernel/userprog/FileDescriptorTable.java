@@ -0,0 +1,145 @@
+// FileDescriptorTable.java
+//	Per-process table mapping OpenFileIds to open files.
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.userprog;
+
+import nachos.kernel.filesys.OpenFileEntry;
+import nachos.kernel.threads.Lock;
+
+/**
+ * A FileDescriptorTable belongs to a single address space, and maps the
+ * OpenFileIds used by that process to entries in the system-wide open file
+ * table (Syscall.openFileList).  An OpenFileId is just an index into an
+ * array, so looking one up takes constant time, and since each process
+ * has its own table (and its own lock), processes never contend with one
+ * another to look up their files.
+ *
+ * Ids 0 and 1 are reserved for ConsoleInput and ConsoleOutput, so the
+ * first file opened gets id 2.  The lowest free id is always handed out
+ * first, as in UNIX.
+ *
+ * Several descriptors, in the same or different processes, may refer to
+ * the same OpenFileEntry (for instance after Fork), and so share its seek
+ * position.  The entry counts those references, and the file is only
+ * closed when the last one goes away.
+ */
+public class FileDescriptorTable {
+
+    /** Number of descriptors a table starts out with. */
+    private static final int InitialSize = 16;
+
+    /** First id handed out for files; 0 and 1 are the console. */
+    public static final int FirstFileId = 2;
+
+    /** Open file entries, indexed by OpenFileId. */
+    private OpenFileEntry[] entries = new OpenFileEntry[InitialSize];
+
+    /** Lowest id that might be free. */
+    private int lowestFree = FirstFileId;
+
+    /** Lock serializing changes to this table. */
+    private final Lock lock = new Lock("fd table lock");
+
+    /**
+     * Enter an open file into the table.  The caller's reference to the
+     * entry is handed over to the table.
+     *
+     * @param entry The open file entry.
+     * @return the OpenFileId now referring to the entry.
+     */
+    public int add(OpenFileEntry entry) {
+	lock.acquire();
+	int fd = lowestFree;
+	while(fd < entries.length && entries[fd] != null)
+	    fd++;
+	if(fd == entries.length) {
+	    OpenFileEntry[] bigger = new OpenFileEntry[2 * entries.length];
+	    System.arraycopy(entries, 0, bigger, 0, entries.length);
+	    entries = bigger;
+	}
+	entries[fd] = entry;
+	lowestFree = fd + 1;
+	lock.release();
+	return fd;
+    }
+
+    /**
+     * Look up an OpenFileId.
+     *
+     * @param fd The OpenFileId.
+     * @return the open file entry, or null if fd is not open.
+     */
+    public OpenFileEntry get(int fd) {
+	OpenFileEntry[] e = entries;
+	if(fd < FirstFileId || fd >= e.length)
+	    return null;
+	return e[fd];
+    }
+
+    /**
+     * Remove an OpenFileId from the table.  The reference it held is handed
+     * back to the caller, who is responsible for releasing it.
+     *
+     * @param fd The OpenFileId.
+     * @return the entry fd referred to, or null if fd was not open.
+     */
+    public OpenFileEntry remove(int fd) {
+	lock.acquire();
+	OpenFileEntry entry = null;
+	if(fd >= FirstFileId && fd < entries.length) {
+	    entry = entries[fd];
+	    entries[fd] = null;
+	    if(entry != null && fd < lowestFree)
+		lowestFree = fd;
+	}
+	lock.release();
+	return entry;
+    }
+
+    /**
+     * Find an OpenFileId referring to a file with a given name.
+     *
+     * @param name The name the file was opened by.
+     * @return the lowest such OpenFileId, or -1 if there is none.
+     */
+    public int find(String name) {
+	OpenFileEntry[] e = entries;
+	for(int fd = FirstFileId; fd < e.length; fd++)
+	    if(e[fd] != null && e[fd].name.equals(name))
+		return fd;
+	return -1;
+    }
+
+    /**
+     * @return one more than the highest OpenFileId that may be in use.
+     */
+    public int size() {
+	return entries.length;
+    }
+
+    /**
+     * Make a copy of this table for a new process.  Each entry gains a
+     * reference, so that the copy shares the open files (and their seek
+     * positions) with this table.
+     *
+     * @return the new table.
+     */
+    public FileDescriptorTable copy() {
+	FileDescriptorTable t = new FileDescriptorTable();
+	lock.acquire();
+	t.entries = new OpenFileEntry[entries.length];
+	for(int fd = FirstFileId; fd < entries.length; fd++) {
+	    if(entries[fd] != null) {
+		Syscall.retainOpenFileEntry(entries[fd]);
+		t.entries[fd] = entries[fd];
+	    }
+	}
+	t.lowestFree = lowestFree;
+	lock.release();
+	return t;
+    }
+}
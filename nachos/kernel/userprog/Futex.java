@@ -0,0 +1,122 @@
+// Futex.java
+//	Kernel wait queues for user-level synchronization.
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.userprog;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import nachos.Debug;
+import nachos.kernel.threads.Lock;
+import nachos.kernel.threads.Semaphore;
+import nachos.machine.Machine;
+
+/**
+ * Futexes ("fast user-space mutexes") let user programs build their own
+ * locks and condition variables out of ordinary words of memory.  A
+ * program only traps into the kernel when it has to wait, or when it has
+ * to wake someone who is waiting:
+ *
+ *	FutexWait(addr, expected) -- if the word at addr still holds
+ *		expected, sleep until woken; otherwise return at once.
+ *	FutexWake(addr, n) -- wake up to n threads sleeping on addr.
+ *
+ * The check in FutexWait and the decision to sleep are made under the
+ * same lock that FutexWake takes, so a wakeup that comes after the
+ * program read the word, but before it trapped, is never lost.
+ *
+ * Wait queues are keyed by the physical address of the word, which
+ * identifies it uniquely whichever address space it is seen through.  A
+ * word in a private page can only be waited on by its own process, while
+ * a word in a shared memory segment works across every process that has
+ * the segment attached.  Each waiter sleeps on a Semaphore of its own, so
+ * that FutexWake wakes exactly the threads it takes off the queue, in the
+ * order they went to sleep.
+ */
+public class Futex {
+
+    /** Sleeping threads, by physical address of the word waited on. */
+    private static final Map<Integer, LinkedList<Semaphore>> queues =
+	new HashMap<Integer, LinkedList<Semaphore>>();
+
+    /** Lock protecting the wait queues. */
+    private static final Lock futexLock = new Lock("futex lock");
+
+    /**
+     * Sleep until woken, provided that a word of user memory still holds
+     * an expected value.
+     *
+     * @param space The caller's address space.
+     * @param addr Virtual address of the word; must be word aligned.
+     * @param expected The value the caller last saw in the word.
+     * @return 0 after being woken, or -1 if the word did not hold expected
+     * or addr is not valid.
+     */
+    public static int await(AddrSpace space, int addr, int expected) {
+	int physAddr = space.translate(addr, 4, false);
+	if(physAddr < 0)
+	    return -1;
+
+	futexLock.acquire();
+	if(readWord(physAddr) != expected) {
+	    futexLock.release();
+	    return -1;
+	}
+	LinkedList<Semaphore> queue = queues.get(physAddr);
+	if(queue == null) {
+	    queue = new LinkedList<Semaphore>();
+	    queues.put(physAddr, queue);
+	}
+	Semaphore wakeup = new Semaphore("futex wakeup", 0);
+	queue.offer(wakeup);
+	futexLock.release();
+
+	Debug.println('S', "FutexWait sleeping on " + addr);
+	wakeup.P();
+	return 0;
+    }
+
+    /**
+     * Wake threads sleeping on a word of user memory.
+     *
+     * @param space The caller's address space.
+     * @param addr Virtual address of the word; must be word aligned.
+     * @param n The most threads to wake.
+     * @return the number of threads woken, or -1 if addr is not valid.
+     */
+    public static int wake(AddrSpace space, int addr, int n) {
+	int physAddr = space.translate(addr, 4, false);
+	if(physAddr < 0)
+	    return -1;
+
+	int woken = 0;
+	futexLock.acquire();
+	LinkedList<Semaphore> queue = queues.get(physAddr);
+	if(queue != null) {
+	    while(woken < n && !queue.isEmpty()) {
+		queue.poll().V();
+		woken++;
+	    }
+	    if(queue.isEmpty())
+		queues.remove(physAddr);
+	}
+	futexLock.release();
+
+	Debug.println('S', "FutexWake woke " + woken + " on " + addr);
+	return woken;
+    }
+
+    /**
+     * Read a little-endian word straight from main memory.
+     */
+    private static int readWord(int physAddr) {
+	byte[] m = Machine.mainMemory;
+	return (m[physAddr] & 0xff) | ((m[physAddr + 1] & 0xff) << 8)
+		| ((m[physAddr + 2] & 0xff) << 16) | ((m[physAddr + 3] & 0xff) << 24);
+    }
+}
@@ -16,6 +16,12 @@ public class MemMappedFile {
     
     public int allocatedSize;
     
+    /** OpenFileId of the mapped file in the owning address space */
+    public int fd = -1;
+    
+    /** First physical page of the contiguous run backing the region, or -1 */
+    public int firstFrame = -1;
+    
     
     public MemMappedFile (String fileName, int startAddr, int allocatedSize){
 	this.fileName = fileName;
@@ -1,27 +1,85 @@
 package nachos.kernel.userprog;
 
-import java.util.LinkedList;
 import nachos.Debug;
 import nachos.kernel.threads.Lock;
 import nachos.machine.*;
 
 public class MemoryManager {
-    
+
     public static int processID; // Every time a new thread is created, give it a new processID
-    public static LinkedList<Integer> freePagesList = new LinkedList<Integer>(); //List to keep track of free pages
+    public static BuddyAllocator frames; //Keeps track of free physical pages
     public static Lock processIDLock;
     public static Lock freePagesLock;
-    
+
     public MemoryManager(){
 	processIDLock = new Lock("processIDLock");
 	freePagesLock = new Lock("freePagesLock");
-	
-	//add all physical pages to freePages linked list
-	for (int i=0; i < Machine.NumPhysPages; i++) {
-	    freePagesList.add(i);
-	}
-	
-	Debug.println('M', "Creating Memory Manager. Size: " + freePagesList.size());
-	
+
+	//all physical pages start out free
+	frames = new BuddyAllocator(Machine.NumPhysPages);
+
+	Debug.println('M', "Creating Memory Manager. Size: " + frames.freeFrames());
+
+    }
+
+    /**
+     * Allocate a single physical page.
+     * @return the physical page number, or -1 if memory is full
+     */
+    public static int allocatePage() {
+	return allocateRun(1);
+    }
+
+    /**
+     * Return a single physical page to the free pool.
+     * @param ppn physical page number returned by allocatePage()
+     */
+    public static void freePage(int ppn) {
+	freeRun(ppn);
+    }
+
+    /**
+     * Allocate a physically contiguous run of pages.  The run is rounded up
+     * to a power of two pages.  Runs are used for mmap'd regions; kernel
+     * I/O buffers (disk staging, network packets) are Java arrays outside
+     * the simulated physical memory, so they are not allocated here.
+     * @param numPages number of pages wanted
+     * @return the first physical page of the run, or -1 if there is no
+     * free run that big
+     */
+    public static int allocateRun(int numPages) {
+	freePagesLock.acquire();
+	int ppn = frames.allocate(numPages);
+	freePagesLock.release();
+	return ppn;
+    }
+
+    /**
+     * Return a run of pages allocated by allocateRun() to the free pool.
+     * @param ppn the first physical page of the run
+     */
+    public static void freeRun(int ppn) {
+	freePagesLock.acquire();
+	boolean freed = frames.free(ppn);
+	freePagesLock.release();
+	if(!freed)
+	    Debug.println('M', "Freeing page " + ppn + " that was not allocated");
+    }
+
+    /**
+     * @return the number of free physical pages
+     */
+    public static int numFreePages() {
+	return frames.freeFrames();
+    }
+
+    /**
+     * Print the free page and fragmentation statistics.
+     */
+    public static void printStats() {
+	freePagesLock.acquire();
+	String stats = frames.toString();
+	freePagesLock.release();
+	Debug.println('M', "Physical memory:\n" + stats);
     }
 }
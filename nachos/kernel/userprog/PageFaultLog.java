@@ -0,0 +1,159 @@
+// PageFaultLog.java
+//	Record of the pages a user program demand-faults on, kept in a
+//	sidecar file so that later runs can prefetch their working set.
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.userprog;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.filesys.FileSystem;
+import nachos.kernel.filesys.OpenFile;
+
+/**
+ * A PageFaultLog keeps the ordered list of virtual page numbers that an
+ * executable faulted on while it was running.  The first run of a program
+ * records its faults and writes them to a sidecar file on the Nachos disk,
+ * named after the executable with SUFFIX appended.  Later runs of the same
+ * program find the sidecar file and hand the list to AddrSpace.prefetch(),
+ * which reads the whole working set in before the program starts, instead
+ * of taking one page fault (and one disk read) per page.
+ *
+ * On disk, the log is a count followed by that many page numbers, each
+ * stored as a 4-byte integer using FileSystem.intToBytes().
+ */
+public class PageFaultLog {
+
+    /** Suffix appended to the executable name to get the sidecar file name. */
+    public static final String SUFFIX = ".pf";
+
+    /** Name of the sidecar file holding this log. */
+    private final String logName;
+
+    /** Faulting virtual page numbers, in the order they first faulted. */
+    private final List<Integer> vpns = new ArrayList<Integer>();
+
+    /** Pages already in the log, to keep each page from being logged twice. */
+    private final Set<Integer> logged = new HashSet<Integer>();
+
+    /**
+     * True if this log was read from an existing sidecar file, in which case
+     * it is only replayed and never rewritten.
+     */
+    private boolean replaying;
+
+    /**
+     * Create an empty log for an executable.
+     *
+     * @param execName The name of the executable file the log belongs to.
+     */
+    private PageFaultLog(String execName) {
+	logName = execName + SUFFIX;
+    }
+
+    /**
+     * Get the log for an executable.  If a sidecar file exists for it, the
+     * recorded pages are read in and the log is marked for replay;
+     * otherwise an empty log is returned that will record new faults.
+     *
+     * @param execName The name of the executable file.
+     * @return the log for the executable.
+     */
+    public static PageFaultLog load(String execName) {
+	PageFaultLog log = new PageFaultLog(execName);
+	OpenFile file = Nachos.fileSystem.open(log.logName);
+	if(file == null) {
+	    Debug.println('M', "No page fault log for " + execName + ", recording");
+	    return log;
+	}
+
+	byte buf[] = new byte[4];
+	if(file.readAt(buf, 0, 4, 0) == 4) {
+	    int count = FileSystem.bytesToInt(buf, 0);
+	    if(count > 0 && 4 + 4 * (long)count <= file.length()) {
+		byte data[] = new byte[4 * count];
+		file.readAt(data, 0, data.length, 4);
+		for(int i = 0; i < count; i++)
+		    log.add(FileSystem.bytesToInt(data, 4 * i));
+	    }
+	}
+	file.close();
+
+	log.replaying = true;
+	Debug.println('M', "Loaded page fault log for " + execName + ": "
+		+ log.vpns.size() + " pages");
+	return log;
+    }
+
+    /**
+     * Note that a page of the executable has been faulted in.  Ignored if the
+     * log is being replayed, or if the page has already been recorded.
+     *
+     * @param vpn The virtual page number that faulted.
+     */
+    public void record(int vpn) {
+	if(!replaying)
+	    add(vpn);
+    }
+
+    /**
+     * Add a page to the log, unless it is already there.
+     *
+     * @param vpn The virtual page number to add.
+     */
+    private void add(int vpn) {
+	if(logged.add(vpn))
+	    vpns.add(vpn);
+    }
+
+    /**
+     * Write a newly recorded log out to its sidecar file.  Logs that were
+     * loaded from disk, or that are empty, are left alone.
+     */
+    public void save() {
+	if(replaying || vpns.isEmpty())
+	    return;
+
+	if(!Nachos.fileSystem.create(logName, 0)) {
+	    Debug.println('M', "Could not create page fault log " + logName);
+	    return;
+	}
+	OpenFile file = Nachos.fileSystem.open(logName);
+	if(file == null)
+	    return;
+
+	byte buf[] = new byte[4 + 4 * vpns.size()];
+	FileSystem.intToBytes(vpns.size(), buf, 0);
+	for(int i = 0; i < vpns.size(); i++)
+	    FileSystem.intToBytes(vpns.get(i), buf, 4 + 4 * i);
+	file.writeAt(buf, 0, buf.length, 0);
+	file.close();
+
+	// Only the first run to exit gets to write the log.
+	replaying = true;
+	Debug.println('M', "Saved page fault log " + logName + ": "
+		+ vpns.size() + " pages");
+    }
+
+    /**
+     * @return true if this log holds pages recorded by an earlier run.
+     */
+    public boolean isReplaying() {
+	return replaying;
+    }
+
+    /**
+     * @return the recorded virtual page numbers, in fault order.
+     */
+    public List<Integer> getPages() {
+	return vpns;
+    }
+}
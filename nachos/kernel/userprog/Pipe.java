@@ -0,0 +1,222 @@
+// Pipe.java
+//	In-memory channel between a writer and a reader.
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.userprog;
+
+import nachos.Debug;
+import nachos.kernel.filesys.OpenFile;
+import nachos.kernel.threads.Condition;
+import nachos.kernel.threads.Lock;
+import nachos.machine.Machine;
+
+/**
+ * A Pipe is a bounded ring buffer in kernel memory with a read end and a
+ * write end.  Each end is an OpenFile, so the ends created by Pipe() are
+ * entered in the open file table like any other file and are used with the
+ * ordinary Read, Write and Close calls; they are passed on to children by
+ * Fork and Exec along with the rest of the descriptor table.
+ *
+ * Data is moved in and out of the ring with bulk array copies (at most two
+ * per call, when the data wraps around the end of the buffer), under a
+ * single lock per call.  A reader waits while the pipe is empty and then
+ * takes whatever is there, up to the amount asked for.  A writer waits
+ * while the pipe is full, and does not return until all its data has gone
+ * in.  Reading from a pipe whose write end has been closed returns what is
+ * left and then 0 (end of file); writing to a pipe whose read end has been
+ * closed fails.
+ *
+ * The ends cannot be positioned: readAt, writeAt and seek fail.
+ */
+public class Pipe {
+
+    /** Number of bytes a pipe holds. */
+    public static final int Capacity = 4 * Machine.PageSize;
+
+    /** The ring buffer. */
+    private final byte[] buffer = new byte[Capacity];
+
+    /** Index of the next byte to be read. */
+    private int head;
+
+    /** Number of bytes in the buffer. */
+    private int count;
+
+    /** Have the ends been closed? */
+    private boolean readerClosed, writerClosed;
+
+    /** Lock protecting the state of the pipe. */
+    private final Lock lock = new Lock("pipe lock");
+
+    /** Signalled when data is put into the pipe, or the writer closes. */
+    private final Condition notEmpty = new Condition("pipe not empty", lock);
+
+    /** Signalled when data is taken out of the pipe, or the reader closes. */
+    private final Condition notFull = new Condition("pipe not full", lock);
+
+    /** The read end of the pipe. */
+    public final ReadEnd readEnd = new ReadEnd();
+
+    /** The write end of the pipe. */
+    public final WriteEnd writeEnd = new WriteEnd();
+
+    /**
+     * Take bytes out of the pipe, waiting until there is at least one, or
+     * the write end is closed.
+     *
+     * @param into Buffer to put the bytes in.
+     * @param index Starting position in the buffer.
+     * @param numBytes The most bytes to take.
+     * @return the number of bytes taken, or 0 at end of file.
+     */
+    private int take(byte into[], int index, int numBytes) {
+	lock.acquire();
+	while(count == 0 && !writerClosed)
+	    notEmpty.await();
+
+	int n = Math.min(numBytes, count);
+	int first = Math.min(n, Capacity - head);
+	System.arraycopy(buffer, head, into, index, first);
+	System.arraycopy(buffer, 0, into, index + first, n - first);
+	head = (head + n) % Capacity;
+	count -= n;
+
+	if(n > 0)
+	    notFull.broadcast();
+	lock.release();
+	if(n > 0)
+	    Poll.wakeup();
+	return n;
+    }
+
+    /**
+     * Put bytes into the pipe, waiting for room as necessary.
+     *
+     * @param from Buffer holding the bytes.
+     * @param index Starting position in the buffer.
+     * @param numBytes The number of bytes to put.
+     * @return numBytes, or -1 if the read end was closed first.
+     */
+    private int put(byte from[], int index, int numBytes) {
+	int done = 0;
+	lock.acquire();
+	while(done < numBytes) {
+	    while(count == Capacity && !readerClosed)
+		notFull.await();
+	    if(readerClosed) {
+		lock.release();
+		Debug.println('S', "Write to a pipe with no reader");
+		return -1;
+	    }
+
+	    int n = Math.min(numBytes - done, Capacity - count);
+	    int tail = (head + count) % Capacity;
+	    int first = Math.min(n, Capacity - tail);
+	    System.arraycopy(from, index + done, buffer, tail, first);
+	    System.arraycopy(from, index + done + first, buffer, 0, n - first);
+	    count += n;
+	    done += n;
+	    notEmpty.broadcast();
+	    // A reader may be waiting in Poll rather than in take(), and we
+	    // may be about to wait for it to make room.
+	    Poll.wakeup();
+	}
+	lock.release();
+	return done;
+    }
+
+    /**
+     * Mark one end of the pipe closed and wake up anyone waiting on the
+     * other end.
+     *
+     * @param reader true for the read end, false for the write end.
+     */
+    private void closeEnd(boolean reader) {
+	lock.acquire();
+	if(reader) {
+	    readerClosed = true;
+	    notFull.broadcast();
+	} else {
+	    writerClosed = true;
+	    notEmpty.broadcast();
+	}
+	lock.release();
+	Poll.wakeup();
+    }
+
+    /**
+     * Operations shared by both ends: a pipe cannot be positioned, and is
+     * empty as far as length() is concerned.
+     */
+    private abstract class End implements OpenFile {
+
+	public void seek(long position) { }
+
+	public int readAt(byte into[], int index, int numBytes, long position) {
+	    return -1;
+	}
+
+	public int writeAt(byte from[], int index, int numBytes, long position) {
+	    return -1;
+	}
+
+	public long length() {
+	    return 0;
+	}
+    }
+
+    /**
+     * The read end of a pipe.
+     */
+    public class ReadEnd extends End {
+
+	/**
+	 * @return true if a read would not wait.
+	 */
+	public boolean isReadable() {
+	    return count > 0 || writerClosed;
+	}
+
+	public int read(byte into[], int index, int numBytes) {
+	    return take(into, index, numBytes);
+	}
+
+	public int write(byte from[], int index, int numBytes) {
+	    return -1;
+	}
+
+	public int close() {
+	    closeEnd(true);
+	    return 1;
+	}
+    }
+
+    /**
+     * The write end of a pipe.
+     */
+    public class WriteEnd extends End {
+
+	/**
+	 * @return true if a write of at least one byte would not wait.
+	 */
+	public boolean isWritable() {
+	    return count < Capacity || readerClosed;
+	}
+
+	public int read(byte into[], int index, int numBytes) {
+	    return -1;
+	}
+
+	public int write(byte from[], int index, int numBytes) {
+	    return put(from, index, numBytes);
+	}
+
+	public int close() {
+	    closeEnd(false);
+	    return 1;
+	}
+    }
+}
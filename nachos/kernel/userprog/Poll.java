@@ -0,0 +1,172 @@
+// Poll.java
+//	Waiting for any of several open files to become ready.
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.userprog;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.filesys.OpenFileEntry;
+import nachos.kernel.threads.Condition;
+import nachos.kernel.threads.Lock;
+import nachos.kernel.threads.TimerWheel;
+import nachos.machine.CPU;
+import nachos.machine.Simulation;
+
+/**
+ * Poll() lets one thread wait on many open files at once.  The program
+ * passes an array of
+ *
+ *	struct pollfd {
+ *	    int fd;		(the OpenFileId)
+ *	    int events;		(POLLIN and/or POLLOUT)
+ *	    int revents;	(filled in by the kernel)
+ *	};
+ *
+ * and a timeout in ticks, and the call returns as soon as at least one of
+ * the files is ready for what was asked, or the timeout runs out.
+ *
+ * A file is readable when a Read would not wait: ConsoleInput when a
+ * character has been typed, the read end of a pipe when it holds data or
+ * its writer has gone, and a disk file always.  It is writable when a
+ * Write would not wait: ConsoleOutput and disk files always, the write end
+ * of a pipe when it has room or its reader has gone.
+ *
+ * Rather than trying each file in turn, a polling thread sleeps on a single
+ * condition that is broadcast whenever readiness may have changed: by the
+ * pipes, as data goes in and out, and by the console driver, when a
+ * character arrives.  A poll with a timeout also sets a TimerWheel timeout
+ * that broadcasts the condition when it runs out.  On each wakeup the
+ * thread checks its files again.
+ */
+public class Poll {
+
+    /** Event: the file can be read without waiting. */
+    public static final int POLLIN = 1;
+
+    /** Event: the file can be written without waiting. */
+    public static final int POLLOUT = 2;
+
+    /** Returned event: the OpenFileId is not open. */
+    public static final int POLLNVAL = 4;
+
+    /** Size in bytes of a struct pollfd. */
+    private static final int PollfdSize = 12;
+
+    /** The most entries one Poll may name. */
+    public static final int PollMax = 1024;
+
+    /** Lock protecting the condition below. */
+    private static final Lock pollLock = new Lock("poll lock");
+
+    /** Broadcast whenever some file may have become ready. */
+    private static final Condition readinessChanged =
+	new Condition("poll readiness changed", pollLock);
+
+    /**
+     * Wait until at least one of a set of open files is ready.
+     *
+     * @param space The caller's address space.
+     * @param fdsAddr Virtual address of an array of struct pollfd.
+     * @param nfds The number of entries in the array.
+     * @param timeout The most ticks to wait; 0 to return at once, or a
+     * negative number to wait for as long as it takes.
+     * @return the number of entries with a nonzero revents, 0 if the
+     * timeout ran out first, or -1 if nfds is more than PollMax or the
+     * array is not valid.
+     */
+    public static int poll(AddrSpace space, int fdsAddr, int nfds, int timeout) {
+	// Bound nfds before multiplying, so the size cannot overflow.
+	if(nfds < 0 || nfds > PollMax
+		|| !space.prefault(fdsAddr, nfds * PollfdSize, true))
+	    return -1;
+	int[] fds = new int[nfds];
+	int[] events = new int[nfds];
+	for(int i = 0; i < nfds; i++) {
+	    fds[i] = space.readUserInt(fdsAddr + i * PollfdSize);
+	    events[i] = space.readUserInt(fdsAddr + i * PollfdSize + 4);
+	}
+	int deadline = Simulation.stats.totalTicks + timeout;
+	TimerWheel.Timeout timer = null;
+	if(timeout > 0) {
+	    timer = TimerWheel.schedule(timeout, new Runnable() {
+		public void run() {
+		    readinessChanged.broadcast();
+		}
+	    });
+	}
+
+	int[] revents = new int[nfds];
+	int ready;
+	pollLock.acquire();
+	while(true) {
+	    // Keep interrupts off from the check until we are asleep, so that
+	    // a character arriving in between is not missed.
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    ready = 0;
+	    for(int i = 0; i < nfds; i++) {
+		revents[i] = check(space, fds[i], events[i]);
+		if(revents[i] != 0)
+		    ready++;
+	    }
+	    if(ready > 0 || timeout == 0
+		    || (timeout > 0 && Simulation.stats.totalTicks >= deadline)) {
+		CPU.setLevel(oldLevel);
+		break;
+	    }
+	    readinessChanged.await();
+	    CPU.setLevel(oldLevel);
+	}
+	pollLock.release();
+	if(timer != null)
+	    TimerWheel.cancel(timer);
+
+	for(int i = 0; i < nfds; i++)
+	    space.writeUserInt(fdsAddr + i * PollfdSize + 8, revents[i]);
+	Debug.println('S', "Poll: " + ready + " of " + nfds + " ready");
+	return ready;
+    }
+
+    /**
+     * Find which of the events asked for are ready on an open file.
+     */
+    private static int check(AddrSpace space, int fd, int events) {
+	if(fd == Syscall.ConsoleInput)
+	    return Nachos.consoleDriver.isInputAvailable() ? events & POLLIN : 0;
+	if(fd == Syscall.ConsoleOutput)
+	    return events & POLLOUT;
+
+	OpenFileEntry e = space.fileTable.get(fd);
+	if(e == null)
+	    return POLLNVAL;
+	if(e.file instanceof Pipe.ReadEnd)
+	    return ((Pipe.ReadEnd)e.file).isReadable() ? events & POLLIN : 0;
+	if(e.file instanceof Pipe.WriteEnd)
+	    return ((Pipe.WriteEnd)e.file).isWritable() ? events & POLLOUT : 0;
+	return events & (POLLIN | POLLOUT);
+    }
+
+    /**
+     * Wake up polling threads to check their files again.  Called from
+     * thread context when something may have become ready.
+     */
+    public static void wakeup() {
+	pollLock.acquire();
+	readinessChanged.broadcast();
+	pollLock.release();
+    }
+
+    /**
+     * Wakes up polling threads when a character is typed.  The console
+     * driver runs it from its keyboard interrupt handler, where the lock
+     * cannot be taken.
+     */
+    public static final Runnable consoleListener = new Runnable() {
+	public void run() {
+	    readinessChanged.broadcast();
+	}
+    };
+}
@@ -0,0 +1,215 @@
+// SharedMemory.java
+//	Named segments of physical memory shared between address spaces.
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.userprog;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import nachos.Debug;
+import nachos.kernel.threads.Lock;
+import nachos.machine.Machine;
+import nachos.machine.TranslationEntry;
+
+/**
+ * A shared memory segment is a set of physical page frames with a name.
+ * ShmCreate() makes a new segment and maps it into the caller's address
+ * space; ShmAttach() maps an existing segment, by name, into another
+ * address space.  Each attachment points page table entries of its own at
+ * the segment's frames, so data written through one attachment is seen at
+ * once through all the others, without any copying.
+ *
+ * Segments are reference counted by attachment.  When the last attachment
+ * goes away, through ShmDetach() or Exit, the frames are freed and the
+ * name can be used again.  Attachments are not inherited by Fork or Exec.
+ */
+public class SharedMemory {
+
+    /** Segments in the system, by name. */
+    private static final Map<String, Segment> segments = new HashMap<String, Segment>();
+
+    /** Lock protecting the segment table and reference counts. */
+    private static final Lock segmentLock = new Lock("shared memory lock");
+
+    /**
+     * A named set of frames.
+     */
+    private static class Segment {
+	String name;
+	int[] frames;
+	int refCount;
+    }
+
+    /**
+     * One segment mapped into one address space.
+     */
+    public static class Attachment {
+	/** The segment. */
+	private final Segment segment;
+
+	/** Virtual address it is mapped at. */
+	public final int startAddr;
+
+	private Attachment(Segment segment, int startAddr) {
+	    this.segment = segment;
+	    this.startAddr = startAddr;
+	}
+    }
+
+    /**
+     * Create a segment and attach it to an address space.
+     *
+     * @param space The address space.
+     * @param name The name of the segment.
+     * @param size The size of the segment in bytes; it is rounded up to a
+     * whole number of pages.
+     * @return the virtual address of the segment, or 0 if a segment with
+     * that name already exists or there is not enough memory.
+     */
+    public static int create(AddrSpace space, String name, int size) {
+	int numPages = (int)(space.roundToPage(size) / Machine.PageSize);
+	if(numPages <= 0)
+	    return 0;
+
+	segmentLock.acquire();
+	if(segments.containsKey(name)) {
+	    segmentLock.release();
+	    Debug.println('M', "Shared segment " + name + " already exists");
+	    return 0;
+	}
+	Segment seg = new Segment();
+	seg.name = name;
+	seg.frames = new int[numPages];
+	for(int i = 0; i < numPages; i++) {
+	    seg.frames[i] = MemoryManager.allocatePage();
+	    if(seg.frames[i] < 0) {
+		for(int j = 0; j < i; j++)
+		    MemoryManager.freePage(seg.frames[j]);
+		segmentLock.release();
+		Debug.println('M', "No memory for shared segment " + name);
+		return 0;
+	    }
+	    int base = seg.frames[i] * Machine.PageSize;
+	    Arrays.fill(Machine.mainMemory, base, base + Machine.PageSize, (byte)0);
+	}
+	segments.put(name, seg);
+	seg.refCount = 1;
+	segmentLock.release();
+
+	Debug.println('M', "Created shared segment " + name + ", " + numPages + " pages");
+	return map(space, seg);
+    }
+
+    /**
+     * Attach an existing segment to an address space.
+     *
+     * @param space The address space.
+     * @param name The name of the segment.
+     * @return the virtual address of the segment, or 0 if there is no
+     * segment with that name.
+     */
+    public static int attach(AddrSpace space, String name) {
+	segmentLock.acquire();
+	Segment seg = segments.get(name);
+	if(seg != null)
+	    seg.refCount++;
+	segmentLock.release();
+	if(seg == null) {
+	    Debug.println('M', "No shared segment " + name);
+	    return 0;
+	}
+	return map(space, seg);
+    }
+
+    /**
+     * Extend an address space by the size of a segment, and point the new
+     * page table entries at the segment's frames.
+     *
+     * @return the virtual address of the first new page.
+     */
+    private static int map(AddrSpace space, Segment seg) {
+	int n = seg.frames.length;
+	space.extend(n * Machine.PageSize);
+	int startVpn = space.pageTable.length - n;
+	for(int i = 0; i < n; i++) {
+	    TranslationEntry entry = space.pageTable[startVpn + i];
+	    entry.physicalPage = seg.frames[i];
+	    entry.valid = true;
+	    entry.use = false;
+	    entry.dirty = false;
+	    entry.readOnly = false;
+	}
+	int addr = startVpn * Machine.PageSize;
+	space.shmAttachments.add(new Attachment(seg, addr));
+	Debug.println('M', "Attached shared segment " + seg.name + " at " + addr);
+	return addr;
+    }
+
+    /**
+     * Detach the segment mapped at an address from an address space.
+     * Outstanding asynchronous I/O of the address space is waited for
+     * first, as it may be reading into the segment.
+     *
+     * @param space The address space.
+     * @param addr The address returned by create() or attach().
+     * @return 0, or -1 if no segment is attached at addr.
+     */
+    public static int detach(AddrSpace space, int addr) {
+	for(Attachment a : space.shmAttachments) {
+	    if(a.startAddr == addr) {
+		if(space.ioRing != null)
+		    space.ioRing.drain();
+		space.shmAttachments.remove(a);
+		unmap(space, a);
+		return 0;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Detach every segment attached to an address space.  Called on Exit,
+     * after its asynchronous I/O has been drained (so that no request can
+     * complete into a freed segment) and before the address space's own
+     * frames are freed.
+     *
+     * @param space The address space.
+     */
+    public static void detachAll(AddrSpace space) {
+	for(Attachment a : space.shmAttachments)
+	    unmap(space, a);
+	space.shmAttachments.clear();
+    }
+
+    /**
+     * Invalidate the page table entries of an attachment, and free the
+     * segment if this was its last attachment.
+     */
+    private static void unmap(AddrSpace space, Attachment a) {
+	Segment seg = a.segment;
+	int startVpn = a.startAddr / Machine.PageSize;
+	for(int i = 0; i < seg.frames.length; i++) {
+	    TranslationEntry entry = space.pageTable[startVpn + i];
+	    entry.physicalPage = -1;
+	    entry.valid = false;
+	    entry.use = false;
+	    entry.dirty = false;
+	}
+
+	segmentLock.acquire();
+	boolean last = (--seg.refCount == 0);
+	if(last) {
+	    segments.remove(seg.name);
+	    for(int frame : seg.frames)
+		MemoryManager.freePage(frame);
+	}
+	segmentLock.release();
+	Debug.println('M', "Detached shared segment " + seg.name
+		+ (last ? ", segment freed" : ""));
+    }
+}
@@ -15,7 +15,10 @@ import nachos.kernel.filesys.FileSystem;
 import nachos.kernel.filesys.OpenFile;
 import nachos.kernel.filesys.OpenFileEntry;
 import nachos.kernel.threads.Lock;
+import nachos.kernel.threads.SchedStats;
 import nachos.kernel.threads.Semaphore;
+import nachos.kernel.threads.StrideScheduler;
+import nachos.kernel.threads.TimerWheel;
 import nachos.machine.CPU;
 import nachos.machine.MIPS;
 import nachos.machine.Machine;
@@ -87,9 +90,90 @@ public class Syscall {
     /** Integer code identifying the "Munmap" system call. */
     public static final byte SC_Munmap = 16;
 
-    public static Lock writeLock = new Lock("writeLock");
+    /** Integer code identifying the "Pread" system call. */
+    public static final byte SC_Pread = 17;
 
-    public static Lock readLock = new Lock("readLock");
+    /** Integer code identifying the "Pwrite" system call. */
+    public static final byte SC_Pwrite = 18;
+
+    /** Integer code identifying the "Readv" system call. */
+    public static final byte SC_Readv = 19;
+
+    /** Integer code identifying the "Writev" system call. */
+    public static final byte SC_Writev = 20;
+
+    /** Integer code identifying the "IoSetup" system call. */
+    public static final byte SC_IoSetup = 21;
+
+    /** Integer code identifying the "IoSubmit" system call. */
+    public static final byte SC_IoSubmit = 22;
+
+    /** Integer code identifying the "Batch" system call. */
+    public static final byte SC_Batch = 23;
+
+    /** Integer code identifying the "Flush" system call. */
+    public static final byte SC_Flush = 24;
+
+    /** Integer code identifying the "Pipe" system call. */
+    public static final byte SC_Pipe = 25;
+
+    /** Integer code identifying the "ShmCreate" system call. */
+    public static final byte SC_ShmCreate = 26;
+
+    /** Integer code identifying the "ShmAttach" system call. */
+    public static final byte SC_ShmAttach = 27;
+
+    /** Integer code identifying the "ShmDetach" system call. */
+    public static final byte SC_ShmDetach = 28;
+
+    /** Integer code identifying the "FutexWait" system call. */
+    public static final byte SC_FutexWait = 29;
+
+    /** Integer code identifying the "FutexWake" system call. */
+    public static final byte SC_FutexWake = 30;
+
+    /** Integer code identifying the "CopyFile" system call. */
+    public static final byte SC_CopyFile = 31;
+
+    /** Integer code identifying the "Poll" system call. */
+    public static final byte SC_Poll = 32;
+
+    /** Integer code identifying the "SetShare" system call. */
+    public static final byte SC_SetShare = 33;
+
+    /** Integer code identifying the "SetRealTime" system call. */
+    public static final byte SC_SetRealTime = 34;
+
+    /** Integer code identifying the "SetAffinity" system call. */
+    public static final byte SC_SetAffinity = 35;
+
+    /** Bytes moved per step by CopyFile; a whole number of sectors. */
+    private static final int CopyChunk = 4 * Machine.PageSize;
+
+    /** Name given to the open file entries for the ends of a pipe. */
+    private static final String PipeName = "|pipe|";
+
+    /** Batch flag: stop at the first call with a negative result. */
+    public static final int BATCH_STOP_ON_ERROR = 1;
+
+    /** Size in bytes of a struct syscall_desc {code, args[4], result}. */
+    public static final int BatchDescSize = 24;
+
+    /** The most descriptors one Batch may run. */
+    public static final int BatchMax = 1024;
+
+    /** Size in bytes of a struct iovec {base, len} in user memory. */
+    public static final int IovecSize = 8;
+
+    /** The most buffers one Readv or Writev may name. */
+    public static final int IovMax = 1024;
+
+    // Console reads and writes each hold the lock for their half of the
+    // device for the whole call, so one thread's line is not interleaved
+    // with another's.  Files are locked per open file (OpenFileEntry.lock).
+    public static Lock consoleWriteLock = new Lock("console write lock");
+
+    public static Lock consoleReadLock = new Lock("console read lock");
 
     public static Semaphore joinSem = new Semaphore("joinSem", 0);
 
@@ -102,28 +186,95 @@ public class Syscall {
 
     public static LinkedList<OpenFileEntry> openFileList = new LinkedList<OpenFileEntry>();
 
-    public static int openFileID = 2; // Starts at 2 since 0 & 1 are
-				      // ConsoleInput/Output
+    public static int openFileID = 2; // System-wide id of the next entry
 
     /**
      * Stop Nachos, and print out performance stats.
      */
     public static void halt() {
 	if (((UserThread) NachosThread.currentThread()).processID == 0) {
+	    ((UserThread) NachosThread.currentThread()).space.consoleBuffer.flush();
 	    Debug.print('+', "Shutdown, initiated by user program.\n");
+	    MemoryManager.printStats();
+	    Nachos.scheduler.printStats();
+	    SchedStats.printTotals();
+	    ThreadPool.printStats();
 	    Simulation.stop();
 	}
     }
 
+    /**
+     * Set the share of the CPU the calling process is entitled to, as a
+     * number of tickets.  A process starts with as many as its parent, or
+     * StrideScheduler.DefaultTickets.  Only the proportional-share
+     * schedulers (and the fair scheduler, as a weight) take notice.
+     *
+     * @param tickets The number of tickets, from 1 to
+     * StrideScheduler.MaxTickets.
+     * @return the number of tickets held before, or -1 if tickets is
+     * out of range.
+     */
+    public static int setShare(int tickets) {
+	if(tickets < 1 || tickets > StrideScheduler.MaxTickets)
+	    return -1;
+	UserThread thread = (UserThread) NachosThread.currentThread();
+	int old = thread.tickets;
+	thread.tickets = tickets;
+	Nachos.scheduler.setShare(thread, tickets);
+	Debug.println('S', "SetShare: " + thread.name + " now has " + tickets
+		+ " tickets");
+	return old;
+    }
+
+    /**
+     * Reserve CPU time for the calling thread in the real-time class: budget
+     * ticks in every period of period ticks, delivered within deadline ticks
+     * of the start of the period.  Real-time threads run ahead of all others,
+     * earliest deadline first.  Only the round-robin and multilevel feedback
+     * schedulers have a real-time class.
+     *
+     * @param period The period in ticks, or 0 to leave the real-time class.
+     * @param budget Ticks of CPU time per period, at least 1.
+     * @param deadline The relative deadline, from budget to period ticks.
+     * @return 0, or -1 if the parameters are not valid or admitting the
+     * thread would overload the real-time class.
+     */
+    public static int setRealTime(int period, int budget, int deadline) {
+	NachosThread thread = NachosThread.currentThread();
+	int result = Nachos.scheduler.setRealTime(thread, period, budget, deadline);
+	Debug.println('S', "SetRealTime: " + thread.name + " period " + period
+		+ ", budget " + budget + ", deadline " + deadline
+		+ (result == 0 ? "" : " refused"));
+	return result;
+    }
+
+    /**
+     * Restrict the calling thread to a set of CPUs.  Children forked or
+     * exec'd afterwards inherit the set.  Only the round-robin and per-CPU
+     * schedulers take notice; see GenScheduler.setAffinity().
+     *
+     * @param mask One bit per CPU, bit i for CPU i.
+     * @return 0, or -1 if mask names no CPU there is, or the scheduler
+     * does not honour affinity masks.
+     */
+    public static int setAffinity(int mask) {
+	int cpus = Machine.NUM_CPUS >= 32 ? -1 : (1 << Machine.NUM_CPUS) - 1;
+	if((mask & cpus) == 0)
+	    return -1;
+	UserThread thread = (UserThread) NachosThread.currentThread();
+	int result = Nachos.scheduler.setAffinity(thread, mask);
+	Debug.println('S', "SetAffinity: " + thread.name + " mask 0x"
+		+ Integer.toHexString(mask) + (result == 0 ? "" : " refused"));
+	return result;
+    }
+
     public static void sleep(int numOfTicks) {
 	UserThread threadToSleep = ((UserThread) NachosThread.currentThread());
 
 	Debug.println('S', "Sleeping thread: " + threadToSleep.name + " for: "
 		+ numOfTicks + " ticks.");
 
-	threadToSleep.numOfTicksToSleep = numOfTicks;
-	Nachos.scheduler.sleepList.offer(threadToSleep);
-	threadToSleep.sleepSemaphore.P();
+	TimerWheel.sleep(numOfTicks);
     }
 
     /* Address space control operations: Exit, Exec, and Join */
@@ -148,19 +299,39 @@ public class Syscall {
 	
 	//Set the exit status of the thread
 	currThrd.exitStatus = status;
+	currThrd.joinRecord.exitStatus = status;
 	
 	Debug.println('M', "User program exits with status=" + status + ": " + currThrd.name);
+	SchedStats.print(currThrd);
 	
 	//Free the address space
 	AddrSpace space = currThrd.space;
+	
+	//Print any console output still buffered
+	space.consoleBuffer.flush();
+	
+	//Wait for asynchronous I/O into this space to finish, before any of
+	//its memory is released and possibly handed to another process
+	if (space.ioRing != null)
+	    space.ioRing.drain();
 		
 	//Write back any memory mapped files
 	space.freeAllMappedFiles();
 	
+	//Let go of any shared memory, so its frames are not freed with ours;
+	//this must stay after the drain above
+	SharedMemory.detachAll(space);
+	
+	//Close any files still open
+	closeAllFiles(space);
+	
+	//Save the pages this run faulted on, for prefetching next time
+	space.saveFaultLog();
+	
 	//now free the address space itself
 	space.free();
 	
-	currThrd.joinSem.V(); 		//unblock join
+	currThrd.joinRecord.joinSem.V(); 	//unblock join
 	
 	//Remove thread from running list
 	runningThreads.remove(currThrd);
@@ -171,6 +342,11 @@ public class Syscall {
 	   Debug.println('+', "Exiting last thread. Setting exitStatus to: "+ status);   
 	   currThrd.exitStatus = status; 	// set the exit status of the addrspace
 	   
+	   MemoryManager.printStats();
+	   Nachos.scheduler.printStats();
+	   SchedStats.printTotals();
+	   ThreadPool.printStats();
+	   
 	   // Should we list the directories?
 	   if (Nachos.options.LIST_FILES) {
 	       Debug.println('f', "Listing everything in all directories");
@@ -187,6 +363,9 @@ public class Syscall {
 	
 	Debug.println('S', "Current thread: " + ((UserThread)NachosThread.currentThread()).processID);
 
+	//Park the thread for a later Exec or Fork, if the pool will take it
+	if(ThreadPool.park(currThrd))
+	    currThrd.runnable.run();		// never returns
 	Nachos.scheduler.finishThread();
     }
 
@@ -234,7 +413,7 @@ public class Syscall {
 	UserThread currThrd = (UserThread) NachosThread.currentThread();
 	Debug.println('J', "Starting System Call Join with id: " + id);
 
-	for (UserThread child : currThrd.childThreads) {
+	for (UserThread.JoinRecord child : currThrd.childThreads) {
 	    if (child.processID == id) {
 		Debug.println('J', "blocking proccesID " + child.processID
 			+ " until process is terminated");
@@ -299,9 +478,11 @@ public class Syscall {
     public static void remove(String name) {
 
 	// If file is open, close it and remove it from the list
-	OpenFileEntry fe = findOpenFileEntry(name);
-	if (fe != null) {
-	    close(fe.id);
+	FileDescriptorTable fileTable = ((UserThread) NachosThread
+		.currentThread()).space.fileTable;
+	int fd;
+	while ((fd = fileTable.find(name)) != -1) {
+	    close(fd);
 	}
 
 	// Have the file system remove it regardless
@@ -323,33 +504,41 @@ public class Syscall {
 
 	Debug.println('S', "Syscall Close is called for: " + id);
 
-	// Close the file and remove from openFile list
-	OpenFileEntry fe = findOpenFileEntry(id);
+	// Remove the id from this process's table, and drop its reference
+	OpenFileEntry fe = ((UserThread) NachosThread.currentThread()).space.fileTable
+		.remove(id);
 	if (fe != null) {
-	    fe.file.close();
-	    removeOpenFileEntry(fe);
+	    releaseOpenFileEntry(fe);
 	} else {
 	    Debug.println('S', "File could not be closed");
 	}
     }
 
     /**
-     * Returns an entry with the given id
+     * Close every file the address space still has open. Called on Exit.
+     * 
+     * @param space
+     *            The exiting address space.
      */
-    private static OpenFileEntry findOpenFileEntry(int id) {
-	openFileLock.acquire();
-	for (OpenFileEntry e : openFileList) {
-	    if (e.id == id) {
-		openFileLock.release();
-		return e;
-	    }
+    private static void closeAllFiles(AddrSpace space) {
+	for (int fd = FileDescriptorTable.FirstFileId; fd < space.fileTable
+		.size(); fd++) {
+	    OpenFileEntry fe = space.fileTable.remove(fd);
+	    if (fe != null)
+		releaseOpenFileEntry(fe);
 	}
-	openFileLock.release();
-	return null;
     }
 
     /**
-     * Returns an entry with the given name
+     * Returns the entry the current process's OpenFileId refers to
+     */
+    private static OpenFileEntry findOpenFileEntry(int id) {
+	return ((UserThread) NachosThread.currentThread()).space.fileTable
+		.get(id);
+    }
+
+    /**
+     * Returns an entry in the system-wide open file list with the given name
      */
     public static OpenFileEntry findOpenFileEntry(String name) {
 	openFileLock.acquire();
@@ -364,49 +553,55 @@ public class Syscall {
     }
 
     /**
-     * Removes an entry from the open file list
+     * Adds a reference to an entry in the open file list
      * 
-     * @param name
-     * @return
+     * @param fe
      */
-    private static boolean removeOpenFileEntry(OpenFileEntry fe) {
+    public static void retainOpenFileEntry(OpenFileEntry fe) {
+	openFileLock.acquire();
+	fe.refCount++;
+	openFileLock.release();
+    }
 
-	boolean result = false;
+    /**
+     * Drops a reference to an entry in the open file list. When the last
+     * reference is gone the entry is removed and the file is closed.
+     * 
+     * @param fe
+     */
+    public static void releaseOpenFileEntry(OpenFileEntry fe) {
 	openFileLock.acquire();
-	result = openFileList.remove(fe);
+	boolean last = (--fe.refCount == 0);
+	if (last)
+	    openFileList.remove(fe);
 	openFileLock.release();
-	Debug.println('S', "OpenFileEntry removed: " + result);
-	return result;
 
+	if (last) {
+	    fe.file.close();
+	    Debug.println('S', "OpenFileEntry removed: " + fe.id);
+	}
     }
 
     /**
-     * Adds an entry to the open file list
+     * Adds a new entry to the system-wide open file list. Every open gets an
+     * entry of its own, with its own seek position; the file's header (its
+     * length and sectors) is shared by every open of the same file.
      * 
      * @param fileName
      * @param file
-     * @return
+     * @return the new entry, holding one reference
      */
-    public static int addOpenFileEntry(OpenFile file, String fileName) {
+    public static OpenFileEntry addOpenFileEntry(OpenFile file, String fileName) {
 	openFileLock.acquire();
-	OpenFileEntry fileEntry = null;
-	for (OpenFileEntry e : openFileList) {
-	    if (e.name.equals(fileName)) {
-		fileEntry = e;
-	    }
-	}
-
-	if (fileEntry == null) {
-	    fileEntry = new OpenFileEntry(file);
-	    fileEntry.id = openFileID;
-	    fileEntry.name = fileName;
-	    openFileID++;
-	    openFileList.offer(fileEntry);
-
-	    Debug.println('S', "Added open file entry id: " + fileEntry.id);
-	}
+	OpenFileEntry fileEntry = new OpenFileEntry(file);
+	fileEntry.id = openFileID;
+	fileEntry.name = fileName;
+	openFileID++;
+	openFileList.offer(fileEntry);
 	openFileLock.release();
-	return fileEntry.id;
+
+	Debug.println('S', "Added open file entry id: " + fileEntry.id);
+	return fileEntry;
     }
 
     /**
@@ -428,10 +623,35 @@ public class Syscall {
 	    Debug.ASSERT(false);
 	}
 
-	// Otherwise add it to the openFile list
-	int fileEntryId = addOpenFileEntry(file, name);
+	// Otherwise add it to the openFile list, and give this process an id
+	// for it
+	OpenFileEntry fileEntry = addOpenFileEntry(file, name);
 
-	return fileEntryId;
+	return ((UserThread) NachosThread.currentThread()).space.fileTable
+		.add(fileEntry);
+    }
+
+    /**
+     * Create a pipe, and store the OpenFileIds of its read and write ends
+     * in fds[0] and fds[1].
+     * 
+     * @param fdsAddr
+     *            Virtual address of an array of two OpenFileIds.
+     * @return 0, or -1 if the array is not valid.
+     */
+    public static int pipe(int fdsAddr) {
+	AddrSpace space = ((UserThread) NachosThread.currentThread()).space;
+	if (!space.prefault(fdsAddr, 8, true))
+	    return -1;
+
+	Pipe p = new Pipe();
+	int readFd = space.fileTable.add(addOpenFileEntry(p.readEnd, PipeName));
+	int writeFd = space.fileTable.add(addOpenFileEntry(p.writeEnd, PipeName));
+	space.writeUserInt(fdsAddr, readFd);
+	space.writeUserInt(fdsAddr + 4, writeFd);
+
+	Debug.println('S', "Pipe created: read " + readFd + ", write " + writeFd);
+	return 0;
     }
 
     /**
@@ -445,34 +665,12 @@ public class Syscall {
      *            The OpenFileId of the file to which to write the data.
      */
     public static void write(byte buffer[], int size, int id) {
-	writeLock.acquire();
 	UserThread curThrd = (UserThread) NachosThread.currentThread();
-	byte[] b = new byte[1];
-	char[] c = new char[1];
 
 	if (id == ConsoleOutput) {
-
-	    curThrd.writeSize = size; // store the size of write for each
-				      // userthread
-
-	    for (int i = 0; i < size; i++) {
-		b[0] = buffer[i];
-		try {
-		    c = Nachos.consoleDriver.translate(b);
-
-		    if (c[0] == '\n') {
-			curThrd.writeSize++;
-			Nachos.consoleDriver.putChar('\r');
-		    }
-
-		    Nachos.consoleDriver.putChar(c[0]);
-		} catch (UnsupportedEncodingException e) {
-		    // TODO Auto-generated catch block
-		    e.printStackTrace();
-		}
-	    }
-
-	    writeLock.release();
+	    // Console output is collected in the process's buffer and passed
+	    // on to the driver by writeConsole() a batch at a time.
+	    curThrd.space.consoleBuffer.write(buffer, size);
 	}
 
 	// Otherwise write to file
@@ -481,16 +679,71 @@ public class Syscall {
 	    OpenFileEntry e = findOpenFileEntry(id);
 	    if (e != null) {
 		// Write to it
+		e.lock.acquire();
 		int result = e.file.write(buffer, 0, size);
+		e.lock.release();
 		Debug.println('S', "Wrote " + result + " bytes to file: "
 			+ e.name);
 	    } else {
 		Debug.println('S', "File: " + id + " must be opened first");
 	    }
+	}
+
+    }
+
+    /**
+     * Print a batch of bytes on the console.  The bytes are translated to
+     * characters all at once, each newline is preceded by a carriage
+     * return, and the characters are handed to the console driver under
+     * the console write lock, so that batches from different processes are
+     * never interleaved.
+     * 
+     * @param buffer
+     *            The bytes to print.
+     * @param size
+     *            The number of bytes.
+     */
+    public static void writeConsole(byte buffer[], int size) {
+	UserThread curThrd = (UserThread) NachosThread.currentThread();
+	char[] c;
+	try {
+	    c = new String(buffer, 0, size, "UTF-8").toCharArray();
+	} catch (UnsupportedEncodingException e) {
+	    e.printStackTrace();
+	    return;
+	}
 
-	    writeLock.release();
+	int total = c.length;
+	for (int i = 0; i < c.length; i++)
+	    if (c[i] == '\n')
+		total++;
+
+	consoleWriteLock.acquire();
+	curThrd.writeSize = total; // the driver counts this down as it prints
+	for (int i = 0; i < c.length; i++) {
+	    if (c[i] == '\n')
+		Nachos.consoleDriver.putChar('\r');
+	    Nachos.consoleDriver.putChar(c[i]);
 	}
+	consoleWriteLock.release();
+    }
 
+    /**
+     * Pass any console output the calling process has buffered on to the
+     * console.  Files are not buffered in the kernel, so there is nothing
+     * to do for them.
+     * 
+     * @param id
+     *            The OpenFileId to flush.
+     * @return 0, or -1 if id is not ConsoleOutput or an open file.
+     */
+    public static int flush(int id) {
+	AddrSpace space = ((UserThread) NachosThread.currentThread()).space;
+	if (id == ConsoleOutput) {
+	    space.consoleBuffer.flush();
+	    return 0;
+	}
+	return findOpenFileEntry(id) == null ? -1 : 0;
     }
 
     /**
@@ -509,7 +762,6 @@ public class Syscall {
      * @return The actual number of bytes read.
      */
     public static int read(byte buffer[], int size, int id) {
-	readLock.acquire();
 	int i = 0;
 	UserThread curThrd = (UserThread) NachosThread.currentThread();
 	curThrd.readSize = size; // store the size of read for each userthread
@@ -517,6 +769,9 @@ public class Syscall {
 
 	// Read from Console
 	if (id == ConsoleInput) {
+	    // Show any prompt still sitting in the output buffer first
+	    curThrd.space.consoleBuffer.flush();
+	    consoleReadLock.acquire();
 	    try {
 		for (i = 0; i < size; i++) {
 		    buffer[i] = (byte) Nachos.consoleDriver.getChar();
@@ -525,11 +780,10 @@ public class Syscall {
 
 	    } catch (Exception e) {
 		Debug.println('S', "Exception occured");
-		return i;
 	    }
 
 	    // Return num of bytes read
-	    readLock.release();
+	    consoleReadLock.release();
 	    return i;
 
 	}
@@ -540,14 +794,15 @@ public class Syscall {
 	    int result = -1;
 	    if (e != null) {
 		// Read from it
+		e.lock.acquire();
 		result = e.file.read(buffer, 0, size);
+		e.lock.release();
 		Debug.println('S', "Read " + result + " bytes to file: "
 			+ e.name);
 	    } else {
 		Debug.println('S', "File: " + id + " must be opened first");
 	    }
 
-	    readLock.release();
 	    return result;
 	}
     }
@@ -576,6 +831,9 @@ public class Syscall {
     public static void fork(int func) {
 	Debug.println('S', "Syscall fork is getting called");
 
+	// Flush first, so the new process does not print the output again
+	((UserThread) NachosThread.currentThread()).space.consoleBuffer.flush();
+
 	AddrSpace newSpace = ((UserThread) NachosThread.currentThread()).space
 		.clone();
 
@@ -600,8 +858,11 @@ public class Syscall {
      */
     public static void yield() {
 	Debug.println('Y', "Syscall Yield is called");
-	// Yield the CPU to another thread
+	// Yield the CPU to another thread, which counts as a voluntary switch
+	SchedStats stats = ((UserThread) NachosThread.currentThread()).schedStats;
+	stats.yielding = true;
 	Nachos.scheduler.yieldThread();
+	stats.yielding = false;
 
     }
 
@@ -642,6 +903,363 @@ public class Syscall {
 
     }
 
+    /**
+     * Read from an open file straight into a user buffer, without staging
+     * the data in a kernel buffer.
+     * 
+     * @param virtAddr
+     *            Virtual address of the user buffer.
+     * @param size
+     *            The number of bytes to read.
+     * @param id
+     *            The OpenFileId of the file to read from.
+     * @return The number of bytes actually read, or -1 on error.
+     */
+    public static int readUser(int virtAddr, int size, int id) {
+	UserThread curThrd = (UserThread) NachosThread.currentThread();
+	curThrd.readSize = size;
+
+	if (size < 0)
+	    return -1;
+	OpenFileEntry e = findOpenFileEntry(id);
+	int result = -1;
+	if (e != null && e.file instanceof Pipe.ReadEnd) {
+	    // Take what the pipe has, rather than filling the buffer a page at
+	    // a time, which could wait for more data than the program needs.
+	    byte[] buf = new byte[Math.min(size, Pipe.Capacity)];
+	    e.lock.acquire();
+	    result = e.file.read(buf, 0, buf.length);
+	    e.lock.release();
+	    if (result > 0)
+		curThrd.space.copyOut(virtAddr, buf, 0, result);
+	} else if (e != null) {
+	    // Fault the buffer in first: a fault that ends the program must
+	    // not happen while the entry's lock is held.
+	    if (!curThrd.space.prefault(virtAddr, size, true))
+		return -1;
+	    e.lock.acquire();
+	    result = curThrd.space.readFile(e.file, virtAddr, size);
+	    e.lock.release();
+	    Debug.println('S', "Read " + result + " bytes from file: " + e.name);
+	} else {
+	    Debug.println('S', "File: " + id + " must be opened first");
+	}
+
+	return result;
+    }
+
+    /**
+     * Write a user buffer straight to an open file, without staging the
+     * data in a kernel buffer.
+     * 
+     * @param virtAddr
+     *            Virtual address of the user buffer.
+     * @param size
+     *            The number of bytes to write.
+     * @param id
+     *            The OpenFileId of the file to write to.
+     * @return The number of bytes actually written, or -1 on error.
+     */
+    public static int writeUser(int virtAddr, int size, int id) {
+	UserThread curThrd = (UserThread) NachosThread.currentThread();
+
+	if (size < 0)
+	    return -1;
+	OpenFileEntry e = findOpenFileEntry(id);
+	int result = -1;
+	if (e != null && e.file instanceof Pipe.WriteEnd) {
+	    // Pass the data through a buffer of at most the pipe's capacity,
+	    // a piece at a time.  The whole of the user buffer is faulted in
+	    // first, so no piece can fault while the entry's lock is held.
+	    if (!curThrd.space.prefault(virtAddr, size, false))
+		return -1;
+	    byte[] buf = new byte[Math.min(size, Pipe.Capacity)];
+	    e.lock.acquire();
+	    result = 0;
+	    while (result < size) {
+		int n = Math.min(size - result, buf.length);
+		curThrd.space.copyIn(virtAddr + result, buf, 0, n);
+		if (e.file.write(buf, 0, n) < 0) {
+		    if (result == 0)
+			result = -1;
+		    break;
+		}
+		result += n;
+	    }
+	    e.lock.release();
+	} else if (e != null) {
+	    if (!curThrd.space.prefault(virtAddr, size, false))
+		return -1;
+	    e.lock.acquire();
+	    result = curThrd.space.writeFile(e.file, virtAddr, size);
+	    e.lock.release();
+	    Debug.println('S', "Wrote " + result + " bytes to file: " + e.name);
+	} else {
+	    Debug.println('S', "File: " + id + " must be opened first");
+	}
+
+	return result;
+    }
+
+    /**
+     * Copy bytes from one open file to another without passing them through
+     * user memory.  Data is read from the source at its seek position and
+     * written to the destination at its seek position, in chunks of whole
+     * sectors, and both positions are advanced.  Either file may also be
+     * the end of a pipe.
+     * 
+     * @param srcId
+     *            The OpenFileId to copy from.
+     * @param dstId
+     *            The OpenFileId to copy to.
+     * @param len
+     *            The most bytes to copy.
+     * @return The number of bytes copied, which is less than len only if
+     *         the source ran out; or -1 if either file is not open.
+     */
+    public static int copyFile(int srcId, int dstId, int len) {
+	OpenFileEntry src = findOpenFileEntry(srcId);
+	OpenFileEntry dst = findOpenFileEntry(dstId);
+	if (src == null || dst == null || len < 0) {
+	    Debug.println('S', "CopyFile: " + srcId + " or " + dstId + " is not open");
+	    return -1;
+	}
+
+	// Take the two entries' locks in a fixed order, so that two copies
+	// in opposite directions cannot deadlock.
+	OpenFileEntry first = src.id <= dst.id ? src : dst;
+	OpenFileEntry second = (first == src) ? dst : src;
+	first.lock.acquire();
+	if (second != first)
+	    second.lock.acquire();
+
+	byte[] buf = new byte[Math.min(len, CopyChunk)];
+	int done = 0;
+	while (done < len) {
+	    int n = src.file.read(buf, 0, Math.min(len - done, buf.length));
+	    if (n <= 0)
+		break;
+	    int m = dst.file.write(buf, 0, n);
+	    if (m > 0)
+		done += m;
+	    if (m < n)
+		break;
+	}
+
+	if (second != first)
+	    second.lock.release();
+	first.lock.release();
+
+	Debug.println('S', "CopyFile copied " + done + " bytes from " + src.name
+		+ " to " + dst.name);
+	return done;
+    }
+
+    /**
+     * Read from an open file at a given offset, without using or changing
+     * its seek position.
+     * 
+     * @param virtAddr
+     *            Virtual address of the user buffer.
+     * @param size
+     *            The number of bytes to read.
+     * @param id
+     *            The OpenFileId of the file to read from.
+     * @param offset
+     *            The offset in the file to read from.
+     * @return The number of bytes actually read, or -1 on error.
+     */
+    public static int pread(int virtAddr, int size, int id, int offset) {
+	OpenFileEntry e = findOpenFileEntry(id);
+	if (e == null || offset < 0) {
+	    Debug.println('S', "Pread: file " + id + " is not open");
+	    return -1;
+	}
+	// Fault the buffer in before taking the entry's lock, so that a
+	// fault cannot happen (and end the process) while it is held
+	AddrSpace space = ((UserThread) NachosThread.currentThread()).space;
+	if (!space.prefault(virtAddr, size, true))
+	    return -1;
+	e.lock.acquire();
+	int result = space.readFileAt(e.file, virtAddr, size, offset);
+	e.lock.release();
+	Debug.println('S', "Pread " + result + " bytes at " + offset
+		+ " from file: " + e.name);
+	return result;
+    }
+
+    /**
+     * Write to an open file at a given offset, without using or changing
+     * its seek position.
+     * 
+     * @param virtAddr
+     *            Virtual address of the user buffer.
+     * @param size
+     *            The number of bytes to write.
+     * @param id
+     *            The OpenFileId of the file to write to.
+     * @param offset
+     *            The offset in the file to write at.
+     * @return The number of bytes actually written, or -1 on error.
+     */
+    public static int pwrite(int virtAddr, int size, int id, int offset) {
+	OpenFileEntry e = findOpenFileEntry(id);
+	if (e == null || offset < 0) {
+	    Debug.println('S', "Pwrite: file " + id + " is not open");
+	    return -1;
+	}
+	AddrSpace space = ((UserThread) NachosThread.currentThread()).space;
+	if (!space.prefault(virtAddr, size, false))
+	    return -1;
+	e.lock.acquire();
+	int result = space.writeFileAt(e.file, virtAddr, size, offset);
+	e.lock.release();
+	Debug.println('S', "Pwrite " + result + " bytes at " + offset
+		+ " to file: " + e.name);
+	return result;
+    }
+
+    /**
+     * Read from an open file into several user buffers, described by an
+     * array of iovecs in user memory, in one call. The buffers are filled
+     * in order from the file's seek position, as if by one Read per buffer,
+     * except that no other Read on the same open file can come in between.
+     * 
+     * @param iovAddr
+     *            Virtual address of the iovec array.
+     * @param iovcnt
+     *            The number of iovecs in the array.
+     * @param id
+     *            The OpenFileId of the file to read from.
+     * @return The total number of bytes read, or -1 on error.
+     */
+    public static int readv(int iovAddr, int iovcnt, int id) {
+	return vectorIO(iovAddr, iovcnt, id, true);
+    }
+
+    /**
+     * Write several user buffers, described by an array of iovecs in user
+     * memory, to an open file in one call. See readv().
+     * 
+     * @param iovAddr
+     *            Virtual address of the iovec array.
+     * @param iovcnt
+     *            The number of iovecs in the array.
+     * @param id
+     *            The OpenFileId of the file to write to.
+     * @return The total number of bytes written, or -1 on error.
+     */
+    public static int writev(int iovAddr, int iovcnt, int id) {
+	return vectorIO(iovAddr, iovcnt, id, false);
+    }
+
+    private static int vectorIO(int iovAddr, int iovcnt, int id,
+	    boolean reading) {
+	AddrSpace space = ((UserThread) NachosThread.currentThread()).space;
+	// Bound iovcnt before multiplying, so the size cannot overflow
+	if (iovcnt < 0 || iovcnt > IovMax
+		|| !space.prefault(iovAddr, iovcnt * IovecSize, false))
+	    return -1;
+
+	// Read the iovecs, and fault in their buffers, before any lock is
+	// taken
+	int base[] = new int[iovcnt];
+	int len[] = new int[iovcnt];
+	int total = 0;
+	for (int i = 0; i < iovcnt; i++) {
+	    base[i] = space.readUserInt(iovAddr + i * IovecSize);
+	    len[i] = space.readUserInt(iovAddr + i * IovecSize + 4);
+	    if (len[i] < 0 || total + len[i] < 0
+		    || !space.prefault(base[i], len[i], reading))
+		return -1;
+	    total += len[i];
+	}
+
+	// Console I/O is staged through a kernel buffer, as for Read/Write.
+	// The buffers of a Writev are gathered so they go out as one Write.
+	if (id == ConsoleInput || id == ConsoleOutput) {
+	    if (reading != (id == ConsoleInput))
+		return -1;
+	    if (reading) {
+		int done = 0;
+		for (int i = 0; i < iovcnt; i++) {
+		    byte buf[] = new byte[len[i]];
+		    int n = read(buf, len[i], id);
+		    space.copyOut(base[i], buf, 0, n);
+		    done += n;
+		}
+		return done;
+	    }
+	    byte gathered[] = new byte[total];
+	    int at = 0;
+	    for (int i = 0; i < iovcnt; i++) {
+		space.copyIn(base[i], gathered, at, len[i]);
+		at += len[i];
+	    }
+	    write(gathered, total, id);
+	    return total;
+	}
+
+	OpenFileEntry e = findOpenFileEntry(id);
+	if (e == null) {
+	    Debug.println('S', "File: " + id + " must be opened first");
+	    return -1;
+	}
+
+	int done = 0;
+	e.lock.acquire();
+	for (int i = 0; i < iovcnt; i++) {
+	    int n = reading ? space.readFile(e.file, base[i], len[i])
+		    : space.writeFile(e.file, base[i], len[i]);
+	    if (n < 0) {
+		if (done == 0)
+		    done = -1;
+		break;
+	    }
+	    done += n;
+	    if (n < len[i])
+		break;
+	}
+	e.lock.release();
+	Debug.println('S', (reading ? "Readv " : "Writev ") + done
+		+ " bytes in " + iovcnt + " buffers, file: " + e.name);
+	return done;
+    }
+
+    /**
+     * Register a pair of asynchronous I/O rings, described by a struct
+     * io_ring in user memory, for the calling process. See AsyncIO.
+     * 
+     * @param ringAddr
+     *            Virtual address of the struct io_ring.
+     * @return 0 on success, -1 if the rings are not valid or the process
+     *         already has rings.
+     */
+    public static int ioSetup(int ringAddr) {
+	AddrSpace space = ((UserThread) NachosThread.currentThread()).space;
+	if (space.ioRing != null)
+	    return -1;
+	space.ioRing = AsyncIO.setup(space, ringAddr);
+	return space.ioRing == null ? -1 : 0;
+    }
+
+    /**
+     * Start the requests waiting in the calling process's submission queue,
+     * and optionally wait for completions.
+     * 
+     * @param count
+     *            The most requests to start.
+     * @param minComplete
+     *            The number of completions to wait for before returning.
+     * @return The number of requests started, or -1 if no rings are set up.
+     */
+    public static int ioSubmit(int count, int minComplete) {
+	AddrSpace space = ((UserThread) NachosThread.currentThread()).space;
+	if (space.ioRing == null)
+	    return -1;
+	return space.ioRing.submit(count, minComplete);
+    }
+
     /**
      * Maps a file with the give filename into main memory and writes the size
      * of the new address space to the integer sizep
@@ -659,7 +1277,7 @@ public class Syscall {
 
 	// Get size of the file and extend the address space above the stack by
 	// a number of pages N, s.t N*Machine.PageSize >= size of file
-	OpenFileEntry ofe = findOpenFileEntry(filename);
+	OpenFileEntry ofe = findOpenFileEntry(openFileID);
 	long size = ofe.file.length();
 	int allocatedSize = ((UserThread) NachosThread.currentThread()).space
 		.extend(size);
@@ -682,8 +1300,10 @@ public class Syscall {
 							      // region in
 							      // pageTable
 	    int addr = space.pageTable[indexOf].virtualPage * Machine.PageSize;
-	    ((UserThread) NachosThread.currentThread()).addToMappedFileList(
-		    filename, addr, allocatedSize);
+	    MemMappedFile mapped = ((UserThread) NachosThread.currentThread())
+		    .addToMappedFileList(filename, addr, allocatedSize);
+	    mapped.fd = openFileID;
+	    space.mapContiguous(mapped, ofe.file);
 	    return addr;
 	}
 
@@ -714,10 +1334,10 @@ public class Syscall {
 
 	    curThrd.removeMappedFile(mappedFile); // remove from mappedfile list
 
-	    OpenFileEntry fileEntry = findOpenFileEntry(mappedFile.fileName);
-	    close(fileEntry.id); // Remove from open file list and close the
-				 // file
+	    close(mappedFile.fd); // Remove from open file list and close the
+				  // file
 
+	    return 0;
 	}
 
 	return -1;
@@ -0,0 +1,126 @@
+// ThreadPool.java
+//	Reuse of the threads of exited user programs by Exec and Fork.
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.userprog;
+
+import java.util.LinkedList;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.SpinLock;
+import nachos.machine.CPU;
+
+/**
+ * A pool of user threads whose programs have exited, kept blocked so that
+ * a later Exec or Fork can give one of them a new program and address
+ * space, instead of creating a new thread (with its own host thread and
+ * stack) and having the scheduler destroy the old one.  The pool holds at
+ * most Nachos.options.THREAD_POOL_SIZE threads (set with -tp); with the
+ * default of 0 it is not used and every thread finishes as before.
+ *
+ * A parked thread waits in Exit(), at the bottom of the kernel stack of
+ * the program it last ran, and starts its next program from there, so
+ * each reuse deepens its host stack by one system call.  A thread is
+ * therefore reused at most MaxReuses times, after which it finishes
+ * instead of parking.
+ *
+ * The pool's hits (a parked thread was reused), misses (a new thread had
+ * to be made), threads parked, and threads that finished because the pool
+ * was full or they were used up are printed at shutdown.
+ */
+public class ThreadPool {
+
+    /** How many programs a thread may run after its first. */
+    public static final int MaxReuses = 16;
+
+    /** Threads waiting for another program, oldest first. */
+    private static final LinkedList<UserThread> parked = new LinkedList<UserThread>();
+
+    /** Spin lock for the pool, which is used from every CPU. */
+    private static final SpinLock poolLock = new SpinLock("thread pool lock");
+
+    /** Counters printed by printStats(). */
+    private static int hits, misses, parks, retired;
+
+    /**
+     * Get a thread to run a new program: a parked one, re-armed with the
+     * program, if there is one, or else a new one.  Either way the caller
+     * makes it ready to run.
+     *
+     * @param name The name of a new thread.  A reused thread keeps its own.
+     * @param runObj The run() method of this object starts the program.
+     * @param space The address space of the program.
+     * @param filename The name of the program, or null if it is forked.
+     * @return the thread.
+     */
+    public static UserThread take(String name, Runnable runObj, AddrSpace space, String filename) {
+	UserThread t = null;
+	if(Nachos.options.THREAD_POOL_SIZE > 0) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    poolLock.acquire();
+	    t = parked.poll();
+	    if(t == null)
+		misses++;
+	    else
+		hits++;
+	    poolLock.release();
+	    CPU.setLevel(oldLevel);
+	}
+	if(t == null)
+	    return new UserThread(name, runObj, space, filename);
+
+	Debug.println('S', "Reusing thread " + t.name + " for " + name);
+	Nachos.scheduler.forgetThread(t);
+	t.rearm(runObj, space, filename);
+	return t;
+    }
+
+    /**
+     * Park the current thread, whose program has exited, if the pool has
+     * room and the thread has not been reused too often.  Called at the end
+     * of Exit(), in place of finishing the thread.
+     *
+     * @param thread The current thread.
+     * @return true once the thread has been re-armed with another program,
+     * whose runnable the caller then runs; false at once if the thread was
+     * not parked and should finish.
+     */
+    public static boolean park(UserThread thread) {
+	int size = Nachos.options.THREAD_POOL_SIZE;
+	if(size <= 0)
+	    return false;
+
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	poolLock.acquire();
+	if(parked.size() >= size || thread.reuses >= MaxReuses) {
+	    retired++;
+	    poolLock.release();
+	    CPU.setLevel(oldLevel);
+	    return false;
+	}
+	parked.offer(thread);
+	parks++;
+	Debug.println('S', "Parking thread " + thread.name);
+
+	// The pool lock is released once the thread's state has been saved,
+	// so take() cannot re-arm it before it is off the CPU.
+	Nachos.scheduler.sleepThread(poolLock);
+	CPU.setLevel(oldLevel);
+	return true;
+    }
+
+    /**
+     * Print the pool's counters, if it is in use.
+     */
+    public static void printStats() {
+	if(Nachos.options.THREAD_POOL_SIZE <= 0)
+	    return;
+	Debug.println('+', "Thread pool: " + hits + " hits, " + misses + " misses, "
+		+ parks + " threads parked, " + retired + " finished instead, "
+		+ parked.size() + " still parked");
+    }
+}
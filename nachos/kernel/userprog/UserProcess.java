@@ -46,7 +46,9 @@ public class UserProcess implements Runnable {
 	
 	Debug.println('+', "starting forked UserProcess: " + name);
 
-	UserThread t = new UserThread(name, this, space, null);
+	UserThread t = ThreadPool.take(name, this, space, null);
+	t.tickets = ((UserThread)NachosThread.currentThread()).tickets;
+	t.affinity = ((UserThread)NachosThread.currentThread()).affinity;
 
 	
 	this.processID = t.processID;
@@ -55,7 +57,7 @@ public class UserProcess implements Runnable {
 	//add this to the child thread list, join syscall uses this list
 
 	if(this.processID != 0)		//check if it's not the parent(main) thread
-	    ((UserThread)NachosThread.currentThread()).childThreads.add(t);
+	    ((UserThread)NachosThread.currentThread()).childThreads.add(t.joinRecord);
 	
 	Nachos.scheduler.readyToRun(t);
     }
@@ -75,15 +77,26 @@ public class UserProcess implements Runnable {
 	execName = filename;
 	AddrSpace space = new AddrSpace();
 	this.space = space;
-	UserThread t = new UserThread(name, this, space, filename);
+	
+	//a program started by Exec inherits its parent's open files (and pipes)
+	if(NachosThread.currentThread() instanceof UserThread)
+	    space.fileTable = ((UserThread)NachosThread.currentThread()).space.fileTable.copy();
+	
+	UserThread t = ThreadPool.take(name, this, space, filename);
 	t.filename = filename;
 	
+	//and its share of the CPU, and the CPUs it may run on
+	if(NachosThread.currentThread() instanceof UserThread) {
+	    t.tickets = ((UserThread)NachosThread.currentThread()).tickets;
+	    t.affinity = ((UserThread)NachosThread.currentThread()).affinity;
+	}
+	
 	this.processID = t.processID;
 	
 	//add this to the AddrSpace space = ((UserThread)NachosThread.currentThread()).space;child thread list, join syscall uses this list
 
 	if(this.processID != 0)		//check if it's not the parent(main) thread
-	    ((UserThread)NachosThread.currentThread()).childThreads.add(t);
+	    ((UserThread)NachosThread.currentThread()).childThreads.add(t.joinRecord);
 	
 	Nachos.scheduler.readyToRun(t);
     }
@@ -105,8 +118,6 @@ public class UserProcess implements Runnable {
 		    return;
 		}
 
-		//Add the executable to the openfile list
-		Syscall.addOpenFileEntry(executable, execName);
 		
 		AddrSpace space = ((UserThread)NachosThread.currentThread()).space;
 		if(space.exec(executable) == -1) {
@@ -115,6 +126,9 @@ public class UserProcess implements Runnable {
 		    return;
 		}
 		
+		if(Nachos.options.PREFETCH_PAGES)
+		    space.startFaultLog(execName, executable);
+		
 		space.initRegisters();		// set the initial register values
 		space.restoreState();		// load page table register
 	}
@@ -20,8 +20,11 @@ import nachos.machine.CPU;
 import nachos.kernel.Nachos;
 import nachos.kernel.filesys.OpenFileEntry;
 import nachos.kernel.threads.Lock;
+import nachos.kernel.threads.RoundRobinScheduler;
+import nachos.kernel.threads.SchedStats;
 import nachos.kernel.threads.Semaphore;
 import nachos.kernel.threads.SpinLock;
+import nachos.kernel.threads.StrideScheduler;
 import nachos.kernel.userprog.MemoryManager;
 
 /**
@@ -39,10 +42,9 @@ public class UserThread extends NachosThread {
     public int processID;
     public String filename;
     public int exitStatus;
-    public LinkedList<UserThread> childThreads = new LinkedList<UserThread>();
-    public Semaphore joinSem;
+    public LinkedList<JoinRecord> childThreads = new LinkedList<JoinRecord>();
+    public JoinRecord joinRecord;
     public Runnable runnable;
-    public int numOfTicksToSleep;
     
     public int currentPLevelIndex;
     
@@ -55,10 +57,20 @@ public class UserThread extends NachosThread {
     public int writeSize;
     public int readSize;
     
-    public Semaphore sleepSemaphore;
+    /** Share of the CPU asked for with SetShare, inherited by children. */
+    public int tickets = StrideScheduler.DefaultTickets;
+    
+    /** Scheduling latency and run-time counters, printed when the thread exits. */
+    public SchedStats schedStats = new SchedStats();
+    
+    /** CPUs this thread may run on, one bit per CPU, set with SetAffinity. */
+    public volatile int affinity = RoundRobinScheduler.AllCPUs;
     
     /** The context in which this thread will execute. */
-    public final AddrSpace space;
+    public AddrSpace space;
+    
+    /** Times this thread has been taken from the ThreadPool for another program. */
+    int reuses;
     
     
     /** Keep a list of all memory mapped files */
@@ -75,6 +87,23 @@ public class UserThread extends NachosThread {
     /** User-level CPU register state. */
     private int userRegisters[] = new int[MIPS.NumTotalRegs];
 
+    /**
+     * What a parent waiting in Join() needs to know about a child program.
+     * It is kept apart from the child's thread, which may be given another
+     * program by the ThreadPool once this one has exited.
+     */
+    public static class JoinRecord {
+	public final int processID;
+	public final String name;
+	public volatile int exitStatus;
+	public final Semaphore joinSem = new Semaphore("joinSem", 0);
+
+	JoinRecord(int processID, String name) {
+	    this.processID = processID;
+	    this.name = name;
+	}
+    }
+
     /**
      * Initialize a new user thread.
      *
@@ -86,7 +115,6 @@ public class UserThread extends NachosThread {
      */
     public UserThread(String name, Runnable runObj, AddrSpace addrSpace, String filename) {
 	super(name, runObj);
-	numOfTicksToSleep = -1;
 	runnable = runObj;
 	writeSize = 0;
 	readSize = 0;
@@ -116,11 +144,10 @@ public class UserThread extends NachosThread {
 	//Create the address space
 	space = addrSpace;
 
-	//make the join semaphore
-	joinSem = new Semaphore("joinSem", 0);
+	//make the join record, with its semaphore
+	joinRecord = new JoinRecord(processID, name);
 	
 	//make the sleep semaphore
-	sleepSemaphore = new Semaphore("sleepSemaphore", 0);
 	
 	//Release lock
 	MemoryManager.processIDLock.release();
@@ -128,6 +155,50 @@ public class UserThread extends NachosThread {
 	Syscall.runningThreads.add(this);
     }
 
+    /**
+     * Give a parked thread, whose last program has exited, another program
+     * to run, as though it had just been created for it.  Called by the
+     * ThreadPool while the thread is blocked.  The thread keeps its name.
+     *
+     * @param runObj The run() method of this object is called when the
+     * thread is next scheduled.
+     * @param addrSpace The context of the new program.
+     * @param filename The name of the program, or null if it is forked.
+     */
+    void rearm(Runnable runObj, AddrSpace addrSpace, String filename) {
+	runnable = runObj;
+	writeSize = 0;
+	readSize = 0;
+	currentPLevelIndex = -1;
+	sampleVal = 0;
+	avgCPUBurst = 0;
+	numInterrupts = 1;
+	exitStatus = 0;
+	tickets = StrideScheduler.DefaultTickets;
+	affinity = RoundRobinScheduler.AllCPUs;
+	schedStats = new SchedStats();
+	childThreads = new LinkedList<JoinRecord>();
+	mappedFiles = new LinkedList<MemMappedFile>();
+	this.filename = filename;
+	reuses++;
+
+	// Start from the user registers of the thread re-arming this one, as
+	// a new thread starts from whatever the CPU holds (Fork relies on this).
+	if(NachosThread.currentThread() instanceof UserThread) {
+	    for (int i = 0; i < MIPS.NumTotalRegs; i++)
+		userRegisters[i] = CPU.readRegister(i);
+	}
+
+	MemoryManager.processIDLock.acquire();
+	this.processID = MemoryManager.processID;
+	MemoryManager.processID += 1;
+	space = addrSpace;
+	joinRecord = new JoinRecord(processID, filename == null ? name : filename);
+	MemoryManager.processIDLock.release();
+	
+	Syscall.runningThreads.add(this);
+    }
+
     /**
      * Save the CPU state of a user program on a context switch.
      */
@@ -165,12 +236,12 @@ public class UserThread extends NachosThread {
      * @param filename
      * @param startAddr
      */
-    public void addToMappedFileList (String filename, int startAddr, int allocatedSize) {
+    public MemMappedFile addToMappedFileList (String filename, int startAddr, int allocatedSize) {
 	MemMappedFile file = new MemMappedFile(filename, startAddr, allocatedSize);
 	mapFileLock.acquire();
 	mappedFiles.add(file);
 	mapFileLock.release();
-	
+	return file;
     }
     
     
@@ -16,7 +16,6 @@ import nachos.machine.CPU;
 import nachos.machine.NachosThread;
 import nachos.kernel.Nachos;
 import nachos.kernel.userprog.AddrSpace;
-import nachos.kernel.userprog.Syscall;
 import nachos.kernel.userprog.UserThread;
 import nachos.kernel.filesys.OpenFile;
 
@@ -67,8 +66,6 @@ public class ProgTest implements Runnable {
 	    return;
 	}
 	
-	//Add the executable to the openfile list
-	Syscall.addOpenFileEntry(executable, execName);
 
 	AddrSpace space = ((UserThread)NachosThread.currentThread()).space;
 	if(space.exec(executable) == -1) {
@@ -77,6 +74,9 @@ public class ProgTest implements Runnable {
 	    return;
 	}
 
+	if(Nachos.options.PREFETCH_PAGES)
+	    space.startFaultLog(execName, executable);
+
 	space.initRegisters();		// set the initial register values
 	space.restoreState();		// load page table register
 
@@ -0,0 +1,28 @@
+/* Test of SetAffinity: pin one busy child to CPU 0 and another to CPU 1,
+ * leave a third free, and let them run for a while before halting.  Run
+ * with -ncpu 2 or more; the migration count printed at halt should stay
+ * small, and the pinned children should never move. */
+
+#include "syscall.h"
+
+void Spin() {
+    for (;;)
+      ;
+}
+
+int main()
+{
+  /* Children inherit the mask in force when they are forked */
+  SetAffinity(1);
+  Fork(Spin);
+  SetAffinity(2);
+  Fork(Spin);
+  SetAffinity(-1);
+  Fork(Spin);
+
+  if (SetAffinity(0) != -1)
+    Write("empty mask accepted\n", 20, ConsoleOutput);
+
+  Sleep(100000);
+  Halt();
+}
@@ -0,0 +1,59 @@
+/* Test of asynchronous I/O rings: queue several writes and reads of one
+ * file, start them all with one IoSubmit, and wait for the completions. */
+
+#include "syscall.h"
+
+#define N 4
+
+struct io_sqe sqes[N];
+struct io_cqe cqes[N];
+struct io_ring ring;
+char out[N][8] = { "block-0\n", "block-1\n", "block-2\n", "block-3\n" };
+char in[N * 8];
+
+int main()
+{
+  OpenFileId fd;
+  int i;
+
+  Create("aio-test");
+  fd = Open("aio-test");
+
+  ring.entries = N;
+  ring.sqes = sqes;
+  ring.cqes = cqes;
+  if (IoSetup(&ring) < 0)
+    Exit(1);
+
+  /* Queue one write per block, then submit them all and wait */
+  for (i = 0; i < N; i++) {
+    struct io_sqe *sqe = &sqes[ring.sq_tail % N];
+    sqe->opcode = IO_WRITE;
+    sqe->fd = fd;
+    sqe->buf = out[i];
+    sqe->len = 8;
+    sqe->offset = i * 8;
+    sqe->user_data = i;
+    ring.sq_tail++;
+  }
+  IoSubmit(N, N);
+  ring.cq_head = ring.cq_tail;
+
+  /* Read the blocks back the same way */
+  for (i = 0; i < N; i++) {
+    struct io_sqe *sqe = &sqes[ring.sq_tail % N];
+    sqe->opcode = IO_READ;
+    sqe->fd = fd;
+    sqe->buf = &in[i * 8];
+    sqe->len = 8;
+    sqe->offset = i * 8;
+    sqe->user_data = N + i;
+    ring.sq_tail++;
+  }
+  IoSubmit(N, N);
+  ring.cq_head = ring.cq_tail;
+
+  Write(in, N * 8, ConsoleOutput);
+  Close(fd);
+  Exit(0);
+}
@@ -0,0 +1,40 @@
+/* Test of batched system calls: create, open, write and close a file
+ * in one trap, then read it back with a second batch that stops at the
+ * first failure. */
+
+#include "syscall.h"
+
+char name[] = "batch-test";
+char text[] = "batched\n";
+char in[8];
+
+struct syscall_desc d[4];
+
+int main()
+{
+  int fd;
+
+  d[0].code = SC_Create;  d[0].args[0] = (int) name;
+  d[1].code = SC_Open;    d[1].args[0] = (int) name;
+  if (Batch(d, 2, BATCH_STOP_ON_ERROR) != 2)
+    Exit(1);
+  fd = d[1].result;
+
+  /* Write, read back from offset 0, close, and echo to the console */
+  d[0].code = SC_Write;   d[0].args[0] = (int) text;
+  d[0].args[1] = 8;       d[0].args[2] = fd;
+  d[1].code = SC_Pread;   d[1].args[0] = (int) in;
+  d[1].args[1] = 8;       d[1].args[2] = fd;   d[1].args[3] = 0;
+  d[2].code = SC_Close;   d[2].args[0] = fd;
+  d[3].code = SC_Write;   d[3].args[0] = (int) in;
+  d[3].args[1] = 8;       d[3].args[2] = ConsoleOutput;
+  if (Batch(d, 4, BATCH_STOP_ON_ERROR) != 4)
+    Exit(2);
+
+  /* Closed descriptor: the batch should stop after the first entry */
+  d[0] = d[1];
+  if (Batch(d, 4, BATCH_STOP_ON_ERROR) != 1 || d[0].result >= 0)
+    Exit(3);
+
+  Halt();
+}
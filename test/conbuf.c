@@ -0,0 +1,24 @@
+/* Test of console output buffering: many small writes that should reach
+ * the console a line (or a buffer) at a time, and a prompt without a
+ * newline that only appears once it is flushed. */
+
+#include "syscall.h"
+
+int main()
+{
+  int i;
+
+  for (i = 0; i < 10; i++) {
+    Write("tick ", 5, ConsoleOutput);
+    if (i % 5 == 4)
+      Write("\n", 1, ConsoleOutput);
+  }
+
+  Write("no newline yet...", 17, ConsoleOutput);
+  Flush(ConsoleOutput);
+  Write(" done\n", 6, ConsoleOutput);
+
+  /* Leave a partial line for Exit to flush */
+  Write("bye", 3, ConsoleOutput);
+  Exit(0);
+}
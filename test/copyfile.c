@@ -0,0 +1,35 @@
+/* Test of CopyFile: write a file, copy it to a second file inside the
+ * kernel in one call, then read the copy back and print it. */
+
+#include "syscall.h"
+
+#define TEXT "The quick brown fox jumps over the lazy dog.\n"
+#define LEN (sizeof(TEXT) - 1)
+
+char buf[LEN];
+
+int main()
+{
+  OpenFileId src, dst;
+  int i;
+
+  Create("cp-src");
+  src = Open("cp-src");
+  for (i = 0; i < 20; i++)
+    Write(TEXT, LEN, src);
+  Close(src);
+
+  Create("cp-dst");
+  src = Open("cp-src");
+  dst = Open("cp-dst");
+  if (CopyFile(src, dst, 20 * LEN) != 20 * LEN)
+    Exit(1);
+  Close(src);
+  Close(dst);
+
+  dst = Open("cp-dst");
+  while (Read(buf, LEN, dst) == LEN)
+    Write(buf, LEN, ConsoleOutput);
+  Close(dst);
+  Exit(0);
+}
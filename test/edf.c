@@ -0,0 +1,44 @@
+/* Test of SetRealTime: fork two periodic real-time threads and a busy
+ * best-effort one.  The periodic threads do a little work each period and
+ * sleep until the next; their deadline counters are printed at halt and
+ * should show no misses.  A third reservation, which would overload the
+ * CPU, should be refused. */
+
+#include "syscall.h"
+
+#define PERIOD	2000
+
+void Work(int n) {
+    int i;
+    for (i = 0; i < n; i++)
+      ;
+}
+
+void Periodic() {
+  /* 600 ticks every 2000, due within 1500 */
+  SetRealTime(PERIOD, 600, 1500);
+  for (;;) {
+    Work(20);
+    Sleep(PERIOD);
+  }
+}
+
+void Spin() {
+    for (;;)
+      ;
+}
+
+int main()
+{
+  Fork(Periodic);
+  Fork(Periodic);
+  Fork(Spin);
+
+  Sleep(1000);
+  /* 0.4 + 0.4 admitted already; another 0.4 would exceed the bound */
+  if (SetRealTime(PERIOD, 600, 1500) == 0)
+    Write("overload admitted\n", 18, ConsoleOutput);
+
+  Sleep(100000);
+  Halt();
+}
@@ -0,0 +1,18 @@
+/* Child half of the futex test: set the flag and wake the parent. */
+
+#include "syscall.h"
+
+int main()
+{
+  int *flag;
+
+  flag = (int *) ShmAttach("futex-test");
+  if (flag == 0)
+    Exit(-1);
+
+  *flag = 1;
+  FutexWake(flag, 1);
+
+  ShmDetach(flag);
+  Exit(0);
+}
@@ -0,0 +1,25 @@
+/* Test of futexes: wait in the kernel, rather than spinning with Yield,
+ * for a child program to set a flag in a shared segment.  The child is
+ * futex-child; it sets the flag and wakes us. */
+
+#include "syscall.h"
+
+int main()
+{
+  int *flag, pid, seen;
+
+  flag = (int *) ShmCreate("futex-test", sizeof(int));
+  if (flag == 0)
+    Exit(-1);
+
+  pid = Exec("futex-child");
+
+  /* Sleep for as long as the flag is still clear */
+  while (*flag == 0)
+    FutexWait(flag, 0);
+
+  seen = *flag;
+  Join(pid);
+  ShmDetach(flag);
+  Exit(seen == 1 ? 0 : 1);
+}
@@ -0,0 +1,59 @@
+/* Test of gang scheduling: four forked workers go through phases of work
+ * separated by a spinning barrier in a shared memory segment, while
+ * another busy program competes for the CPUs.  Run with -GANG and
+ * -ncpu 4, and compare the time to finish with the default scheduler;
+ * the workers only get through a phase quickly when they all run at once. */
+
+#include "syscall.h"
+
+#define WORKERS	4
+#define PHASES	20
+
+/* Phases each worker has finished, in shared memory; one writer per slot */
+int *finished;
+
+/* Slot of the worker being forked; each child gets its own copy */
+int myId;
+
+void Barrier(int phase) {
+  int j;
+  finished[myId] = phase + 1;
+  for (j = 0; j < WORKERS; j++) {
+    while (finished[j] < phase + 1)
+      ;
+  }
+}
+
+void Worker() {
+  int phase, i;
+
+  /* Segments are not inherited by Fork */
+  finished = (int *) ShmAttach("gang-test");
+  for (phase = 0; phase < PHASES; phase++) {
+    for (i = 0; i < 100; i++)
+      ;
+    Barrier(phase);
+  }
+  ShmDetach(finished);
+  Exit(0);
+}
+
+int main()
+{
+  int i;
+
+  finished = (int *) ShmCreate("gang-test", WORKERS * sizeof(int));
+  if (finished == 0)
+    Exit(-1);
+
+  Exec("test/matmult");
+  for (i = 0; i < WORKERS; i++) {
+    myId = i;
+    Fork(Worker);
+  }
+  for (i = 0; i < WORKERS; i++) {
+    while (finished[i] < PHASES)
+      Yield();
+  }
+  Halt();
+}
@@ -0,0 +1,29 @@
+/* Child half of the pipe test: read integers from OpenFileId 2 (the read
+ * end created by the parent) until end of file, sort them, and exit with
+ * the smallest. */
+
+#include "syscall.h"
+
+#define N 256
+
+int A[N];
+
+int main()
+{
+  int n, got, i, j, tmp;
+
+  Close(3);		/* our copy of the write end */
+
+  n = 0;
+  while (n < N && (got = Read((char *) &A[n], (N - n) * sizeof(int), 2)) > 0)
+    n += got / sizeof(int);
+
+  for (i = 0; i < n - 1; i++)
+    for (j = 0; j < n - 1 - i; j++)
+      if (A[j] > A[j + 1]) {
+        tmp = A[j];
+        A[j] = A[j + 1];
+        A[j + 1] = tmp;
+      }
+  Exit(A[0]);
+}
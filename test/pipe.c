@@ -0,0 +1,28 @@
+/* Test of pipes: feed integers in reverse order through a pipe to a
+ * child running pipe-sort, which sorts them and exits with the smallest.
+ * Nothing goes through the disk. */
+
+#include "syscall.h"
+
+#define N 256
+
+int main()
+{
+  OpenFileId fds[2];
+  int i, v, pid;
+
+  if (Pipe(fds) < 0)
+    Exit(-1);
+
+  /* The child inherits both ends; it reads from fds[0] */
+  pid = Exec("pipe-sort");
+  Close(fds[0]);
+
+  for (i = 0; i < N; i++) {
+    v = N - 1 - i;
+    Write((char *) &v, sizeof(int), fds[1]);
+  }
+  Close(fds[1]);	/* end of file for the child */
+
+  Exit(Join(pid));
+}
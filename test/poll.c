@@ -0,0 +1,44 @@
+/* Test of Poll: wait on both the console and a pipe.  A forked copy of
+ * this program writes to the pipe after a while; whichever source is
+ * ready first is served, without busy-yielding. */
+
+#include "syscall.h"
+
+OpenFileId fds[2];
+
+void writer()
+{
+  Sleep(500);
+  Write("from the pipe\n", 14, fds[1]);
+  Exit(0);
+}
+
+int main()
+{
+  struct pollfd p[2];
+  char buf[32];
+  int n, i, done;
+
+  Pipe(fds);
+  Fork(writer);
+
+  p[0].fd = ConsoleInput;  p[0].events = POLLIN;
+  p[1].fd = fds[0];        p[1].events = POLLIN;
+
+  done = 0;
+  while (!done) {
+    if (Poll(p, 2, 10000) == 0) {
+      Write("timed out\n", 10, ConsoleOutput);
+      break;
+    }
+    for (i = 0; i < 2; i++) {
+      if (p[i].revents & POLLIN) {
+        n = Read(buf, sizeof(buf), p[i].fd);
+        Write(buf, n, ConsoleOutput);
+        if (i == 1)
+          done = 1;
+      }
+    }
+  }
+  Halt();
+}
@@ -0,0 +1,23 @@
+/* Test of SetShare: fork two busy children, one holding three times the
+ * tickets of the other, let them compete for a while, then halt.  Run
+ * with -STRIDE or -LOTTERY; the shares they got are printed at halt and
+ * should be close to 75% and 25%. */
+
+#include "syscall.h"
+
+void Spin() {
+    for (;;)
+      ;
+}
+
+int main()
+{
+  /* Children inherit the tickets held when they are forked */
+  SetShare(300);
+  Fork(Spin);
+  SetShare(100);
+  Fork(Spin);
+
+  Sleep(200000);
+  Halt();
+}
@@ -0,0 +1,23 @@
+/* Child half of the shared memory test: sum the array the parent left
+ * in the segment, and store the sum after it. */
+
+#include "syscall.h"
+
+#define N 256
+
+int main()
+{
+  int *a, i, sum;
+
+  a = (int *) ShmAttach("shm-test");
+  if (a == 0)
+    Exit(-1);
+
+  sum = 0;
+  for (i = 0; i < N; i++)
+    sum += a[i];
+  a[N] = sum;
+
+  ShmDetach(a);
+  Exit(0);
+}
@@ -0,0 +1,29 @@
+/* Test of shared memory: fill an array in a shared segment, have a child
+ * program attach the segment and sum the array in place, and check the
+ * sum the child leaves behind.  No data is copied between the two. */
+
+#include "syscall.h"
+
+#define N 256
+
+int main()
+{
+  int *a, i, pid;
+
+  a = (int *) ShmCreate("shm-test", (N + 1) * sizeof(int));
+  if (a == 0)
+    Exit(-1);
+
+  for (i = 0; i < N; i++)
+    a[i] = i;
+
+  pid = Exec("shm-child");
+  Join(pid);
+
+  /* 0 + 1 + ... + 255 */
+  if (a[N] != N * (N - 1) / 2)
+    Exit(1);
+
+  ShmDetach(a);
+  Exit(0);
+}
@@ -59,6 +59,158 @@ Munmap:
 	j	$31
 	.end Munmap
 
+	.globl Pread
+	.ent	Pread
+Pread:
+	addiu $2,$0,SC_Pread
+	syscall
+	j	$31
+	.end Pread
+
+	.globl Pwrite
+	.ent	Pwrite
+Pwrite:
+	addiu $2,$0,SC_Pwrite
+	syscall
+	j	$31
+	.end Pwrite
+
+	.globl Readv
+	.ent	Readv
+Readv:
+	addiu $2,$0,SC_Readv
+	syscall
+	j	$31
+	.end Readv
+
+	.globl Writev
+	.ent	Writev
+Writev:
+	addiu $2,$0,SC_Writev
+	syscall
+	j	$31
+	.end Writev
+
+	.globl IoSetup
+	.ent	IoSetup
+IoSetup:
+	addiu $2,$0,SC_IoSetup
+	syscall
+	j	$31
+	.end IoSetup
+
+	.globl IoSubmit
+	.ent	IoSubmit
+IoSubmit:
+	addiu $2,$0,SC_IoSubmit
+	syscall
+	j	$31
+	.end IoSubmit
+
+	.globl Batch
+	.ent	Batch
+Batch:
+	addiu $2,$0,SC_Batch
+	syscall
+	j	$31
+	.end Batch
+
+	.globl Flush
+	.ent	Flush
+Flush:
+	addiu $2,$0,SC_Flush
+	syscall
+	j	$31
+	.end Flush
+
+	.globl Pipe
+	.ent	Pipe
+Pipe:
+	addiu $2,$0,SC_Pipe
+	syscall
+	j	$31
+	.end Pipe
+
+	.globl ShmCreate
+	.ent	ShmCreate
+ShmCreate:
+	addiu $2,$0,SC_ShmCreate
+	syscall
+	j	$31
+	.end ShmCreate
+
+	.globl ShmAttach
+	.ent	ShmAttach
+ShmAttach:
+	addiu $2,$0,SC_ShmAttach
+	syscall
+	j	$31
+	.end ShmAttach
+
+	.globl ShmDetach
+	.ent	ShmDetach
+ShmDetach:
+	addiu $2,$0,SC_ShmDetach
+	syscall
+	j	$31
+	.end ShmDetach
+
+	.globl FutexWait
+	.ent	FutexWait
+FutexWait:
+	addiu $2,$0,SC_FutexWait
+	syscall
+	j	$31
+	.end FutexWait
+
+	.globl FutexWake
+	.ent	FutexWake
+FutexWake:
+	addiu $2,$0,SC_FutexWake
+	syscall
+	j	$31
+	.end FutexWake
+
+	.globl CopyFile
+	.ent	CopyFile
+CopyFile:
+	addiu $2,$0,SC_CopyFile
+	syscall
+	j	$31
+	.end CopyFile
+
+	.globl Poll
+	.ent	Poll
+Poll:
+	addiu $2,$0,SC_Poll
+	syscall
+	j	$31
+	.end Poll
+
+	.globl SetShare
+	.ent	SetShare
+SetShare:
+	addiu $2,$0,SC_SetShare
+	syscall
+	j	$31
+	.end SetShare
+
+	.globl SetRealTime
+	.ent	SetRealTime
+SetRealTime:
+	addiu $2,$0,SC_SetRealTime
+	syscall
+	j	$31
+	.end SetRealTime
+
+	.globl SetAffinity
+	.ent	SetAffinity
+SetAffinity:
+	addiu $2,$0,SC_SetAffinity
+	syscall
+	j	$31
+	.end SetAffinity
+
 	.globl Sleep
 	.ent	Sleep
 Sleep:
@@ -35,6 +35,25 @@
 #define SC_Rmdir	14
 #define SC_Mmap		15
 #define SC_Munmap	16
+#define SC_Pread	17
+#define SC_Pwrite	18
+#define SC_Readv	19
+#define SC_Writev	20
+#define SC_IoSetup	21
+#define SC_IoSubmit	22
+#define SC_Batch	23
+#define SC_Flush	24
+#define SC_Pipe		25
+#define SC_ShmCreate	26
+#define SC_ShmAttach	27
+#define SC_ShmDetach	28
+#define SC_FutexWait	29
+#define SC_FutexWake	30
+#define SC_CopyFile	31
+#define SC_Poll		32
+#define SC_SetShare	33
+#define SC_SetRealTime	34
+#define SC_SetAffinity	35
 
 #ifndef IN_ASM
 
@@ -129,9 +148,194 @@ void Write(char *buffer, int size, OpenFileId id);
  */
 int Read(char *buffer, int size, OpenFileId id);
 
+/* Pass on any output the kernel is still holding for "id".  Output to
+ * ConsoleOutput is buffered by the kernel (a line at a time, unless the
+ * -cb option says otherwise); files are not.  Return 0, or -1 if "id" is
+ * not open.
+ */
+int Flush(OpenFileId id);
+
+/* Copy up to "len" bytes from "src" to "dst" inside the kernel, without
+ * passing through a user buffer.  Both files are read or written at, and
+ * advance, their current positions.  Return the number of bytes copied
+ * (less than "len" only at end of file), or -1 on error.
+ */
+int CopyFile(OpenFileId src, OpenFileId dst, int len);
+
+/* Create a pipe: an in-memory channel whose read end is returned in
+ * fds[0] and whose write end is returned in fds[1].  The ends are used
+ * with Read, Write and Close, and are inherited by Fork and Exec.  Read
+ * waits for data and returns 0 once the write end is closed; Write
+ * returns -1 once the read end is closed.  Return 0, or -1 on error.
+ */
+int Pipe(OpenFileId fds[2]);
+
 /* Close the file, we're done reading and writing to it. */
 void Close(OpenFileId id);
 
+/* Read "size" bytes from the open file, starting at "offset", into
+ * "buffer".  The file's current position is not used or changed.
+ * Return the number of bytes actually read.
+ */
+int Pread(char *buffer, int size, OpenFileId id, int offset);
+
+/* Write "size" bytes from "buffer" to the open file, starting at "offset".
+ * The file's current position is not used or changed.
+ * Return the number of bytes actually written.
+ */
+int Pwrite(char *buffer, int size, OpenFileId id, int offset);
+
+/* One buffer of a vectored read or write. */
+struct iovec {
+    void *iov_base;	/* start of the buffer */
+    int iov_len;	/* size of the buffer */
+};
+
+#define IOV_MAX		1024	/* the most buffers in one Readv or Writev */
+
+/* Read from the open file into the "iovcnt" buffers described by "iov",
+ * filling each in turn, in a single call.  Return the total number of
+ * bytes read, or -1 if "iovcnt" is more than IOV_MAX or a buffer is not
+ * valid.
+ */
+int Readv(struct iovec *iov, int iovcnt, OpenFileId id);
+
+/* Write the "iovcnt" buffers described by "iov" to the open file, in
+ * order, in a single call.  Return the total number of bytes written.
+ */
+int Writev(struct iovec *iov, int iovcnt, OpenFileId id);
+
+/* Asynchronous I/O.  A program sets up a submission queue and a completion
+ * queue in its own memory and registers them with IoSetup.  To start
+ * requests it fills in io_sqe slots at sq_tail, advances sq_tail, and calls
+ * IoSubmit; the kernel advances sq_head as it takes them.  As requests
+ * finish, the kernel fills in io_cqe slots at cq_tail and advances
+ * cq_tail; the program advances cq_head as it consumes them.  Slot i of
+ * either queue is at index (i % entries).
+ */
+#define IO_READ		0	/* read "len" bytes into "buf" */
+#define IO_WRITE	1	/* write "len" bytes from "buf" */
+#define IO_NOP		2	/* just post a completion */
+
+struct io_sqe {
+    int opcode;		/* IO_READ, IO_WRITE or IO_NOP */
+    OpenFileId fd;	/* file to read or write (not the console) */
+    char *buf;		/* user buffer */
+    int len;		/* bytes to transfer */
+    int offset;		/* offset in the file, or -1 for the file position */
+    int user_data;	/* copied to the completion */
+};
+
+struct io_cqe {
+    int user_data;	/* from the request */
+    int result;		/* bytes transferred, or -1 on error */
+};
+
+struct io_ring {
+    int sq_head, sq_tail;
+    int cq_head, cq_tail;
+    int entries;		/* slots in each queue */
+    struct io_sqe *sqes;
+    struct io_cqe *cqes;
+};
+
+/* Register the queues described by "ring".  Return 0, or -1 on error. */
+int IoSetup(struct io_ring *ring);
+
+/* Start up to "count" queued requests, then wait until at least
+ * "min_complete" completions are waiting, or until no request is left in
+ * flight if that comes first.  Return the number of requests started.
+ */
+int IoSubmit(int count, int min_complete);
+
+/* Shared memory.  ShmCreate makes a new segment of at least "size" bytes,
+ * filled with zeroes, and maps it into the caller's address space;
+ * ShmAttach maps an existing segment into another program.  Both return
+ * the address the segment was mapped at, or 0 on error.  ShmDetach unmaps
+ * it again; the segment is freed when the last program detaches (or
+ * exits).  Segments are not inherited by Fork or Exec.
+ */
+void *ShmCreate(char *name, int size);
+void *ShmAttach(char *name);
+int ShmDetach(void *addr);
+
+/* Wait until at least one of "nfds" open files is ready, or "timeout"
+ * ticks pass (0: do not wait; negative: wait as long as it takes).  For
+ * each entry the kernel sets "revents" to the events in "events" that are
+ * ready, or POLLNVAL if "fd" is not open.  Return the number of entries
+ * with a nonzero "revents", 0 on timeout, or -1 on error (including an
+ * "nfds" over POLL_MAX).
+ */
+struct pollfd {
+    OpenFileId fd;
+    int events;
+    int revents;
+};
+
+#define POLLIN		1	/* Read would not wait */
+#define POLLOUT		2	/* Write would not wait */
+#define POLLNVAL	4	/* fd is not open */
+
+#define POLL_MAX	1024	/* the most entries in one Poll */
+
+int Poll(struct pollfd *fds, int nfds, int timeout);
+
+/* Futexes, for building locks in user memory that only enter the kernel
+ * under contention.  FutexWait sleeps if the word at "addr" still holds
+ * "expected" (return 0 once woken), and otherwise returns -1 at once.
+ * FutexWake wakes up to "n" threads sleeping on "addr" and returns how
+ * many it woke.  Words in shared memory segments work across programs.
+ */
+int FutexWait(int *addr, int expected);
+int FutexWake(int *addr, int n);
+
+/* Ask for a share of the CPU in proportion to "tickets" (1 to 10000; a
+ * process starts with its parent's, or 100).  Only the proportional-share
+ * schedulers (-STRIDE, -LOTTERY) and the fair scheduler (-CFS) take
+ * notice.  Return the number of tickets held before, or -1.
+ */
+int SetShare(int tickets);
+
+/* Join the real-time class: ask for "budget" ticks of CPU time in every
+ * "period" ticks, by "deadline" ticks after the period starts (budget <=
+ * deadline <= period).  Real-time threads run ahead of all others, earliest
+ * deadline first, and are held back once their budget is spent until the
+ * next period.  A period of 0 leaves the class.  Return 0, or -1 if the
+ * request is invalid or would overload the CPU.  Only the default
+ * round-robin and the multilevel feedback (-MLFS) schedulers take notice.
+ */
+int SetRealTime(int period, int budget, int deadline);
+
+/* Restrict the calling thread to the CPUs whose bits are set in "mask"
+ * (bit i for CPU i); threads forked or exec'd afterwards inherit it.
+ * Return 0, or -1 if the mask names no CPU that exists.  Threads start
+ * with every CPU allowed.  Only the default round-robin and the per-CPU
+ * queue (-PCQ) schedulers take notice; the others return -1.
+ */
+int SetAffinity(int mask);
+
+/* Batched system calls.  Each descriptor names a system call and its
+ * arguments; Batch runs them in order within a single trap and stores each
+ * call's return value (0 for calls that return nothing) in "result".
+ * Batch and Exit cannot be batched, and neither can an unknown code;
+ * their result is -1.
+ */
+struct syscall_desc {
+    int code;			/* SC_ code of the call */
+    int args[4];		/* its arguments, as passed in r4-r7 */
+    int result;			/* filled in by the kernel */
+};
+
+#define BATCH_STOP_ON_ERROR	1	/* stop after a negative result */
+#define BATCH_MAX		1024	/* the most descriptors in one Batch */
+
+/* Run "count" system calls described by "descs".  Return the number that
+ * were run, which is less than "count" only if BATCH_STOP_ON_ERROR is set
+ * in "flags" and one of them failed; or -1 if "count" is more than
+ * BATCH_MAX or "descs" is not a valid address.
+ */
+int Batch(struct syscall_desc *descs, int count, int flags);
+
 /* User-level thread operations: Fork and Yield.  To allow multiple
  * threads to run within a user program. 
  */
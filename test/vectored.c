@@ -0,0 +1,39 @@
+/* Test of Pread(), Pwrite(), Readv() and Writev() system calls */
+
+#include "syscall.h"
+
+int main()
+{
+  OpenFileId fd;
+  struct iovec iov[3];
+  char head[4], body[8], tail[4];
+  char rec[8];
+
+  Create("vectored-test");
+  fd = Open("vectored-test");
+
+  /* Write three records in one call */
+  iov[0].iov_base = "HEAD";     iov[0].iov_len = 4;
+  iov[1].iov_base = "record01"; iov[1].iov_len = 8;
+  iov[2].iov_base = "TAIL";     iov[2].iov_len = 4;
+  Writev(iov, 3, fd);
+
+  /* Overwrite the middle record in place, then read it back */
+  Pwrite("record02", 8, fd, 4);
+  Pread(rec, 8, fd, 4);
+  Write(rec, 8, ConsoleOutput);
+  Write("\n", 1, ConsoleOutput);
+
+  /* Read the whole file back into separate buffers in one call */
+  Close(fd);
+  fd = Open("vectored-test");
+  iov[0].iov_base = head; iov[0].iov_len = 4;
+  iov[1].iov_base = body; iov[1].iov_len = 8;
+  iov[2].iov_base = tail; iov[2].iov_len = 4;
+  Readv(iov, 3, fd);
+  Writev(iov, 3, ConsoleOutput);
+  Write("\n", 1, ConsoleOutput);
+
+  Close(fd);
+  Exit(0);
+}